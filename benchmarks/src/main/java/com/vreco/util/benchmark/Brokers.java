@@ -0,0 +1,60 @@
+package com.vreco.util.benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Embedded broker urls and payloads shared by the benchmarks.
+ *
+ * @author Ben Aldrich
+ */
+final class Brokers {
+
+  /**
+   * In-JVM broker without a store, persistent messages are accepted but never written.
+   */
+  static final String MEMORY = "vm://bench-memory?broker.persistent=false&broker.useJmx=false";
+  /**
+   * In-JVM broker with a KahaDB store, persistent messages are synced to disk.
+   */
+  static final String KAHADB = "vm://bench-kahadb?broker.persistent=true&broker.useJmx=false"
+          + "&broker.dataDirectory=target/activemq-data";
+
+  private Brokers() {
+  }
+
+  static String getUrl(final String broker) {
+    switch (broker) {
+      case "memory":
+        return MEMORY;
+      case "kahadb":
+        return KAHADB;
+      default:
+        throw new IllegalArgumentException("Unknown broker: " + broker);
+    }
+  }
+
+  static String payload(final int size) {
+    char[] chars = new char[size];
+    Arrays.fill(chars, 'x');
+    return new String(chars);
+  }
+
+  /**
+   * JSON-like text of about size characters, with repeated keys and varying values so it
+   * compresses the way real payloads do rather than like a run of one character.
+   */
+  static String jsonPayload(final int size) {
+    Random random = new Random(size);
+    StringBuilder json = new StringBuilder(size + 64);
+    json.append('[');
+    while (json.length() < size) {
+      json.append("{\"id\":").append(random.nextInt(1000000))
+              .append(",\"score\":").append(random.nextDouble())
+              .append(",\"name\":\"").append(Long.toString(random.nextLong(), 36))
+              .append("\",\"active\":").append(random.nextBoolean()).append("},");
+    }
+    json.setLength(size - 1);
+    return json.append(']').toString();
+  }
+}
@@ -0,0 +1,107 @@
+package com.vreco.util.benchmark;
+
+import com.vreco.util.mq.Compression;
+import com.vreco.util.mq.Consumer;
+import com.vreco.util.mq.MessageHandler;
+import com.vreco.util.mq.Producer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of {@link Compression} by payload size and deflate level, on its own and on the send path of
+ * {@link Producer}. The setup prints the compressed size of each payload so the CPU spent can be
+ * weighed against the bytes saved. A threshold of -1 sends uncompressed for comparison.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar CompressionBenchmark.send -p broker=kahadb -p messageSize=262144
+ * </pre>
+ *
+ * @author Ben Aldrich
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+  private static final String QUEUE = "bench.compression";
+
+  @Param({"1024", "16384", "262144"})
+  public int messageSize;
+  @Param({"1", "6", "9"})
+  public int level;
+
+  private String payload;
+  private byte[] bytes;
+  private byte[] compressed;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    payload = Brokers.jsonPayload(messageSize);
+    bytes = payload.getBytes(Charset.forName("UTF-8"));
+    compressed = Compression.deflate(bytes, 0, bytes.length, level);
+    System.out.printf("%nmessageSize[%d] level[%d] compressed[%d] ratio[%.2f]%n", bytes.length,
+            level, compressed.length, (double) compressed.length / bytes.length);
+  }
+
+  @Benchmark
+  public byte[] deflate() {
+    return Compression.deflate(bytes, 0, bytes.length, level);
+  }
+
+  @Benchmark
+  public byte[] inflate() throws DataFormatException {
+    return Compression.inflate(compressed, 0, compressed.length, bytes.length);
+  }
+
+  @Benchmark
+  public void send(final Send send) throws JMSException {
+    send.producer.sendMessage(payload);
+  }
+
+  /**
+   * A producer with compression at the threshold, and a listener draining the queue.
+   */
+  @State(Scope.Thread)
+  public static class Send {
+
+    @Param({"memory", "kahadb"})
+    public String broker;
+    @Param({"true"})
+    public boolean persistent;
+    @Param({"-1", "4096"})
+    public int threshold;
+
+    private Consumer drain;
+    private Producer producer;
+
+    @Setup(Level.Trial)
+    public void setUp(final CompressionBenchmark benchmark) throws JMSException {
+      String url = Brokers.getUrl(broker);
+      drain = new Consumer(url);
+      drain.listen("queue", QUEUE, 1, new MessageHandler() {
+        @Override
+        public void onMessage(Message message) {
+        }
+      });
+
+      producer = new Producer(url);
+      producer.setCompressionThreshold(threshold);
+      producer.setCompressionLevel(benchmark.level);
+      producer.connect("queue", QUEUE);
+      producer.setPersistence(persistent);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws JMSException {
+      producer.close();
+      drain.close();
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package com.vreco.util.benchmark;
+
+import com.vreco.util.mq.Consumer;
+import com.vreco.util.mq.Producer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Receive throughput and latency of {@link Consumer} against an embedded broker. A feeder thread
+ * keeps the queue topped up; when it falls behind, receive waits out the consumer timeout, which is
+ * what the timeout parameter measures.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar ConsumerBenchmark -p timeout=10
+ * </pre>
+ *
+ * @author Ben Aldrich
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConsumerBenchmark {
+
+  static final int BATCH_SIZE = 100;
+  private static final String QUEUE = "bench.consumer";
+
+  @Param({"memory", "kahadb"})
+  public String broker;
+  @Param({"false", "true"})
+  public boolean persistent;
+  @Param({"false", "true"})
+  public boolean transacted;
+  @Param({"128", "4096", "65536"})
+  public int messageSize;
+  @Param({"10", "1000"})
+  public long timeout;
+
+  private Consumer consumer;
+  private Thread feeder;
+  private volatile boolean feeding;
+
+  @Setup(Level.Trial)
+  public void setUp() throws JMSException {
+    final String url = Brokers.getUrl(broker);
+    final String payload = Brokers.payload(messageSize);
+
+    consumer = new Consumer(url);
+    consumer.setUseTransactions(transacted);
+    consumer.setTimeout(timeout);
+    consumer.connect("queue", QUEUE);
+
+    final Producer producer = new Producer(url);
+    producer.connect("queue", QUEUE);
+    producer.setPersistence(persistent);
+    feeding = true;
+    feeder = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (feeding) {
+            producer.sendMessage(payload);
+          }
+        } catch (JMSException e) {
+          // the broker is going away at the end of the trial
+        } finally {
+          producer.close();
+        }
+      }
+    }, "ConsumerBenchmark feeder");
+    feeder.setDaemon(true);
+    feeder.start();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    feeding = false;
+    feeder.join(5000);
+    consumer.close();
+  }
+
+  @Benchmark
+  public Message receive() throws JMSException {
+    Message msg = consumer.getTextMessage();
+    if (msg != null) {
+      if (transacted) {
+        consumer.acknowledgeBatch(null);
+      } else {
+        msg.acknowledge();
+      }
+    }
+    return msg;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public int receiveBatch() throws JMSException {
+    List<Message> batch = consumer.receiveBatch(BATCH_SIZE, timeout);
+    consumer.acknowledgeBatch(batch);
+    return batch.size();
+  }
+}
@@ -0,0 +1,116 @@
+package com.vreco.util.benchmark;
+
+import com.vreco.util.mq.Consumer;
+import com.vreco.util.mq.MessageHandler;
+import com.vreco.util.mq.Producer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Send throughput and latency of {@link Producer} against an embedded broker. A listener drains the
+ * queue in the background so broker flow control does not kick in.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar ProducerBenchmark -p broker=kahadb -p persistent=true
+ * </pre>
+ *
+ * @author Ben Aldrich
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProducerBenchmark {
+
+  static final int BATCH_SIZE = 100;
+  static final int WINDOW_SIZE = 1000;
+  private static final String QUEUE = "bench.producer";
+
+  @Param({"memory", "kahadb"})
+  public String broker;
+  @Param({"false", "true"})
+  public boolean persistent;
+  @Param({"false", "true"})
+  public boolean asyncSend;
+  @Param({"128", "4096", "65536"})
+  public int messageSize;
+
+  private Consumer drain;
+  private Producer producer;
+  private Producer batchProducer;
+  private Producer windowProducer;
+  private String payload;
+  private List<String> batch;
+
+  @Setup(Level.Trial)
+  public void setUp() throws JMSException {
+    String url = Brokers.getUrl(broker);
+    payload = Brokers.payload(messageSize);
+    batch = new ArrayList<>(BATCH_SIZE);
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      batch.add(payload);
+    }
+
+    drain = new Consumer(url);
+    drain.listen("queue", QUEUE, 1, new MessageHandler() {
+      @Override
+      public void onMessage(Message message) {
+      }
+    });
+
+    producer = new Producer(url);
+    producer.connect("queue", QUEUE);
+    producer.setPersistence(persistent);
+    producer.setUseAsyncSend(asyncSend);
+
+    batchProducer = new Producer(url);
+    batchProducer.setUseTransactions(true);
+    batchProducer.connect("queue", QUEUE);
+    batchProducer.setPersistence(persistent);
+    batchProducer.setUseAsyncSend(asyncSend);
+
+    windowProducer = new Producer(url);
+    windowProducer.setAsyncWindow(WINDOW_SIZE);
+    windowProducer.connect("queue", QUEUE);
+    windowProducer.setPersistence(persistent);
+  }
+
+  @TearDown(Level.Iteration)
+  public void flush() throws InterruptedException {
+    windowProducer.flushAsync(TimeUnit.SECONDS.toMillis(30));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws JMSException {
+    producer.close();
+    batchProducer.close();
+    windowProducer.close();
+    drain.close();
+  }
+
+  @Benchmark
+  public void send() throws JMSException {
+    producer.sendMessage(payload);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public int sendBatch() throws JMSException {
+    return batchProducer.sendBatch(batch);
+  }
+
+  /**
+   * Async send confirmed by the broker, with at most WINDOW_SIZE unconfirmed. asyncSend does not
+   * apply, these always ask for a confirmation.
+   */
+  @Benchmark
+  public Producer.SendFuture sendWindowed() throws JMSException {
+    return windowProducer.sendAsync(payload, null);
+  }
+}
@@ -0,0 +1,76 @@
+package com.vreco.util.benchmark;
+
+import com.vreco.util.mq.MessageSpool;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Append and replay throughput of {@link MessageSpool}, the local store a SpoolingProducer falls
+ * back to while the broker is down. Replay reads records back and commits the read offset every
+ * commitInterval records, as the drainer does.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar SpoolBenchmark -p messageSize=4096
+ * </pre>
+ *
+ * @author Ben Aldrich
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpoolBenchmark {
+
+  private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+  @Param({"128", "4096", "65536"})
+  public int messageSize;
+  @Param({"100"})
+  public int commitInterval;
+
+  private File dir;
+  private MessageSpool spool;
+  private MessageSpool.Record record;
+  private int uncommitted;
+
+  @Setup(Level.Iteration)
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("spool-bench").toFile();
+    spool = new MessageSpool(dir, SEGMENT_SIZE, 32);
+    record = new MessageSpool.Record("queue", "bench.spool", Brokers.payload(messageSize));
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown() throws IOException {
+    spool.close();
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  /**
+   * Append a record and read it back, so the spool stays small however long the run.
+   */
+  @Benchmark
+  public MessageSpool.Record appendAndReplay() throws IOException {
+    spool.append(record);
+    MessageSpool.Record replayed = spool.peek();
+    spool.advance();
+    if (++uncommitted >= commitInterval) {
+      spool.commit();
+      uncommitted = 0;
+    }
+    return replayed;
+  }
+
+  @Benchmark
+  public boolean append() throws IOException {
+    return spool.append(record);
+  }
+}
@@ -0,0 +1,156 @@
+package com.vreco.util;
+
+import java.util.Arrays;
+
+/**
+ * A depth limited, filtered stack trace. Only the selected frames are kept; the string is not built
+ * until {@link #toString()} is first called. Two captures are equal when they have the same
+ * exception class and the same frames, whatever their messages, so they can be counted together by
+ * a {@link StackTraceCache}.
+ *
+ * @author mgolowka
+ */
+public final class CapturedStackTrace {
+
+  private final String className;
+  private final String message;
+  private final StackTraceElement[] frames;
+  private final int omitted;
+  private final CapturedStackTrace cause;
+  private final int hash;
+  private String formatted;
+
+  CapturedStackTrace(final String className, final String message, final StackTraceElement[] frames,
+          final int omitted, final CapturedStackTrace cause) {
+    this.className = className;
+    this.message = message;
+    this.frames = frames;
+    this.omitted = omitted;
+    this.cause = cause;
+    int h = className == null ? 0 : className.hashCode();
+    h = 31 * h + Arrays.hashCode(frames);
+    h = 31 * h + (cause == null ? 0 : cause.hash);
+    this.hash = h;
+  }
+
+  /**
+   * Select up to maxDepth frames starting at skip that pass the filter.
+   */
+  static CapturedStackTrace capture(final String className, final String message,
+          final StackTraceElement[] all, final int skip, final int maxDepth,
+          final StackFrameFilter filter, final CapturedStackTrace cause) {
+    StackTraceElement[] selected = new StackTraceElement[Math.max(0, Math.min(maxDepth, all.length - skip))];
+    int count = 0;
+    int omitted = 0;
+    for (int i = skip; i < all.length; i++) {
+      if (filter != null && !filter.accept(all[i])) {
+        continue;
+      }
+      if (count < selected.length) {
+        selected[count++] = all[i];
+      } else {
+        omitted++;
+      }
+    }
+    if (count < selected.length) {
+      selected = Arrays.copyOf(selected, count);
+    }
+    return new CapturedStackTrace(className, message, selected, omitted, cause);
+  }
+
+  /**
+   * @return the exception class name, null for a capture of the current thread
+   */
+  public String getClassName() {
+    return className;
+  }
+
+  public String getMessage() {
+    return message;
+  }
+
+  /**
+   * @return the selected frames
+   */
+  public StackTraceElement[] getFrames() {
+    return frames.clone();
+  }
+
+  /**
+   * @return how many frames passed the filter but were dropped because of the depth limit
+   */
+  public int getOmitted() {
+    return omitted;
+  }
+
+  public CapturedStackTrace getCause() {
+    return cause;
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public boolean equals(final Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof CapturedStackTrace)) {
+      return false;
+    }
+    CapturedStackTrace other = (CapturedStackTrace) obj;
+    if (hash != other.hash) {
+      return false;
+    }
+    if (className == null ? other.className != null : !className.equals(other.className)) {
+      return false;
+    }
+    if (!Arrays.equals(frames, other.frames)) {
+      return false;
+    }
+    return cause == null ? other.cause == null : cause.equals(other.cause);
+  }
+
+  /**
+   * The formatted trace. Built on first use and then reused.
+   *
+   * @return
+   */
+  @Override
+  public String toString() {
+    String str = formatted;
+    if (str == null) {
+      StringBuilder sb = new StringBuilder(64 * (frames.length + 1));
+      appendTo(sb, false);
+      str = sb.toString();
+      formatted = str;
+    }
+    return str;
+  }
+
+  private void appendTo(final StringBuilder sb, final boolean isCause) {
+    if (className != null) {
+      if (isCause) {
+        sb.append("Caused by: ");
+      }
+      sb.append(className);
+      if (message != null) {
+        sb.append(": ").append(message);
+      }
+      sb.append(Util.lineSeparator);
+    }
+    String prefix = className == null ? "" : "\tat ";
+    for (StackTraceElement frame : frames) {
+      sb.append(prefix).append(frame).append(Util.lineSeparator);
+    }
+    if (omitted > 0) {
+      sb.append(className == null ? "" : "\t").append("... ").append(omitted).append(" more")
+              .append(Util.lineSeparator);
+    }
+    if (cause != null) {
+      cause.appendTo(sb, true);
+    }
+  }
+}
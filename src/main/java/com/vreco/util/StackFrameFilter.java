@@ -0,0 +1,15 @@
+package com.vreco.util;
+
+/**
+ * Decides which frames are kept by {@link Util#captureStackTrace(int, StackFrameFilter)}.
+ *
+ * @author mgolowka
+ */
+public interface StackFrameFilter {
+
+  /**
+   * @param frame
+   * @return true to keep the frame
+   */
+  boolean accept(StackTraceElement frame);
+}
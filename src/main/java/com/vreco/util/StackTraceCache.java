@@ -0,0 +1,144 @@
+package com.vreco.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache that turns repeated identical stack traces into one shared string and a count, so an
+ * error storm logs a few distinct traces instead of formatting the same one thousands of times. The
+ * least recently seen trace is evicted once maxEntries is reached.
+ *
+ * <pre>
+ * StackTraceCache.Entry entry = cache.record(Util.captureStackTrace(ex, 20, null));
+ * if (entry.getCount() == 1) {
+ *   logger.error(entry.getTrace());
+ * }
+ * </pre>
+ *
+ * @author mgolowka
+ */
+public class StackTraceCache {
+
+  private final int maxEntries;
+  private final Map<CapturedStackTrace, Entry> entries;
+  private final AtomicLong evictions = new AtomicLong();
+
+  public StackTraceCache(final int maxEntries) {
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("maxEntries must be at least 1");
+    }
+    this.maxEntries = maxEntries;
+    this.entries = new LinkedHashMap<CapturedStackTrace, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<CapturedStackTrace, Entry> eldest) {
+        if (size() > StackTraceCache.this.maxEntries) {
+          evictions.incrementAndGet();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Count one occurrence of the trace. The trace is only formatted the first time it is seen.
+   *
+   * @param trace
+   * @return the entry shared by every occurrence of this trace
+   */
+  public Entry record(final CapturedStackTrace trace) {
+    Entry entry;
+    synchronized (entries) {
+      entry = entries.get(trace);
+      if (entry == null) {
+        entry = new Entry(trace);
+        entries.put(trace, entry);
+      }
+    }
+    entry.increment();
+    return entry;
+  }
+
+  /**
+   * @return the cached traces, most frequent first
+   */
+  public List<Entry> getEntries() {
+    List<Entry> list;
+    synchronized (entries) {
+      list = new ArrayList<>(entries.values());
+    }
+    Collections.sort(list, new Comparator<Entry>() {
+      @Override
+      public int compare(Entry a, Entry b) {
+        return Long.compare(b.getCount(), a.getCount());
+      }
+    });
+    return list;
+  }
+
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  public void clear() {
+    synchronized (entries) {
+      entries.clear();
+    }
+  }
+
+  /**
+   * One distinct trace and how often it has been seen.
+   */
+  public static class Entry {
+
+    private final CapturedStackTrace trace;
+    private final long firstSeen;
+    private final AtomicLong count = new AtomicLong();
+    private volatile long lastSeen;
+
+    Entry(final CapturedStackTrace trace) {
+      this.trace = trace;
+      this.firstSeen = System.currentTimeMillis();
+      this.lastSeen = firstSeen;
+    }
+
+    void increment() {
+      count.incrementAndGet();
+      lastSeen = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the formatted trace, the same String instance for every occurrence
+     */
+    public String getTrace() {
+      return trace.toString();
+    }
+
+    public CapturedStackTrace getCapturedStackTrace() {
+      return trace;
+    }
+
+    public long getCount() {
+      return count.get();
+    }
+
+    public long getFirstSeen() {
+      return firstSeen;
+    }
+
+    public long getLastSeen() {
+      return lastSeen;
+    }
+  }
+}
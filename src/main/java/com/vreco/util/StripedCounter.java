@@ -0,0 +1,52 @@
+package com.vreco.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter spread over a few cache-line padded cells picked by thread, so threads counting at the
+ * same time rarely touch the same cache line. Adds are cheap, reading the total walks every cell.
+ *
+ * @author Ben Aldrich
+ */
+public class StripedCounter {
+
+  private static final int PADDING = 8; // longs per 64 byte cache line
+  private static final int STRIPES = stripes();
+  private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+  public void add(final long x) {
+    cells.getAndAdd(index(), x);
+  }
+
+  public void increment() {
+    add(1);
+  }
+
+  /**
+   * @return the total, not an atomic snapshot when adds are running concurrently
+   */
+  public long sum() {
+    long sum = 0;
+    for (int i = 0; i < STRIPES; i++) {
+      sum += cells.get(i * PADDING);
+    }
+    return sum;
+  }
+
+  public void reset() {
+    for (int i = 0; i < STRIPES; i++) {
+      cells.set(i * PADDING, 0);
+    }
+  }
+
+  private static int index() {
+    long id = Thread.currentThread().getId();
+    int hash = (int) ((id * 0x9E3779B97F4A7C15L) >>> 32);
+    return (hash & (STRIPES - 1)) * PADDING;
+  }
+
+  private static int stripes() {
+    int cpus = Math.min(Runtime.getRuntime().availableProcessors(), 8);
+    return Integer.highestOneBit(Math.max(1, cpus - 1) << 1);
+  }
+}
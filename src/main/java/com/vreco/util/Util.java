@@ -1,8 +1,9 @@
 package com.vreco.util;
 
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 
 /**
@@ -10,6 +11,7 @@ import java.util.Collection;
  */
 public class Util {
   public static final String lineSeparator = System.getProperty("line.separator");
+  private static final int MAX_CAUSES = 16;
 
   public static String getStackTrace(final String msg, final Throwable ex) {
     return (msg == null || msg.isEmpty() ? "" : msg + lineSeparator) + getStackTrace(ex);
@@ -23,15 +25,51 @@ public class Util {
   }
 
   public static String getStackTrace() {
-    // Remove the first element because it will always be a reference to the Util.getStackTrace()
-    // method, which we don't care about. Technically this can be twice because of the return call
-    // here, but I'm not worrying about that for now
-    StackTraceElement[] stes = Thread.currentThread().getStackTrace();
-    StackTraceElement[] trimmedStes = new StackTraceElement[stes.length - 1];
-    for (int i = 1; i < trimmedStes.length; i++) {
-      trimmedStes[i - 1] = stes[i];
+    // Skip the first element because it will always be a reference to the Util.getStackTrace()
+    // method, which we don't care about
+    StackTraceElement[] stes = new Throwable().getStackTrace();
+    return getStackTrace(Arrays.copyOfRange(stes, Math.min(1, stes.length), stes.length));
+  }
+
+  /**
+   * Capture the current thread's stack, starting at the caller, keeping at most maxDepth frames
+   * that pass the filter. Nothing is formatted until the result's toString() is called.
+   *
+   * @param maxDepth
+   * @param filter null keeps every frame
+   * @return
+   * @see StackTraceCache
+   */
+  public static CapturedStackTrace captureStackTrace(final int maxDepth, final StackFrameFilter filter) {
+    // Skip this method's own frame
+    return CapturedStackTrace.capture(null, null, new Throwable().getStackTrace(), 1, maxDepth,
+            filter, null);
+  }
+
+  /**
+   * Capture the stack of a throwable and its causes, keeping at most maxDepth frames of each that
+   * pass the filter. Nothing is formatted until the result's toString() is called.
+   *
+   * @param ex
+   * @param maxDepth
+   * @param filter null keeps every frame
+   * @return
+   * @see StackTraceCache
+   */
+  public static CapturedStackTrace captureStackTrace(final Throwable ex, final int maxDepth,
+          final StackFrameFilter filter) {
+    return captureStackTrace(ex, maxDepth, filter, MAX_CAUSES);
+  }
+
+  private static CapturedStackTrace captureStackTrace(final Throwable ex, final int maxDepth,
+          final StackFrameFilter filter, final int causesLeft) {
+    Throwable causeEx = ex.getCause();
+    CapturedStackTrace cause = null;
+    if (causeEx != null && causeEx != ex && causesLeft > 0) {
+      cause = captureStackTrace(causeEx, maxDepth, filter, causesLeft - 1);
     }
-    return getStackTrace(trimmedStes);
+    return CapturedStackTrace.capture(ex.getClass().getName(), ex.getLocalizedMessage(),
+            ex.getStackTrace(), 0, maxDepth, filter, cause);
   }
 
   public static String getStackTrace(final StackTraceElement stackTrace[]) {
@@ -53,11 +91,10 @@ public class Util {
    * @see Util#join(String, Collection)
    */
   public static String join(final String delimiter, final Object... objs) {
-    ArrayList<Object> list = new ArrayList<Object>();
-    for (Object obj : objs) {
-      list.add(obj);
+    if (objs == null) {
+      return "";
     }
-    return join(delimiter, list);
+    return joinTo(new StringBuilder(estimateLength(objs.length, delimiter)), delimiter, objs).toString();
   }
 
   /**
@@ -75,7 +112,7 @@ public class Util {
 
   /**
    * Joins the collection together into a single string. This was built to be very similar to the
-   * Perl join() function
+   * Perl join() function. Nulls and values that are blank once converted to a string are skipped.
    *
    * @param delimiter
    * @param objs
@@ -85,31 +122,8 @@ public class Util {
     if (collection == null) {
       return "";
     }
-
-    // Remove nulls and empty strings from the list
-    ArrayList<String> cleanedList = new ArrayList<String>();
-    for (Object obj : collection) {
-      if (obj != null) {
-        String val = String.valueOf(obj);
-        if (val == null || val.trim().isEmpty()) {
-          continue;
-        }
-        cleanedList.add(val);
-      }
-    }
-
-    StringBuilder str = new StringBuilder();
-
-    boolean addDelim = false;
-    for (String val : cleanedList) {
-      if (addDelim && delimiter != null) {
-        str.append(delimiter);
-      }
-      str.append(val);
-      addDelim = true;
-    }
-
-    return str.toString();
+    StringBuilder str = new StringBuilder(estimateLength(collection.size(), delimiter));
+    return joinTo(str, delimiter, collection).toString();
   }
 
   /**
@@ -126,14 +140,173 @@ public class Util {
     if (objs.length == 0) {
       return "";
     }
+    int count = 0;
+    for (Collection<?> col : objs) {
+      if (col != null) {
+        count += col.size();
+      }
+    }
+    return joinTo(new StringBuilder(estimateLength(count, delimiter)), delimiter, objs).toString();
+  }
 
-    ArrayList<String> cleanedList = new ArrayList<String>();
+  /**
+   * Same as {@link #join(String, Object...)} but appends straight into an existing buffer.
+   *
+   * @param str
+   * @param delimiter
+   * @param objs
+   * @return str
+   */
+  public static StringBuilder joinTo(final StringBuilder str, final String delimiter,
+          final Object... objs) {
+    try {
+      joinTo((Appendable) str, delimiter, objs);
+      return str;
+    } catch (IOException e) {
+      throw new AssertionError(e); // StringBuilder never throws
+    }
+  }
+
+  /**
+   * Same as {@link #join(String, Collection)} but appends straight into an existing buffer.
+   *
+   * @param str
+   * @param delimiter
+   * @param collection
+   * @return str
+   */
+  public static StringBuilder joinTo(final StringBuilder str, final String delimiter,
+          final Collection<?> collection) {
+    try {
+      joinTo((Appendable) str, delimiter, collection);
+      return str;
+    } catch (IOException e) {
+      throw new AssertionError(e); // StringBuilder never throws
+    }
+  }
 
+  /**
+   * Same as {@link #join(String, Collection...)} but appends straight into an existing buffer.
+   *
+   * @param str
+   * @param delimiter
+   * @param objs
+   * @return str
+   */
+  public static StringBuilder joinTo(final StringBuilder str, final String delimiter,
+          final Collection<?>... objs) {
+    try {
+      joinTo((Appendable) str, delimiter, objs);
+      return str;
+    } catch (IOException e) {
+      throw new AssertionError(e); // StringBuilder never throws
+    }
+  }
+
+  /**
+   * Same as {@link #join(String, Object...)} but appends straight into any Appendable.
+   *
+   * @param out
+   * @param delimiter
+   * @param objs
+   * @return out
+   * @throws IOException if out does
+   */
+  public static <A extends Appendable> A joinTo(final A out, final String delimiter,
+          final Object... objs) throws IOException {
+    if (objs == null) {
+      return out;
+    }
+    boolean addDelim = false;
+    for (Object obj : objs) {
+      addDelim |= append(out, delimiter, obj, addDelim);
+    }
+    return out;
+  }
+
+  /**
+   * Same as {@link #join(String, Collection)} but appends straight into any Appendable.
+   *
+   * @param out
+   * @param delimiter
+   * @param collection
+   * @return out
+   * @throws IOException if out does
+   */
+  public static <A extends Appendable> A joinTo(final A out, final String delimiter,
+          final Collection<?> collection) throws IOException {
+    if (collection == null) {
+      return out;
+    }
+    boolean addDelim = false;
+    for (Object obj : collection) {
+      addDelim |= append(out, delimiter, obj, addDelim);
+    }
+    return out;
+  }
+
+  /**
+   * Same as {@link #join(String, Collection...)} but appends straight into any Appendable.
+   *
+   * @param out
+   * @param delimiter
+   * @param objs
+   * @return out
+   * @throws IOException if out does
+   */
+  public static <A extends Appendable> A joinTo(final A out, final String delimiter,
+          final Collection<?>... objs) throws IOException {
+    boolean addDelim = false;
     for (Collection<?> col : objs) {
-      String collectionStr = join(delimiter, col);
-      cleanedList.add(collectionStr);
+      if (col == null) {
+        continue;
+      }
+      for (Object obj : col) {
+        addDelim |= append(out, delimiter, obj, addDelim);
+      }
     }
+    return out;
+  }
+
+  /**
+   * Append one value, preceded by the delimiter if something was appended before it. Nulls and
+   * blank values are skipped.
+   *
+   * @return true if the value was appended
+   */
+  private static boolean append(final Appendable out, final String delimiter, final Object obj,
+          final boolean addDelim) throws IOException {
+    if (obj == null) {
+      return false;
+    }
+    String val = String.valueOf(obj);
+    if (isBlank(val)) {
+      return false;
+    }
+    if (addDelim && delimiter != null) {
+      out.append(delimiter);
+    }
+    out.append(val);
+    return true;
+  }
+
+  /**
+   * Same as val.trim().isEmpty() without creating the trimmed copy.
+   */
+  private static boolean isBlank(final String val) {
+    if (val == null) {
+      return true;
+    }
+    for (int i = 0; i < val.length(); i++) {
+      if (val.charAt(i) > ' ') {
+        return false;
+      }
+    }
+    return true;
+  }
 
-    return join(delimiter, cleanedList);
+  private static int estimateLength(final int count, final String delimiter) {
+    int perValue = 16 + (delimiter == null ? 0 : delimiter.length());
+    return (int) Math.min(Integer.MAX_VALUE - 8, (long) count * perValue);
   }
 }
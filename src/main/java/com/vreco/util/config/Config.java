@@ -0,0 +1,92 @@
+package com.vreco.util.config;
+
+import com.vreco.util.processor.ProcessorConfig;
+import com.vreco.util.profiling.ProfilingConfig;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * Immutable snapshot of conf/processor.conf: the activemq.* and processor.* keys as a
+ * {@link ProcessorConfig}, the profiling.* keys as a {@link ProfilingConfig}, and the raw values of
+ * every key for settings of your own. Everything is parsed and validated once when the snapshot is
+ * built, an invalid file never becomes a snapshot.
+ *
+ * @author Ben Aldrich
+ */
+public final class Config {
+
+  private final Properties properties;
+  private final ProcessorConfig processor;
+  private final ProfilingConfig profiling;
+
+  /**
+   * @param conf copied, later changes to it are not seen
+   * @throws IllegalArgumentException if a value is missing, malformed or out of range
+   */
+  public Config(final Properties conf) {
+    properties = new Properties();
+    properties.putAll(conf);
+    try {
+      processor = new ProcessorConfig(properties);
+      profiling = new ProfilingConfig(properties);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Malformed number: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Read and validate a properties file such as conf/processor.conf.
+   *
+   * @param path
+   * @return
+   * @throws IOException
+   */
+  public static Config load(final Path path) throws IOException {
+    Properties conf = new Properties();
+    try (InputStream in = Files.newInputStream(path)) {
+      conf.load(in);
+    }
+    return new Config(conf);
+  }
+
+  public ProcessorConfig getProcessor() {
+    return processor;
+  }
+
+  public ProfilingConfig getProfiling() {
+    return profiling;
+  }
+
+  /**
+   * @param key
+   * @return the raw value, null if not set
+   */
+  public String getProperty(final String key) {
+    return properties.getProperty(key);
+  }
+
+  /**
+   * @param key
+   * @param defaultValue
+   * @return the raw value, defaultValue if not set
+   */
+  public String getProperty(final String key, final String defaultValue) {
+    return properties.getProperty(key, defaultValue);
+  }
+
+  /**
+   * @return true if both were read from the same keys and values
+   */
+  @Override
+  public boolean equals(final Object o) {
+    return o instanceof Config && properties.equals(((Config) o).properties);
+  }
+
+  @Override
+  public int hashCode() {
+    return properties.hashCode();
+  }
+}
@@ -0,0 +1,18 @@
+package com.vreco.util.config;
+
+/**
+ * Told by a {@link ConfigWatcher} when a new snapshot replaced the old one.
+ *
+ * @author Ben Aldrich
+ */
+public interface ConfigListener {
+
+  /**
+   * Called on the watcher thread after the swap, {@link ConfigWatcher#get()} already returns
+   * current.
+   *
+   * @param previous
+   * @param current
+   */
+  void configChanged(Config previous, Config current);
+}
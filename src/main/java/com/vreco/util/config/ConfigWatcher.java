@@ -0,0 +1,175 @@
+package com.vreco.util.config;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.log4j.Logger;
+
+/**
+ * Holds the current {@link Config} snapshot of a file and swaps in a new one when the file changes.
+ * Readers call {@link #get()}, a single volatile read, and use the plain fields of the snapshot, so
+ * nothing is parsed on the hot path. A change that does not parse or validate is logged and the
+ * previous snapshot stays in place.
+ *
+ * <pre>
+ * final ConfigWatcher watcher = new ConfigWatcher(Paths.get("conf/processor.conf"));
+ * Profiler.initialize(watcher.get().getProfiling());
+ * final Processor processor = new Processor(watcher.get().getProcessor(), handler);
+ * watcher.addListener(new ConfigListener() {
+ *   public void configChanged(Config previous, Config current) {
+ *     if (!current.getProfiling().equals(previous.getProfiling())) {
+ *       Profiler.initialize(current.getProfiling());
+ *     }
+ *     processor.reconfigure(current.getProcessor());
+ *   }
+ * });
+ * watcher.start();
+ * </pre>
+ *
+ * @author Ben Aldrich
+ */
+public class ConfigWatcher implements AutoCloseable {
+
+  private static Logger logger = Logger.getLogger(ConfigWatcher.class);
+  private final Path file;
+  private final AtomicReference<Config> current = new AtomicReference<>();
+  private final List<ConfigListener> listeners = new CopyOnWriteArrayList<>();
+  private WatchService watchService;
+  private Thread watcher;
+
+  /**
+   * Load the file. Nothing is watched until {@link #start()}.
+   *
+   * @param file
+   * @throws IOException if the file cannot be read
+   * @throws IllegalArgumentException if it does not validate
+   */
+  public ConfigWatcher(final Path file) throws IOException {
+    this.file = file.toAbsolutePath();
+    current.set(Config.load(this.file));
+  }
+
+  /**
+   * @return the current snapshot, never null
+   */
+  public Config get() {
+    return current.get();
+  }
+
+  public void addListener(final ConfigListener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(final ConfigListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Watch the directory of the file and reload whenever the file is written or replaced.
+   *
+   * @throws IOException
+   */
+  public synchronized void start() throws IOException {
+    if (watcher != null) {
+      return;
+    }
+    watchService = FileSystems.getDefault().newWatchService();
+    file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY);
+    watcher = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        watch();
+      }
+    }, "ConfigWatcher " + file.getFileName());
+    watcher.setDaemon(true);
+    watcher.start();
+  }
+
+  private void watch() {
+    try {
+      while (true) {
+        WatchKey key = watchService.take();
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+          if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                  || file.getFileName().equals(event.context())) {
+            changed = true;
+          }
+        }
+        if (changed) {
+          reload();
+        }
+        if (!key.reset()) {
+          logger.error("Stopped watching " + file + ", its directory is gone");
+          return;
+        }
+      }
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      // closed
+    }
+  }
+
+  /**
+   * Read the file again and swap in the new snapshot if it is valid and differs from the current
+   * one. Called by the watcher, or directly to reload on demand.
+   *
+   * @return true if a new snapshot was swapped in
+   */
+  public boolean reload() {
+    Config loaded;
+    try {
+      loaded = Config.load(file);
+    } catch (IOException | RuntimeException e) {
+      logger.error("Keeping the current configuration, failed to load " + file, e);
+      return false;
+    }
+    Config previous = current.get();
+    if (loaded.equals(previous) || !current.compareAndSet(previous, loaded)) {
+      return false;
+    }
+    logger.info("Reloaded configuration from " + file);
+    for (ConfigListener listener : listeners) {
+      try {
+        listener.configChanged(previous, loaded);
+      } catch (RuntimeException e) {
+        logger.error("Configuration listener failed", e);
+      }
+    }
+    return true;
+  }
+
+  public Path getFile() {
+    return file;
+  }
+
+  /**
+   * Stop watching. The current snapshot stays available.
+   */
+  @Override
+  public synchronized void close() {
+    if (watchService != null) {
+      try {
+        watchService.close();
+      } catch (IOException e) {
+        logger.warn("Failed to close watch service", e);
+      }
+    }
+    if (watcher != null) {
+      try {
+        watcher.join(5000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      watcher = null;
+    }
+  }
+}
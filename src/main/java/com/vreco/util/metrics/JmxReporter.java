@@ -0,0 +1,151 @@
+package com.vreco.util.metrics;
+
+import com.vreco.util.mq.DestinationStatistics;
+import com.vreco.util.profiling.ProfileSnapshot;
+import com.vreco.util.profiling.ProfileTag;
+import com.vreco.util.profiling.Profiler;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.apache.log4j.Logger;
+
+/**
+ * Registers an MBean for every Profiler tag and mq destination it is told about. The MBeans read
+ * the live statistics, so each report only registers what is new or replaced, and unregisters
+ * what is gone.
+ *
+ * <pre>
+ * com.vreco.util:type=Profiler,tag="send"
+ * com.vreco.util:type=Destination,name="VirtualTopic.test"
+ * </pre>
+ *
+ * @author Ben Aldrich
+ */
+public class JmxReporter implements MetricsReporter, AutoCloseable {
+
+  public static final String DOMAIN = "com.vreco.util";
+  private static Logger logger = Logger.getLogger(JmxReporter.class);
+  private final MBeanServer server;
+  private final Map<String, Registration> registered = new HashMap<>();
+
+  public JmxReporter() {
+    this(ManagementFactory.getPlatformMBeanServer());
+  }
+
+  public JmxReporter(final MBeanServer server) {
+    this.server = server;
+  }
+
+  @Override
+  public synchronized void report(final SortedMap<String, ProfileSnapshot> profiles,
+          final SortedMap<String, DestinationStatistics> destinations) {
+    Set<String> current = new HashSet<>();
+    for (String tag : profiles.keySet()) {
+      String id = "Profiler/" + tag;
+      current.add(id);
+      ProfileTag source = Profiler.tag(tag);
+      if (!isRegistered(id, source)) {
+        register(id, "Profiler", "tag", tag, source, new ProfileTagStatistics(source));
+      }
+    }
+    for (DestinationStatistics stats : destinations.values()) {
+      String id = "Destination/" + stats.getDestination();
+      current.add(id);
+      if (!isRegistered(id, stats)) {
+        register(id, "Destination", "name", stats.getDestination(), stats, stats);
+      }
+    }
+    Iterator<Map.Entry<String, Registration>> it = registered.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, Registration> entry = it.next();
+      if (!current.contains(entry.getKey())) {
+        it.remove();
+        unregister(entry.getValue().name);
+      }
+    }
+  }
+
+  /**
+   * @param type
+   * @param key
+   * @param value
+   * @return the name the MBean is registered under
+   */
+  public static ObjectName getObjectName(final String type, final String key, final String value)
+          throws JMException {
+    return new ObjectName(DOMAIN + ":type=" + type + "," + key + "=" + ObjectName.quote(value));
+  }
+
+  /**
+   * @return true if the MBean registered under id still reads source
+   */
+  private boolean isRegistered(final String id, final Object source) {
+    Registration registration = registered.get(id);
+    return registration != null && registration.source == source;
+  }
+
+  /**
+   * Register mbean under id, replacing what we registered there before. Failures are logged and
+   * not remembered, so the next report tries again.
+   */
+  private void register(final String id, final String type, final String key, final String value,
+          final Object source, final Object mbean) {
+    Registration previous = registered.remove(id);
+    if (previous != null) {
+      unregister(previous.name);
+    }
+    try {
+      ObjectName name = getObjectName(type, key, value);
+      if (server.isRegistered(name)) {
+        logger.debug("MBean " + name + " is registered by someone else, skipping");
+        return;
+      }
+      server.registerMBean(mbean, name);
+      registered.put(id, new Registration(name, source));
+    } catch (JMException e) {
+      logger.warn("Failed to register MBean for " + type + " " + value, e);
+    }
+  }
+
+  private void unregister(final ObjectName name) {
+    try {
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+    } catch (JMException e) {
+      logger.warn("Failed to unregister MBean " + name, e);
+    }
+  }
+
+  /**
+   * Unregister every MBean this reporter registered.
+   */
+  @Override
+  public synchronized void close() {
+    for (Registration registration : registered.values()) {
+      unregister(registration.name);
+    }
+    registered.clear();
+  }
+
+  /**
+   * Where an MBean is registered, and the statistics object it reads.
+   */
+  private static class Registration {
+
+    private final ObjectName name;
+    private final Object source;
+
+    Registration(final ObjectName name, final Object source) {
+      this.name = name;
+      this.source = source;
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package com.vreco.util.metrics;
+
+import com.vreco.util.mq.DestinationStatistics;
+import com.vreco.util.profiling.ProfileSnapshot;
+import com.vreco.util.profiling.Profiler;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * Collects Profiler and mq statistics on an interval and hands them to every registered
+ * {@link MetricsReporter}.
+ *
+ * <pre>
+ * MetricsPublisher publisher = new MetricsPublisher(10000);
+ * publisher.addReporter(new JmxReporter());
+ * publisher.start();
+ * </pre>
+ *
+ * @author Ben Aldrich
+ */
+public class MetricsPublisher implements AutoCloseable {
+
+  private static Logger logger = Logger.getLogger(MetricsPublisher.class);
+  private final long intervalMillis;
+  private final List<MetricsReporter> reporters = new CopyOnWriteArrayList<>();
+  private ScheduledExecutorService scheduler;
+
+  public MetricsPublisher(final long intervalMillis) {
+    if (intervalMillis < 1) {
+      throw new IllegalArgumentException("intervalMillis must be at least 1");
+    }
+    this.intervalMillis = intervalMillis;
+  }
+
+  public void addReporter(final MetricsReporter reporter) {
+    reporters.add(reporter);
+  }
+
+  public void removeReporter(final MetricsReporter reporter) {
+    reporters.remove(reporter);
+  }
+
+  /**
+   * Publish immediately and then every interval.
+   */
+  public synchronized void start() {
+    if (scheduler != null) {
+      return;
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "MetricsPublisher");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    scheduler.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        publish();
+      }
+    }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Collect the statistics once and report them. A failing reporter does not stop the others.
+   */
+  public void publish() {
+    SortedMap<String, ProfileSnapshot> profiles = Profiler.snapshot();
+    SortedMap<String, DestinationStatistics> destinations = DestinationStatistics.getAll();
+    for (MetricsReporter reporter : reporters) {
+      try {
+        reporter.report(profiles, destinations);
+      } catch (RuntimeException e) {
+        logger.error("Metrics reporter " + reporter.getClass().getName() + " failed", e);
+      }
+    }
+  }
+
+  /**
+   * Stop publishing. Reporters are not closed.
+   */
+  @Override
+  public synchronized void close() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+}
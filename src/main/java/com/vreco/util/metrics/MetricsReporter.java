@@ -0,0 +1,21 @@
+package com.vreco.util.metrics;
+
+import com.vreco.util.mq.DestinationStatistics;
+import com.vreco.util.profiling.ProfileSnapshot;
+import java.util.SortedMap;
+
+/**
+ * Receives the current Profiler and mq statistics from a {@link MetricsPublisher}. Implement this
+ * to ship the numbers somewhere other than JMX.
+ *
+ * @author Ben Aldrich
+ */
+public interface MetricsReporter {
+
+  /**
+   * @param profiles Profiler statistics by tag
+   * @param destinations Producer / Consumer counters by destination name
+   */
+  void report(SortedMap<String, ProfileSnapshot> profiles,
+          SortedMap<String, DestinationStatistics> destinations);
+}
@@ -0,0 +1,64 @@
+package com.vreco.util.metrics;
+
+import com.vreco.util.profiling.ProfileTag;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Live statistics of a Profiler tag, every attribute read takes a fresh snapshot.
+ *
+ * @author Ben Aldrich
+ */
+public class ProfileTagStatistics implements ProfileTagStatisticsMBean {
+
+  private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+  private final ProfileTag tag;
+
+  public ProfileTagStatistics(final ProfileTag tag) {
+    this.tag = tag;
+  }
+
+  @Override
+  public String getTag() {
+    return tag.getName();
+  }
+
+  @Override
+  public long getCount() {
+    return tag.snapshot().getCount();
+  }
+
+  @Override
+  public double getMin() {
+    return tag.snapshot().getMin() / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getMax() {
+    return tag.snapshot().getMax() / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getMean() {
+    return tag.snapshot().getMean() / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getP50() {
+    return tag.snapshot().getP50() / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getP90() {
+    return tag.snapshot().getP90() / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getP99() {
+    return tag.snapshot().getP99() / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getP999() {
+    return tag.snapshot().getP999() / NANOS_PER_MILLI;
+  }
+}
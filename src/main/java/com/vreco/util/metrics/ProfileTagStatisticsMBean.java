@@ -0,0 +1,27 @@
+package com.vreco.util.metrics;
+
+/**
+ * JMX view of one Profiler tag. Durations are in milliseconds.
+ *
+ * @author Ben Aldrich
+ */
+public interface ProfileTagStatisticsMBean {
+
+  String getTag();
+
+  long getCount();
+
+  double getMin();
+
+  double getMax();
+
+  double getMean();
+
+  double getP50();
+
+  double getP90();
+
+  double getP99();
+
+  double getP999();
+}
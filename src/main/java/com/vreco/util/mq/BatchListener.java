@@ -0,0 +1,27 @@
+package com.vreco.util.mq;
+
+import java.util.List;
+import javax.jms.JMSException;
+
+/**
+ * Callback for the outcome of each batch committed by a {@link BatchingProducer}.
+ *
+ * @author Ben Aldrich
+ */
+public interface BatchListener {
+
+  /**
+   * Called after the batch has been committed to the broker.
+   *
+   * @param batch
+   */
+  void batchCommitted(List<String> batch);
+
+  /**
+   * Called after the batch has been rolled back, none of the messages were delivered.
+   *
+   * @param batch
+   * @param e
+   */
+  void batchFailed(List<String> batch, JMSException e);
+}
@@ -0,0 +1,155 @@
+package com.vreco.util.mq;
+
+import com.vreco.util.shutdownhooks.ShutdownParticipant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.jms.JMSException;
+
+/**
+ * Collects TextMessages and commits them through a transacted {@link Producer} every maxBatchSize
+ * messages or every maxBatchMillis, whichever comes first. The wrapped producer must already be
+ * connected with transactions enabled, and should not be used directly while the batcher owns it.
+ *
+ * @author Ben Aldrich
+ */
+public class BatchingProducer implements ShutdownParticipant {
+
+  private final Producer producer;
+  private final int maxBatchSize;
+  private final long maxBatchMillis;
+  private final BatchListener listener;
+  private final ScheduledExecutorService timer;
+  private List<String> pending;
+  private ScheduledFuture<?> scheduledFlush;
+  private boolean closed = false;
+  private boolean stopped = false;
+
+  public BatchingProducer(final Producer producer, final int maxBatchSize, final long maxBatchMillis,
+          final BatchListener listener) {
+    if (maxBatchSize < 1) {
+      throw new IllegalArgumentException("maxBatchSize must be at least 1");
+    }
+    if (maxBatchMillis < 1) {
+      throw new IllegalArgumentException("maxBatchMillis must be at least 1");
+    }
+    this.producer = producer;
+    this.maxBatchSize = maxBatchSize;
+    this.maxBatchMillis = maxBatchMillis;
+    this.listener = listener;
+    this.pending = new ArrayList<>(maxBatchSize);
+    this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "BatchingProducer flush");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   * Queue a message for the next batch, committing the batch if it is full.
+   *
+   * @param message
+   * @throws JMSException if the batcher has been closed or stopped taking messages
+   */
+  public synchronized void send(final String message) throws JMSException {
+    if (closed) {
+      throw new javax.jms.IllegalStateException("BatchingProducer is closed");
+    }
+    if (stopped) {
+      throw new javax.jms.IllegalStateException("BatchingProducer is shutting down, intake stopped");
+    }
+    if (message == null) {
+      return;
+    }
+    pending.add(message);
+    if (pending.size() >= maxBatchSize) {
+      flush();
+    } else if (scheduledFlush == null) {
+      scheduledFlush = timer.schedule(new Runnable() {
+        @Override
+        public void run() {
+          flush();
+        }
+      }, maxBatchMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Commit whatever is pending right now. The outcome is reported to the listener.
+   *
+   * @return true if the batch was committed or there was nothing to send
+   */
+  public synchronized boolean flush() {
+    if (scheduledFlush != null) {
+      scheduledFlush.cancel(false);
+      scheduledFlush = null;
+    }
+    if (pending.isEmpty()) {
+      return true;
+    }
+    List<String> batch = pending;
+    pending = new ArrayList<>(maxBatchSize);
+    try {
+      producer.sendBatch(batch);
+    } catch (JMSException e) {
+      if (listener != null) {
+        listener.batchFailed(batch, e);
+      }
+      return false;
+    }
+    if (listener != null) {
+      listener.batchCommitted(batch);
+    }
+    return true;
+  }
+
+  /**
+   * Number of messages waiting for the next commit.
+   *
+   * @return
+   */
+  public synchronized int getPendingCount() {
+    return pending.size();
+  }
+
+  /**
+   * Refuse new messages, pending ones are committed by {@link #drain(long)} or {@link #close()}.
+   */
+  @Override
+  public synchronized void stopIntake() {
+    stopped = true;
+  }
+
+  /**
+   * Commit whatever is pending.
+   *
+   * @param millis not used, the commit is a single blocking call
+   * @return true if the batch was committed or there was nothing to send
+   */
+  @Override
+  public boolean drain(final long millis) {
+    return flush();
+  }
+
+  /**
+   * Flush anything pending and stop the flush timer. The wrapped producer is left open.
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      flush();
+    }
+    timer.shutdownNow();
+  }
+}
@@ -0,0 +1,232 @@
+package com.vreco.util.mq;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * Deflate compression of message bodies. Compressed messages are sent as a BytesMessage flagged
+ * with the {@link #PROPERTY} property, and the uncompressed length in {@link #LENGTH_PROPERTY} so
+ * the receiver can inflate into an exactly sized array. Each thread reuses its own Deflater,
+ * Inflater and scratch buffer. Both the length property and the inflated body are checked against
+ * maxInflatedLength, since they come from the sender.
+ *
+ * @author Ben Aldrich
+ */
+public final class Compression {
+
+  /**
+   * Message property naming the compression of the body.
+   */
+  public static final String PROPERTY = "VrecoCompression";
+  /**
+   * Message property holding the length of the body before compression.
+   */
+  public static final String LENGTH_PROPERTY = "VrecoUncompressedLength";
+  public static final String DEFLATE = "deflate";
+  public static final int DEFAULT_MAX_INFLATED_LENGTH = 64 * 1024 * 1024;
+  static final Charset UTF8 = Charset.forName("UTF-8");
+  /**
+   * Scratch buffers that grew past this are dropped after use rather than kept for the thread.
+   */
+  private static final int MAX_RETAINED = 1024 * 1024;
+  private static volatile int maxInflatedLength = DEFAULT_MAX_INFLATED_LENGTH;
+  private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+    @Override
+    protected Deflater initialValue() {
+      return new Deflater();
+    }
+  };
+  private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+    @Override
+    protected Inflater initialValue() {
+      return new Inflater();
+    }
+  };
+  private static final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[8192];
+    }
+  };
+
+  private Compression() {
+  }
+
+  /**
+   * Deflate part of an array.
+   *
+   * @param data
+   * @param off
+   * @param len
+   * @param level 0-9, or Deflater.DEFAULT_COMPRESSION
+   * @return the compressed bytes
+   */
+  public static byte[] deflate(final byte[] data, final int off, final int len, final int level) {
+    Deflater deflater = deflaters.get();
+    deflater.reset();
+    deflater.setLevel(level);
+    deflater.setInput(data, off, len);
+    deflater.finish();
+    byte[] out = scratch.get();
+    int size = 0;
+    while (!deflater.finished()) {
+      if (size == out.length) {
+        out = Arrays.copyOf(out, out.length * 2);
+      }
+      size += deflater.deflate(out, size, out.length - size);
+    }
+    byte[] compressed = Arrays.copyOf(out, size);
+    retain(out);
+    return compressed;
+  }
+
+  /**
+   * Inflate part of an array.
+   *
+   * @param data
+   * @param off
+   * @param len
+   * @param expectedLength the uncompressed length if known, otherwise -1
+   * @return the uncompressed bytes
+   * @throws DataFormatException if the stream is corrupt, or the expected or inflated length is
+   * negative or over maxInflatedLength
+   */
+  public static byte[] inflate(final byte[] data, final int off, final int len,
+          final int expectedLength) throws DataFormatException {
+    int max = maxInflatedLength;
+    if (expectedLength < -1 || expectedLength > max) {
+      throw new DataFormatException("Bad uncompressed length " + expectedLength + ", limit is "
+              + max);
+    }
+    Inflater inflater = inflaters.get();
+    inflater.reset();
+    inflater.setInput(data, off, len);
+    byte[] out = expectedLength >= 0 ? new byte[expectedLength] : scratch.get();
+    int size = 0;
+    while (!inflater.finished()) {
+      if (size == out.length) {
+        if (size >= max) {
+          throw new DataFormatException("Inflated length over the limit of " + max);
+        }
+        out = Arrays.copyOf(out, (int) Math.min(Math.max(out.length * 2L, 64), max));
+      }
+      int n = inflater.inflate(out, size, out.length - size);
+      if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+        throw new DataFormatException("Truncated deflate stream");
+      }
+      size += n;
+    }
+    if (expectedLength >= 0 && size == out.length) {
+      return out;
+    }
+    byte[] inflated = Arrays.copyOf(out, size);
+    if (expectedLength < 0) {
+      retain(out);
+    }
+    return inflated;
+  }
+
+  /**
+   * Refuse to inflate bodies longer than this, protecting the receiver from a bad length property
+   * or a deflate bomb. Defaults to {@link #DEFAULT_MAX_INFLATED_LENGTH}.
+   *
+   * @param max bytes
+   */
+  public static void setMaxInflatedLength(final int max) {
+    if (max < 0) {
+      throw new IllegalArgumentException("max must not be negative");
+    }
+    maxInflatedLength = max;
+  }
+
+  public static int getMaxInflatedLength() {
+    return maxInflatedLength;
+  }
+
+  /**
+   * Is this message compressed by a Producer with compression on.
+   *
+   * @param msg
+   * @return
+   * @throws JMSException
+   */
+  public static boolean isCompressed(final Message msg) throws JMSException {
+    return msg instanceof BytesMessage && DEFLATE.equals(msg.getStringProperty(PROPERTY));
+  }
+
+  /**
+   * Compress a body into a BytesMessage, flagging it so it can be inflated on the other side.
+   *
+   * @param body
+   * @param len
+   * @param level
+   * @param msg
+   * @return the compressed length, or -1 if compression did not make the body smaller and nothing
+   * was written
+   * @throws JMSException
+   */
+  static int write(final byte[] body, final int len, final int level, final BytesMessage msg)
+          throws JMSException {
+    byte[] compressed = deflate(body, 0, len, level);
+    if (compressed.length >= len) {
+      return -1;
+    }
+    msg.setStringProperty(PROPERTY, DEFLATE);
+    msg.setIntProperty(LENGTH_PROPERTY, len);
+    msg.writeBytes(compressed);
+    return compressed.length;
+  }
+
+  /**
+   * Read and inflate the body of a compressed message.
+   *
+   * @param msg
+   * @return
+   * @throws JMSException
+   */
+  static byte[] read(final BytesMessage msg) throws JMSException {
+    long length = msg.getBodyLength();
+    if (length > Integer.MAX_VALUE) {
+      throw new JMSException("Message body too large: " + length);
+    }
+    byte[] body = new byte[(int) length];
+    msg.readBytes(body);
+    int expected = msg.propertyExists(LENGTH_PROPERTY) ? msg.getIntProperty(LENGTH_PROPERTY) : -1;
+    try {
+      return inflate(body, 0, body.length, expected);
+    } catch (DataFormatException e) {
+      JMSException ex = new JMSException("Failed to inflate message body: " + e.getMessage());
+      ex.setLinkedException(e);
+      throw ex;
+    }
+  }
+
+  /**
+   * Replace a compressed message with a TextMessage holding its inflated body. Anything else is
+   * returned as is.
+   *
+   * @param msg
+   * @return
+   * @throws JMSException
+   */
+  static Message decompress(final Message msg) throws JMSException {
+    if (msg == null || !isCompressed(msg)) {
+      return msg;
+    }
+    return new InflatedTextMessage((BytesMessage) msg, new String(read((BytesMessage) msg), UTF8));
+  }
+
+  private static void retain(final byte[] buffer) {
+    if (buffer.length <= MAX_RETAINED) {
+      scratch.set(buffer);
+    } else {
+      scratch.remove();
+    }
+  }
+}
@@ -0,0 +1,246 @@
+package com.vreco.util.mq;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+import javax.jms.Session;
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.log4j.Logger;
+
+/**
+ * Shares a small pool of started connections to one broker between Producers and Consumers, so a
+ * service with many of them opens a few sockets instead of one each. Connections are created on
+ * first use and handed to the least used slot. Each acquire must be matched by a release, and a
+ * connection is closed when its last user releases it. A connection that fails is dropped from the
+ * pool so the next acquire opens a fresh one.
+ *
+ * <pre>
+ * ConnectionManager manager = new ConnectionManager(url, 4);
+ * Consumer consumer = new Consumer(url);
+ * consumer.setConnectionManager(manager);
+ * consumer.connect("queue", "jobs");
+ * </pre>
+ *
+ * @author Ben Aldrich
+ */
+public class ConnectionManager implements AutoCloseable {
+
+  private static Logger logger = Logger.getLogger(ConnectionManager.class);
+  private final ConnectionFactory connectionFactory;
+  private final String url;
+  private final Connection[] connections;
+  private final int[] references;
+  private final Map<Connection, Integer> slots = new IdentityHashMap<>();
+  private final Map<Session, Connection> sessions = new IdentityHashMap<>();
+  private long created = 0;
+  private boolean closed = false;
+
+  /**
+   * @param url broker url
+   * @param poolSize maximum number of connections to open
+   */
+  public ConnectionManager(final String url, final int poolSize) {
+    if (poolSize < 1) {
+      throw new IllegalArgumentException("poolSize must be at least 1");
+    }
+    this.url = url;
+    this.connectionFactory = new ActiveMQConnectionFactory(url);
+    this.connections = new Connection[poolSize];
+    this.references = new int[poolSize];
+  }
+
+  /**
+   * Get a started connection, opening one if the least used slot is empty. Release it with
+   * {@link #release(Connection)} rather than closing it.
+   *
+   * @return
+   * @throws JMSException
+   */
+  public synchronized Connection acquire() throws JMSException {
+    if (closed) {
+      throw new javax.jms.IllegalStateException("ConnectionManager is closed");
+    }
+    int slot = 0;
+    for (int i = 1; i < connections.length && references[slot] > 0; i++) {
+      if (references[i] < references[slot]) {
+        slot = i;
+      }
+    }
+    if (connections[slot] == null) {
+      connections[slot] = open(slot);
+    }
+    references[slot]++;
+    return connections[slot];
+  }
+
+  /**
+   * Create a session on a pooled connection. The connection is released when the session is closed
+   * with {@link #release(Session)}.
+   *
+   * @param transacted
+   * @param acknowledgeMode
+   * @return
+   * @throws JMSException
+   */
+  public Session createSession(final boolean transacted, final int acknowledgeMode)
+          throws JMSException {
+    Connection connection = acquire();
+    try {
+      Session session = connection.createSession(transacted, acknowledgeMode);
+      synchronized (this) {
+        sessions.put(session, connection);
+      }
+      return session;
+    } catch (JMSException e) {
+      release(connection);
+      throw e;
+    }
+  }
+
+  /**
+   * Close a session from {@link #createSession(boolean, int)} and release its connection.
+   *
+   * @param session
+   */
+  public void release(final Session session) {
+    try {
+      session.close();
+    } catch (Exception e) {
+      logger.warn("Failed to close session", e);
+    }
+    Connection connection;
+    synchronized (this) {
+      connection = sessions.remove(session);
+    }
+    if (connection != null) {
+      release(connection);
+    }
+  }
+
+  /**
+   * Give back a connection from {@link #acquire()}, closing it if nobody else is using it.
+   *
+   * @param connection
+   */
+  public void release(final Connection connection) {
+    Connection toClose = null;
+    synchronized (this) {
+      Integer slot = slots.get(connection);
+      if (slot == null) {
+        // already dropped after a failure or a close of the manager
+        toClose = connection;
+      } else if (--references[slot] == 0) {
+        toClose = connection;
+        connections[slot] = null;
+        slots.remove(connection);
+      }
+    }
+    closeQuietly(toClose);
+  }
+
+  private Connection open(final int slot) throws JMSException {
+    final Connection connection = connectionFactory.createConnection();
+    connection.setExceptionListener(new ExceptionListener() {
+      @Override
+      public void onException(JMSException e) {
+        logger.error("Connection to " + url + " failed, dropping it from the pool", e);
+        drop(connection);
+      }
+    });
+    try {
+      connection.start();
+    } catch (JMSException e) {
+      closeQuietly(connection);
+      throw e;
+    }
+    slots.put(connection, slot);
+    created++;
+    return connection;
+  }
+
+  /**
+   * Forget a failed connection so the next acquire opens a new one. Its users still hold it and
+   * close it when they release it.
+   */
+  private synchronized void drop(final Connection connection) {
+    Integer slot = slots.remove(connection);
+    if (slot != null) {
+      connections[slot] = null;
+      references[slot] = 0;
+    }
+  }
+
+  /**
+   * Number of connections currently open.
+   *
+   * @return
+   */
+  public synchronized int getConnectionCount() {
+    return slots.size();
+  }
+
+  /**
+   * Number of connections opened since this manager was created, including ones since closed.
+   *
+   * @return
+   */
+  public synchronized long getCreatedCount() {
+    return created;
+  }
+
+  /**
+   * Number of outstanding acquires across all connections.
+   *
+   * @return
+   */
+  public synchronized int getReferenceCount() {
+    int count = 0;
+    for (int reference : references) {
+      count += reference;
+    }
+    return count;
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  public int getPoolSize() {
+    return connections.length;
+  }
+
+  /**
+   * Close every pooled connection, whether or not it is still in use.
+   */
+  @Override
+  public void close() {
+    Connection[] toClose;
+    synchronized (this) {
+      closed = true;
+      toClose = connections.clone();
+      for (int i = 0; i < connections.length; i++) {
+        connections[i] = null;
+        references[i] = 0;
+      }
+      slots.clear();
+      sessions.clear();
+    }
+    for (Connection connection : toClose) {
+      closeQuietly(connection);
+    }
+  }
+
+  private static void closeQuietly(final Connection connection) {
+    if (connection == null) {
+      return;
+    }
+    try {
+      connection.close();
+    } catch (Exception e) {
+      logger.warn("Failed to close connection", e);
+    }
+  }
+}
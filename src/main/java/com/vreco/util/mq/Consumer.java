@@ -1,15 +1,20 @@
 package com.vreco.util.mq;
 
+import com.vreco.util.shutdownhooks.ShutdownParticipant;
+import java.util.ArrayList;
+import java.util.List;
 import javax.jms.*;
 import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.log4j.Logger;
 
 /**
  * Basic connection library to connect to AMQ and consume messages.
  *
  * @author Ben Aldrich
  */
-public class Consumer implements AutoCloseable {
+public class Consumer implements ShutdownParticipant {
 
+  private static Logger logger = Logger.getLogger(Consumer.class);
   private MessageConsumer consumer;
   private Connection connection;
   private Session session;
@@ -17,8 +22,19 @@ public class Consumer implements AutoCloseable {
   private boolean tempQueue = false;
   private boolean transactions = false;
   private boolean persistence = false;
+  private boolean instrumentation = false;
   private long timeout = 5000;
   private String url;
+  private final List<Session> listenerSessions = new ArrayList<>();
+  private final List<MessageConsumer> listenerConsumers = new ArrayList<>();
+  private final InFlight inFlight = new InFlight();
+  private volatile boolean intakeStopped = false;
+  private DestinationStatistics stats;
+  private final List<DestinationStatistics> heldStats = new ArrayList<>();
+  private ConnectionManager connectionManager;
+  private boolean managedConnection = false;
+  private RetryPolicy retryPolicy;
+  private RetryStage retryStage;
 
   public Consumer(String url) {
     this.url = url;
@@ -27,15 +43,35 @@ public class Consumer implements AutoCloseable {
   public void connect(String type, String queue) throws JMSException {
     setConnection();
     setSession();
-    destination =  session.createQueue(queue);
+    destination = createDestination(queue);
     consumer = session.createConsumer(destination);
+    stats = holdStatistics(queue);
+    setRetryStage();
   }
 
   public void connect(String type, String queue, Connection connection) throws JMSException {
     this.connection = connection;
     setSession();
-    destination =  session.createQueue(queue);
+    destination = createDestination(queue);
     consumer = session.createConsumer(destination);
+    stats = holdStatistics(queue);
+    setRetryStage();
+  }
+
+  /**
+   * The queue to consume from, or a new temporary queue when
+   * {@link #setUseTemporaryQueue(boolean)} is on, in which case the name is only used for
+   * statistics. Hand the temporary queue out with {@link #getDestination()} as a JMSReplyTo.
+   *
+   * @param queue
+   * @return
+   * @throws JMSException
+   */
+  protected Destination createDestination(String queue) throws JMSException {
+    if (tempQueue) {
+      return session.createTemporaryQueue();
+    }
+    return session.createQueue(queue);
   }
 
   protected void setSession() throws JMSException {
@@ -44,7 +80,32 @@ public class Consumer implements AutoCloseable {
     }
   }
 
+  /**
+   * Keep the statistics of a destination registered until we close.
+   */
+  private DestinationStatistics holdStatistics(String queue) {
+    DestinationStatistics held = DestinationStatistics.acquire(queue);
+    synchronized (heldStats) {
+      heldStats.add(held);
+    }
+    return held;
+  }
+
+  protected void setRetryStage() throws JMSException {
+    if (retryPolicy != null && retryStage == null) {
+      retryStage = new RetryStage(connection, retryPolicy);
+    }
+  }
+
   protected void setConnection() throws JMSException {
+    if (connection != null) {
+      return;
+    }
+    if (connectionManager != null) {
+      connection = connectionManager.acquire();
+      managedConnection = true;
+      return;
+    }
     ConnectionFactory connectionFactory =
             new ActiveMQConnectionFactory(url);
     connection = connectionFactory.createConnection();
@@ -52,6 +113,96 @@ public class Consumer implements AutoCloseable {
   }
 
 
+  /**
+   * Push mode. Creates concurrency sessions on our connection, each with its own listener, so
+   * messages are dispatched to the handler concurrently instead of polled with receive(). Each
+   * message is acknowledged (or committed when transactions are on) after the handler returns, and
+   * recovered (or rolled back) for redelivery if it throws.
+   *
+   * @param type
+   * @param queue
+   * @param concurrency number of sessions, and so the number of messages handled at once
+   * @param handler
+   * @throws JMSException
+   */
+  public void listen(String type, String queue, int concurrency, MessageHandler handler)
+          throws JMSException {
+    if (concurrency < 1) {
+      throw new IllegalArgumentException("concurrency must be at least 1");
+    }
+    if (connection == null) {
+      setConnection();
+    }
+    setRetryStage();
+    try {
+      for (int i = 0; i < concurrency; i++) {
+        Session listenerSession = connection.createSession(transactions, Session.CLIENT_ACKNOWLEDGE);
+        listenerSessions.add(listenerSession);
+        destination = listenerSession.createQueue(queue);
+        MessageConsumer listenerConsumer = listenerSession.createConsumer(destination);
+        listenerConsumers.add(listenerConsumer);
+        listenerConsumer.setMessageListener(new HandlerListener(listenerSession, handler, transactions,
+                holdStatistics(queue), inFlight, retryStage));
+      }
+    } catch (JMSException e) {
+      stopListening();
+      throw e;
+    }
+  }
+
+  /**
+   * Stop push mode, closing the listener sessions. Messages being handled are finished first.
+   */
+  public void stopListening() {
+    for (Session listenerSession : listenerSessions) {
+      try {
+        listenerSession.close();
+      } catch (Exception e) {
+        logger.warn("Failed to close listener session", e);
+      }
+    }
+    listenerSessions.clear();
+    listenerConsumers.clear();
+  }
+
+  /**
+   * Stop taking messages. Listeners stop being handed new messages, those already prefetched go
+   * back to the broker on close, and receives return nothing. Handlers already running finish,
+   * wait for them with {@link #drain(long)}.
+   */
+  @Override
+  public void stopIntake() {
+    intakeStopped = true;
+    for (MessageConsumer listenerConsumer : listenerConsumers) {
+      try {
+        listenerConsumer.setMessageListener(null);
+      } catch (JMSException e) {
+        logger.warn("Failed to stop listener", e);
+      }
+    }
+  }
+
+  /**
+   * Wait for message handlers that are running to finish.
+   *
+   * @param millis
+   * @return true if none are running
+   * @throws InterruptedException
+   */
+  @Override
+  public boolean drain(long millis) throws InterruptedException {
+    return inFlight.awaitIdle(millis);
+  }
+
+  /**
+   * Number of listener sessions in push mode.
+   *
+   * @return
+   */
+  public int getListenerCount() {
+    return listenerSessions.size();
+  }
+
   /**
    * Get a Text message.
    *
@@ -59,16 +210,164 @@ public class Consumer implements AutoCloseable {
    * @throws JMSException
    */
   public TextMessage getTextMessage() throws JMSException {
-    Message msg = consumer.receive(timeout);
+    Message msg = Compression.decompress(receive(timeout));
     if (msg != null) {
       if (!(msg instanceof TextMessage)) {
+        stats.recordReceiveError();
         throw new JMSException("Message object not of type TextMessage: " + msg.getClass());
       }
 
+      stats.recordReceive(DestinationStatistics.sizeOf(msg));
       return (TextMessage) msg;
     } else {
+      stats.recordReceiveTimeout();
+      return null;
+    }
+  }
+
+  /**
+   * Receive a message sent with {@link Producer#sendObject(Object)} and read its JSON body as an
+   * object. A TextMessage holding JSON is read as well.
+   *
+   * @param <T>
+   * @param type
+   * @return the object, or null if no message arrived before the timeout
+   * @throws JMSException
+   */
+  public <T> T receiveObject(Class<T> type) throws JMSException {
+    Message msg = receive(timeout);
+    if (msg == null) {
+      stats.recordReceiveTimeout();
+      return null;
+    }
+    try {
+      T object;
+      if (Compression.isCompressed(msg)) {
+        object = JsonMessages.read(Compression.read((BytesMessage) msg), type);
+      } else if (msg instanceof BytesMessage) {
+        object = JsonMessages.read((BytesMessage) msg, type);
+      } else if (msg instanceof TextMessage) {
+        object = JsonMessages.read(((TextMessage) msg).getText(), type);
+      } else {
+        throw new JMSException("Message object not of type BytesMessage: " + msg.getClass());
+      }
+      stats.recordReceive(DestinationStatistics.sizeOf(msg));
+      return object;
+    } catch (JMSException e) {
+      stats.recordReceiveError();
+      throw e;
+    }
+  }
+
+  /**
+   * Receive on our consumer, timing the wait when instrumentation is on. Waits that return a
+   * message and waits that time out empty are kept apart, so a slow broker can be told from an
+   * idle queue.
+   *
+   * @param wait milliseconds
+   * @return
+   * @throws JMSException
+   */
+  private Message receive(long wait) throws JMSException {
+    if (intakeStopped) {
       return null;
     }
+    if (!instrumentation) {
+      return consumer.receive(wait);
+    }
+    long start = System.nanoTime();
+    Message msg = consumer.receive(wait);
+    long elapsed = System.nanoTime() - start;
+    if (msg != null) {
+      stats.recordReceiveWait(elapsed);
+    } else {
+      stats.recordEmptyPollWait(elapsed);
+    }
+    return msg;
+  }
+
+  /**
+   * Receive up to maxMessages messages, waiting no longer than maxWait milliseconds for the batch
+   * in total. Messages already in the prefetch buffer are drained without waiting, so a busy queue
+   * returns a full batch immediately. Confirm the whole batch with {@link #acknowledgeBatch(List)}
+   * once it has been processed.
+   *
+   * @param maxMessages
+   * @param maxWait milliseconds, 0 or less only drains what is already buffered
+   * @return the messages received, empty if none arrived in time
+   * @throws JMSException
+   */
+  public List<Message> receiveBatch(int maxMessages, long maxWait) throws JMSException {
+    if (maxMessages < 1) {
+      throw new IllegalArgumentException("maxMessages must be at least 1");
+    }
+    List<Message> batch = new ArrayList<>(Math.min(maxMessages, 256));
+    long deadline = System.currentTimeMillis() + maxWait;
+    while (batch.size() < maxMessages) {
+      Message msg = intakeStopped ? null : consumer.receiveNoWait();
+      if (msg == null) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          break;
+        }
+        msg = receive(remaining);
+        if (msg == null) {
+          break;
+        }
+      }
+      stats.recordReceive(DestinationStatistics.sizeOf(msg));
+      batch.add(Compression.decompress(msg));
+    }
+    if (batch.isEmpty()) {
+      stats.recordReceiveTimeout();
+    }
+    return batch;
+  }
+
+  /**
+   * Confirm every message received on this session so far with a single call to the broker. In
+   * transacted mode this commits the session, otherwise it acknowledges the last message, which
+   * with CLIENT_ACKNOWLEDGE covers everything before it.
+   *
+   * @param batch
+   * @throws JMSException
+   */
+  public void acknowledgeBatch(List<? extends Message> batch) throws JMSException {
+    if (transactions) {
+      session.commit();
+    } else if (batch != null && !batch.isEmpty()) {
+      batch.get(batch.size() - 1).acknowledge();
+    }
+  }
+
+  /**
+   * Return every unconfirmed message on this session to the broker for redelivery. In transacted
+   * mode this rolls back the session, otherwise it recovers it.
+   *
+   * @throws JMSException
+   */
+  public void rollback() throws JMSException {
+    if (transactions) {
+      session.rollback();
+    } else {
+      session.recover();
+    }
+  }
+
+  /**
+   * Hand a message that could not be processed to the retry stage set up by
+   * {@link #setRetryPolicy(RetryPolicy)}. It is republished later, or dead lettered, so
+   * acknowledge it (or commit) afterwards as if it had been processed.
+   *
+   * @param message as returned by a receive
+   * @param cause why processing failed
+   * @throws JMSException if it could not be handed off, recover it instead of acknowledging
+   */
+  public void retry(Message message, Exception cause) throws JMSException {
+    if (retryStage == null) {
+      throw new javax.jms.IllegalStateException("No retry policy, call setRetryPolicy before connect");
+    }
+    retryStage.retry(message, cause);
   }
 
   /**
@@ -78,7 +377,13 @@ public class Consumer implements AutoCloseable {
    * @throws JMSException
    */
   public MapMessage getMapMessage() throws JMSException {
-    return (MapMessage) consumer.receive(timeout);
+    MapMessage msg = (MapMessage) receive(timeout);
+    if (msg != null) {
+      stats.recordReceive(0);
+    } else {
+      stats.recordReceiveTimeout();
+    }
+    return msg;
   }
 
   /**
@@ -107,6 +412,53 @@ public class Consumer implements AutoCloseable {
     transactions = bool;
   }
 
+  /**
+   * Time every receive into the destination statistics and the Profiler tag
+   * mq.receive.&lt;destination&gt;. Message, timeout and error counts are always kept.
+   *
+   * @param bool
+   */
+  public void setInstrumentation(boolean bool) {
+    instrumentation = bool;
+  }
+
+  /**
+   * Take the connection from a shared ConnectionManager instead of opening our own. It is released
+   * back to the manager on close. This must be called before connect to take affect.
+   *
+   * @param connectionManager
+   */
+  public void setConnectionManager(ConnectionManager connectionManager) {
+    this.connectionManager = connectionManager;
+  }
+
+  /**
+   * Retry messages whose handler fails with this policy instead of returning them to the broker
+   * for immediate redelivery. In push mode this happens on its own, in poll mode pass failed
+   * messages to {@link #retry(Message, Exception)}. This must be called before connect or listen to
+   * take affect.
+   *
+   * @param retryPolicy
+   */
+  public void setRetryPolicy(RetryPolicy retryPolicy) {
+    this.retryPolicy = retryPolicy;
+  }
+
+  /**
+   * The retry stage, for its retried and dead lettered counts.
+   *
+   * @return null without a retry policy
+   */
+  public RetryStage getRetryStage() {
+    return retryStage;
+  }
+
+  /**
+   * Consume from a temporary queue created on connect instead of the named queue. This must be
+   * called before connect to take affect.
+   *
+   * @param bool
+   */
   public void setUseTemporaryQueue(boolean bool) {
     tempQueue = bool;
   }
@@ -118,6 +470,11 @@ public class Consumer implements AutoCloseable {
    */
   @Override
   public void close() throws JMSException {
+    stopListening();
+    if (retryStage != null) {
+      retryStage.close();
+      retryStage = null;
+    }
     try {
     if(consumer != null) {
       consumer.close();
@@ -125,11 +482,147 @@ public class Consumer implements AutoCloseable {
     if(session != null) {
       session.close();
     }
-    if(connection != null) {
-      connection.close();
-    }
     } catch (Exception e) {
       //loghere
+    } finally {
+      consumer = null;
+      session = null;
+      // release even if closing the session failed, a shared connection must not be closed twice
+      try {
+        if(managedConnection) {
+          managedConnection = false;
+          connectionManager.release(connection);
+        } else if(connection != null) {
+          connection.close();
+        }
+      } catch (Exception e) {
+        //loghere
+      }
+      connection = null;
+    }
+    synchronized (heldStats) {
+      for (DestinationStatistics held : heldStats) {
+        held.release();
+      }
+      heldStats.clear();
+    }
+  }
+
+  /**
+   * Hands pushed messages to a MessageHandler and acknowledges them on its session.
+   */
+  private static class HandlerListener implements MessageListener {
+
+    private final Session session;
+    private final MessageHandler handler;
+    private final boolean transacted;
+    private final DestinationStatistics stats;
+    private final InFlight inFlight;
+    private final RetryStage retryStage;
+
+    HandlerListener(Session session, MessageHandler handler, boolean transacted,
+            DestinationStatistics stats, InFlight inFlight, RetryStage retryStage) {
+      this.session = session;
+      this.handler = handler;
+      this.transacted = transacted;
+      this.stats = stats;
+      this.inFlight = inFlight;
+      this.retryStage = retryStage;
+    }
+
+    @Override
+    public void onMessage(Message message) {
+      inFlight.enter();
+      try {
+        handle(message);
+      } finally {
+        inFlight.exit();
+      }
+    }
+
+    private void handle(Message message) {
+      try {
+        stats.recordReceive(DestinationStatistics.sizeOf(message));
+        handler.onMessage(Compression.decompress(message));
+      } catch (Exception e) {
+        stats.recordReceiveError();
+        if (!handOff(message, e)) {
+          logger.error("Message handler failed, message will be redelivered", e);
+          recover();
+          return;
+        }
+      }
+      try {
+        if (transacted) {
+          session.commit();
+        } else {
+          message.acknowledge();
+        }
+      } catch (JMSException e) {
+        logger.error("Failed to acknowledge message", e);
+        recover();
+      }
+    }
+
+    /**
+     * Pass a failed message to the retry stage, if there is one.
+     *
+     * @return true if it will be retried, so it can be acknowledged
+     */
+    private boolean handOff(Message message, Exception cause) {
+      if (retryStage == null) {
+        return false;
+      }
+      try {
+        retryStage.retry(message, cause);
+        logger.warn("Message handler failed, retry scheduled", cause);
+        return true;
+      } catch (JMSException e) {
+        logger.error("Failed to schedule a retry", e);
+        return false;
+      }
+    }
+
+    private void recover() {
+      try {
+        if (transacted) {
+          session.rollback();
+        } else {
+          session.recover();
+        }
+      } catch (JMSException ex) {
+        logger.error("Failed to return message for redelivery", ex);
+      }
+    }
+  }
+
+  /**
+   * Counts message handlers running, so a shutdown can wait for them.
+   */
+  private static class InFlight {
+
+    private int running = 0;
+
+    synchronized void enter() {
+      running++;
+    }
+
+    synchronized void exit() {
+      if (--running == 0) {
+        notifyAll();
+      }
+    }
+
+    synchronized boolean awaitIdle(long millis) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + millis;
+      while (running > 0) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          return false;
+        }
+        wait(remaining);
+      }
+      return true;
     }
   }
 }
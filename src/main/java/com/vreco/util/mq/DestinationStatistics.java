@@ -0,0 +1,290 @@
+package com.vreco.util.mq;
+
+import com.vreco.util.StripedCounter;
+import com.vreco.util.profiling.ProfileTag;
+import com.vreco.util.profiling.Profiler;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+
+/**
+ * Send and receive counters for one destination, shared by every Producer and Consumer in the JVM
+ * that uses it. Sizes are payload sizes: characters for text messages, bytes otherwise. Counters
+ * are striped so concurrent senders and receivers do not contend on them.
+ *
+ * Timings are only recorded by Producers and Consumers with instrumentation turned on. While the
+ * Profiler is enabled they are also fed to it under the tags mq.send.&lt;destination&gt; and
+ * mq.receive.&lt;destination&gt; (receives that returned a message), created on the first timing.
+ *
+ * The registry holds at most maxDestinations entries, so services using many short lived
+ * destinations do not grow without bound. Past that, the least recently used destinations no open
+ * Producer or Consumer is holding are dropped, along with their Profiler tags.
+ *
+ * @author Ben Aldrich
+ */
+public class DestinationStatistics implements DestinationStatisticsMBean {
+
+  public static final int DEFAULT_MAX_DESTINATIONS = 1024;
+  private static final ConcurrentMap<String, DestinationStatistics> all = new ConcurrentHashMap<>();
+  private static volatile int maxDestinations = DEFAULT_MAX_DESTINATIONS;
+  private final String destination;
+  private final AtomicInteger references = new AtomicInteger();
+  private volatile long lastUsed = System.nanoTime();
+  private volatile ProfileTag sendTag;
+  private volatile ProfileTag receiveTag;
+  private final StripedCounter messagesSent = new StripedCounter();
+  private final StripedCounter bytesSent = new StripedCounter();
+  private final StripedCounter sendErrors = new StripedCounter();
+  private final StripedCounter sendNanos = new StripedCounter();
+  private final StripedCounter messagesReceived = new StripedCounter();
+  private final StripedCounter bytesReceived = new StripedCounter();
+  private final StripedCounter receiveTimeouts = new StripedCounter();
+  private final StripedCounter receiveErrors = new StripedCounter();
+  private final StripedCounter receiveWaitNanos = new StripedCounter();
+  private final StripedCounter emptyPollNanos = new StripedCounter();
+
+  DestinationStatistics(final String destination) {
+    this.destination = destination;
+  }
+
+  /**
+   * Get the statistics for a destination, creating them the first time.
+   *
+   * @param destination
+   * @return
+   */
+  public static DestinationStatistics forDestination(final String destination) {
+    DestinationStatistics stats = all.get(destination);
+    if (stats == null) {
+      DestinationStatistics created = new DestinationStatistics(destination);
+      stats = all.putIfAbsent(destination, created);
+      if (stats == null) {
+        stats = created;
+        trim();
+      }
+    }
+    stats.lastUsed = System.nanoTime();
+    return stats;
+  }
+
+  /**
+   * Get the statistics for a destination and keep them registered until {@link #release()}.
+   *
+   * @param destination
+   * @return
+   */
+  static DestinationStatistics acquire(final String destination) {
+    while (true) {
+      DestinationStatistics stats = forDestination(destination);
+      stats.references.incrementAndGet();
+      if (all.get(destination) == stats) {
+        return stats;
+      }
+      // dropped between the lookup and the increment, take the new entry
+      stats.references.decrementAndGet();
+    }
+  }
+
+  /**
+   * Let go of statistics taken with {@link #acquire(String)}. They stay registered until the
+   * registry is full and they are the least recently used.
+   */
+  void release() {
+    lastUsed = System.nanoTime();
+    if (references.decrementAndGet() == 0) {
+      trim();
+    }
+  }
+
+  /**
+   * Drop the least recently used unreferenced destinations while over maxDestinations.
+   */
+  private static synchronized void trim() {
+    int excess = all.size() - maxDestinations;
+    if (excess <= 0) {
+      return;
+    }
+    List<DestinationStatistics> idle = new ArrayList<>();
+    for (DestinationStatistics stats : all.values()) {
+      if (stats.references.get() == 0) {
+        idle.add(stats);
+      }
+    }
+    Collections.sort(idle, new Comparator<DestinationStatistics>() {
+      @Override
+      public int compare(DestinationStatistics a, DestinationStatistics b) {
+        return Long.compare(a.lastUsed, b.lastUsed);
+      }
+    });
+    for (int i = 0; i < excess && i < idle.size(); i++) {
+      DestinationStatistics stats = idle.get(i);
+      if (all.remove(stats.destination, stats)) {
+        Profiler.remove("mq.send." + stats.destination);
+        Profiler.remove("mq.receive." + stats.destination);
+      }
+    }
+  }
+
+  /**
+   * Most destinations kept in the registry, defaults to {@link #DEFAULT_MAX_DESTINATIONS}.
+   * Destinations held by an open Producer or Consumer are kept even past it.
+   *
+   * @param max
+   */
+  public static void setMaxDestinations(final int max) {
+    if (max < 1) {
+      throw new IllegalArgumentException("max must be at least 1");
+    }
+    maxDestinations = max;
+    trim();
+  }
+
+  public static int getMaxDestinations() {
+    return maxDestinations;
+  }
+
+  /**
+   * @return the statistics of every destination used so far, by name
+   */
+  public static SortedMap<String, DestinationStatistics> getAll() {
+    return new TreeMap<>(all);
+  }
+
+  void recordSend(final long size) {
+    messagesSent.increment();
+    bytesSent.add(size);
+  }
+
+  void recordSend(final int count, final long size) {
+    messagesSent.add(count);
+    bytesSent.add(size);
+  }
+
+  void recordSendTime(final long nanos) {
+    sendNanos.add(nanos);
+    if (Profiler.isEnabled()) {
+      ProfileTag tag = sendTag;
+      if (tag == null) {
+        tag = sendTag = Profiler.tag("mq.send." + destination);
+      }
+      Profiler.record(tag, nanos);
+    }
+  }
+
+  void recordSendError() {
+    sendErrors.increment();
+  }
+
+  void recordReceive(final long size) {
+    messagesReceived.increment();
+    bytesReceived.add(size);
+  }
+
+  void recordReceiveWait(final long nanos) {
+    receiveWaitNanos.add(nanos);
+    if (Profiler.isEnabled()) {
+      ProfileTag tag = receiveTag;
+      if (tag == null) {
+        tag = receiveTag = Profiler.tag("mq.receive." + destination);
+      }
+      Profiler.record(tag, nanos);
+    }
+  }
+
+  void recordReceiveTimeout() {
+    receiveTimeouts.increment();
+  }
+
+  void recordEmptyPollWait(final long nanos) {
+    emptyPollNanos.add(nanos);
+  }
+
+  void recordReceiveError() {
+    receiveErrors.increment();
+  }
+
+  /**
+   * Payload size of a message: characters for a TextMessage, bytes for a BytesMessage, 0 for
+   * anything else.
+   *
+   * @param msg
+   * @return
+   * @throws JMSException
+   */
+  static long sizeOf(final Message msg) throws JMSException {
+    if (msg instanceof TextMessage) {
+      String text = ((TextMessage) msg).getText();
+      return text == null ? 0 : text.length();
+    }
+    if (msg instanceof BytesMessage) {
+      return ((BytesMessage) msg).getBodyLength();
+    }
+    return 0;
+  }
+
+  @Override
+  public String getDestination() {
+    return destination;
+  }
+
+  @Override
+  public long getMessagesSent() {
+    return messagesSent.sum();
+  }
+
+  @Override
+  public long getBytesSent() {
+    return bytesSent.sum();
+  }
+
+  @Override
+  public long getSendErrors() {
+    return sendErrors.sum();
+  }
+
+  @Override
+  public long getSendMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(sendNanos.sum());
+  }
+
+  @Override
+  public long getMessagesReceived() {
+    return messagesReceived.sum();
+  }
+
+  @Override
+  public long getBytesReceived() {
+    return bytesReceived.sum();
+  }
+
+  @Override
+  public long getReceiveTimeouts() {
+    return receiveTimeouts.sum();
+  }
+
+  @Override
+  public long getReceiveErrors() {
+    return receiveErrors.sum();
+  }
+
+  @Override
+  public long getReceiveWaitMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(receiveWaitNanos.sum());
+  }
+
+  @Override
+  public long getEmptyPollWaitMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(emptyPollNanos.sum());
+  }
+}
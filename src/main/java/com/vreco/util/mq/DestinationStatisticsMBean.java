@@ -0,0 +1,42 @@
+package com.vreco.util.mq;
+
+/**
+ * JMX view of {@link DestinationStatistics}.
+ *
+ * @author Ben Aldrich
+ */
+public interface DestinationStatisticsMBean {
+
+  String getDestination();
+
+  long getMessagesSent();
+
+  long getBytesSent();
+
+  long getSendErrors();
+
+  /**
+   * @return total time spent in send, only counted with instrumentation on
+   */
+  long getSendMillis();
+
+  long getMessagesReceived();
+
+  long getBytesReceived();
+
+  long getReceiveTimeouts();
+
+  long getReceiveErrors();
+
+  /**
+   * @return total time spent waiting in receives that returned a message, only counted with
+   * instrumentation on
+   */
+  long getReceiveWaitMillis();
+
+  /**
+   * @return total time spent waiting in receives that timed out empty, only counted with
+   * instrumentation on
+   */
+  long getEmptyPollWaitMillis();
+}
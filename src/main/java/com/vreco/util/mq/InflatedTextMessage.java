@@ -0,0 +1,272 @@
+package com.vreco.util.mq;
+
+import java.util.Enumeration;
+import javax.jms.BytesMessage;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.TextMessage;
+
+/**
+ * TextMessage view of a compressed BytesMessage, holding the inflated text. Headers, properties
+ * and acknowledge() go to the message that was received, so it is confirmed like any other.
+ *
+ * @author Ben Aldrich
+ */
+class InflatedTextMessage implements TextMessage {
+
+  private final BytesMessage delegate;
+  private String text;
+
+  InflatedTextMessage(final BytesMessage delegate, final String text) {
+    this.delegate = delegate;
+    this.text = text;
+  }
+
+  /**
+   * @return the compressed message as received from the broker
+   */
+  BytesMessage getDelegate() {
+    return delegate;
+  }
+
+  @Override
+  public String getText() {
+    return text;
+  }
+
+  @Override
+  public void setText(final String text) {
+    this.text = text;
+  }
+
+  @Override
+  public void clearBody() throws JMSException {
+    text = null;
+    delegate.clearBody();
+  }
+
+  @Override
+  public String getJMSMessageID() throws JMSException {
+    return delegate.getJMSMessageID();
+  }
+
+  @Override
+  public long getJMSTimestamp() throws JMSException {
+    return delegate.getJMSTimestamp();
+  }
+
+  @Override
+  public byte[] getJMSCorrelationIDAsBytes() throws JMSException {
+    return delegate.getJMSCorrelationIDAsBytes();
+  }
+
+  @Override
+  public String getJMSCorrelationID() throws JMSException {
+    return delegate.getJMSCorrelationID();
+  }
+
+  @Override
+  public Destination getJMSReplyTo() throws JMSException {
+    return delegate.getJMSReplyTo();
+  }
+
+  @Override
+  public Destination getJMSDestination() throws JMSException {
+    return delegate.getJMSDestination();
+  }
+
+  @Override
+  public int getJMSDeliveryMode() throws JMSException {
+    return delegate.getJMSDeliveryMode();
+  }
+
+  @Override
+  public boolean getJMSRedelivered() throws JMSException {
+    return delegate.getJMSRedelivered();
+  }
+
+  @Override
+  public String getJMSType() throws JMSException {
+    return delegate.getJMSType();
+  }
+
+  @Override
+  public long getJMSExpiration() throws JMSException {
+    return delegate.getJMSExpiration();
+  }
+
+  @Override
+  public int getJMSPriority() throws JMSException {
+    return delegate.getJMSPriority();
+  }
+
+  @Override
+  public void setJMSMessageID(final String id) throws JMSException {
+    delegate.setJMSMessageID(id);
+  }
+
+  @Override
+  public void setJMSTimestamp(final long timestamp) throws JMSException {
+    delegate.setJMSTimestamp(timestamp);
+  }
+
+  @Override
+  public void setJMSCorrelationIDAsBytes(final byte[] correlationID) throws JMSException {
+    delegate.setJMSCorrelationIDAsBytes(correlationID);
+  }
+
+  @Override
+  public void setJMSCorrelationID(final String correlationID) throws JMSException {
+    delegate.setJMSCorrelationID(correlationID);
+  }
+
+  @Override
+  public void setJMSReplyTo(final Destination replyTo) throws JMSException {
+    delegate.setJMSReplyTo(replyTo);
+  }
+
+  @Override
+  public void setJMSDestination(final Destination destination) throws JMSException {
+    delegate.setJMSDestination(destination);
+  }
+
+  @Override
+  public void setJMSDeliveryMode(final int deliveryMode) throws JMSException {
+    delegate.setJMSDeliveryMode(deliveryMode);
+  }
+
+  @Override
+  public void setJMSRedelivered(final boolean redelivered) throws JMSException {
+    delegate.setJMSRedelivered(redelivered);
+  }
+
+  @Override
+  public void setJMSType(final String type) throws JMSException {
+    delegate.setJMSType(type);
+  }
+
+  @Override
+  public void setJMSExpiration(final long expiration) throws JMSException {
+    delegate.setJMSExpiration(expiration);
+  }
+
+  @Override
+  public void setJMSPriority(final int priority) throws JMSException {
+    delegate.setJMSPriority(priority);
+  }
+
+  @Override
+  public void clearProperties() throws JMSException {
+    delegate.clearProperties();
+  }
+
+  @Override
+  public boolean propertyExists(final String name) throws JMSException {
+    return delegate.propertyExists(name);
+  }
+
+  @Override
+  public boolean getBooleanProperty(final String name) throws JMSException {
+    return delegate.getBooleanProperty(name);
+  }
+
+  @Override
+  public byte getByteProperty(final String name) throws JMSException {
+    return delegate.getByteProperty(name);
+  }
+
+  @Override
+  public short getShortProperty(final String name) throws JMSException {
+    return delegate.getShortProperty(name);
+  }
+
+  @Override
+  public int getIntProperty(final String name) throws JMSException {
+    return delegate.getIntProperty(name);
+  }
+
+  @Override
+  public long getLongProperty(final String name) throws JMSException {
+    return delegate.getLongProperty(name);
+  }
+
+  @Override
+  public float getFloatProperty(final String name) throws JMSException {
+    return delegate.getFloatProperty(name);
+  }
+
+  @Override
+  public double getDoubleProperty(final String name) throws JMSException {
+    return delegate.getDoubleProperty(name);
+  }
+
+  @Override
+  public String getStringProperty(final String name) throws JMSException {
+    return delegate.getStringProperty(name);
+  }
+
+  @Override
+  public Object getObjectProperty(final String name) throws JMSException {
+    return delegate.getObjectProperty(name);
+  }
+
+  @Override
+  public Enumeration<?> getPropertyNames() throws JMSException {
+    return delegate.getPropertyNames();
+  }
+
+  @Override
+  public void setBooleanProperty(final String name, final boolean value) throws JMSException {
+    delegate.setBooleanProperty(name, value);
+  }
+
+  @Override
+  public void setByteProperty(final String name, final byte value) throws JMSException {
+    delegate.setByteProperty(name, value);
+  }
+
+  @Override
+  public void setShortProperty(final String name, final short value) throws JMSException {
+    delegate.setShortProperty(name, value);
+  }
+
+  @Override
+  public void setIntProperty(final String name, final int value) throws JMSException {
+    delegate.setIntProperty(name, value);
+  }
+
+  @Override
+  public void setLongProperty(final String name, final long value) throws JMSException {
+    delegate.setLongProperty(name, value);
+  }
+
+  @Override
+  public void setFloatProperty(final String name, final float value) throws JMSException {
+    delegate.setFloatProperty(name, value);
+  }
+
+  @Override
+  public void setDoubleProperty(final String name, final double value) throws JMSException {
+    delegate.setDoubleProperty(name, value);
+  }
+
+  @Override
+  public void setStringProperty(final String name, final String value) throws JMSException {
+    delegate.setStringProperty(name, value);
+  }
+
+  @Override
+  public void setObjectProperty(final String name, final Object value) throws JMSException {
+    delegate.setObjectProperty(name, value);
+  }
+
+  @Override
+  public void acknowledge() throws JMSException {
+    delegate.acknowledge();
+  }
+
+  @Override
+  public String toString() {
+    return "InflatedTextMessage {text = " + text + ", message = " + delegate + "}";
+  }
+}
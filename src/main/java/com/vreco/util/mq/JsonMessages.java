@@ -0,0 +1,171 @@
+package com.vreco.util.mq;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.DeserializationConfig;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Streams objects as JSON to and from BytesMessage bodies. One ObjectMapper is shared by every
+ * thread, and each thread reuses its own byte buffers, so a message costs one copy into the JMS
+ * body instead of a String plus its char array.
+ *
+ * @author Ben Aldrich
+ */
+final class JsonMessages {
+
+  /**
+   * Buffers that grew past this are dropped after use rather than kept for the thread.
+   */
+  private static final int MAX_RETAINED = 1024 * 1024;
+  private static final ObjectMapper mapper = createMapper();
+  private static final ThreadLocal<Buffer> outBuffers = new ThreadLocal<Buffer>() {
+    @Override
+    protected Buffer initialValue() {
+      return new Buffer();
+    }
+  };
+  private static final ThreadLocal<byte[]> inBuffers = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[4096];
+    }
+  };
+
+  private JsonMessages() {
+  }
+
+  private static ObjectMapper createMapper() {
+    ObjectMapper objectMapper = new ObjectMapper();
+    objectMapper.configure(DeserializationConfig.Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    objectMapper.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+    return objectMapper;
+  }
+
+  /**
+   * @return the shared, thread safe mapper
+   */
+  static ObjectMapper getMapper() {
+    return mapper;
+  }
+
+  /**
+   * Write an object as JSON into the body of a message, compressing it when the JSON is at least
+   * compressionThreshold bytes.
+   *
+   * @param object
+   * @param msg
+   * @param compressionThreshold bytes, or -1 to never compress
+   * @param compressionLevel
+   * @return the length of the JSON
+   * @throws JMSException
+   */
+  static int write(final Object object, final BytesMessage msg, final int compressionThreshold,
+          final int compressionLevel) throws JMSException {
+    Buffer buffer = outBuffers.get();
+    try {
+      mapper.writeValue(buffer, object);
+      if (compressionThreshold < 0 || buffer.size() < compressionThreshold
+              || Compression.write(buffer.array(), buffer.size(), compressionLevel, msg) < 0) {
+        msg.writeBytes(buffer.array(), 0, buffer.size());
+      }
+      return buffer.size();
+    } catch (IOException e) {
+      throw jmsException("Failed to write " + object.getClass().getName() + " as JSON", e);
+    } finally {
+      if (buffer.array().length > MAX_RETAINED) {
+        outBuffers.remove();
+      } else {
+        buffer.reset();
+      }
+    }
+  }
+
+  /**
+   * Read the JSON body of a message as an object.
+   *
+   * @param <T>
+   * @param msg
+   * @param type
+   * @return
+   * @throws JMSException
+   */
+  static <T> T read(final BytesMessage msg, final Class<T> type) throws JMSException {
+    long length = msg.getBodyLength();
+    if (length > Integer.MAX_VALUE) {
+      throw new JMSException("Message body too large: " + length);
+    }
+    int len = (int) length;
+    byte[] buffer = inBuffers.get();
+    if (buffer.length < len) {
+      buffer = new byte[Math.max(len, buffer.length * 2)];
+    }
+    try {
+      msg.readBytes(buffer, len);
+      return mapper.readValue(buffer, 0, len, type);
+    } catch (IOException e) {
+      throw jmsException("Failed to read JSON as " + type.getName(), e);
+    } finally {
+      if (buffer.length <= MAX_RETAINED) {
+        inBuffers.set(buffer);
+      }
+    }
+  }
+
+  /**
+   * Read JSON bytes as an object, for bodies that were inflated first.
+   *
+   * @param <T>
+   * @param json
+   * @param type
+   * @return
+   * @throws JMSException
+   */
+  static <T> T read(final byte[] json, final Class<T> type) throws JMSException {
+    try {
+      return mapper.readValue(json, 0, json.length, type);
+    } catch (IOException e) {
+      throw jmsException("Failed to read JSON as " + type.getName(), e);
+    }
+  }
+
+  /**
+   * Read a JSON string as an object, for messages sent as text.
+   *
+   * @param <T>
+   * @param text
+   * @param type
+   * @return
+   * @throws JMSException
+   */
+  static <T> T read(final String text, final Class<T> type) throws JMSException {
+    try {
+      return mapper.readValue(text, type);
+    } catch (IOException e) {
+      throw jmsException("Failed to read JSON as " + type.getName(), e);
+    }
+  }
+
+  private static JMSException jmsException(final String reason, final Exception cause) {
+    JMSException e = new JMSException(reason + ": " + cause.getMessage());
+    e.setLinkedException(cause);
+    return e;
+  }
+
+  /**
+   * A ByteArrayOutputStream that hands out its array instead of copying it.
+   */
+  private static class Buffer extends ByteArrayOutputStream {
+
+    Buffer() {
+      super(4096);
+    }
+
+    byte[] array() {
+      return buf;
+    }
+  }
+}
@@ -0,0 +1,20 @@
+package com.vreco.util.mq;
+
+import javax.jms.Message;
+
+/**
+ * Callback for messages pushed to a {@link Consumer} in listener mode. Returning normally
+ * acknowledges the message, throwing sends it back to the broker for redelivery.
+ *
+ * @author Ben Aldrich
+ */
+public interface MessageHandler {
+
+  /**
+   * Process a single message.
+   *
+   * @param message
+   * @throws Exception to have the message redelivered
+   */
+  void onMessage(Message message) throws Exception;
+}
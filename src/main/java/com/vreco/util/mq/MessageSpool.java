@@ -0,0 +1,426 @@
+package com.vreco.util.mq;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import org.apache.log4j.Logger;
+
+/**
+ * Append-only local store of messages that could not be sent, kept in memory-mapped segment files
+ * so appends are a copy into the page cache. Records are read back in the order they were
+ * appended. Fully read segments are deleted, and at most maxSegments segments are kept, so disk
+ * use is bounded by maxSegments * segmentSize.
+ *
+ * A record is written body first, then its checksum, then its length, so a record torn by a crash
+ * reads as the end of the segment. The read offset is saved to an offsets file with
+ * {@link #commit()}, replaced atomically. After a restart reading resumes from the last commit, so
+ * records read since then are read again (at least once delivery).
+ *
+ * Any thread may append, records should be read by one thread at a time, as
+ * {@link SpoolingProducer} does with its drainer.
+ *
+ * @author Ben Aldrich
+ */
+public class MessageSpool implements AutoCloseable {
+
+  private static Logger logger = Logger.getLogger(MessageSpool.class);
+  private static final String SUFFIX = ".spool";
+  private static final String OFFSETS = "offsets";
+  private static final int HEADER = 8; // length and checksum
+  private final File dir;
+  private final int segmentSize;
+  private final int maxSegments;
+  private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+  private final CRC32 crc = new CRC32();
+  private Segment writeSegment;
+  private int writePosition;
+  private Segment readSegment;
+  private int readPosition;
+  private int nextReadPosition = -1;
+  private boolean dirty = false;
+  private boolean closed = false;
+
+  /**
+   * Open the spool in dir, creating it if needed and recovering anything left from a previous run.
+   *
+   * @param dir
+   * @param segmentSize bytes per segment file, also the largest record that fits
+   * @param maxSegments
+   * @throws IOException
+   */
+  public MessageSpool(final File dir, final int segmentSize, final int maxSegments)
+          throws IOException {
+    if (segmentSize < 1024) {
+      throw new IllegalArgumentException("segmentSize must be at least 1024");
+    }
+    if (maxSegments < 2) {
+      throw new IllegalArgumentException("maxSegments must be at least 2");
+    }
+    this.dir = dir;
+    this.segmentSize = segmentSize;
+    this.maxSegments = maxSegments;
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Unable to create spool directory " + dir);
+    }
+    recover();
+  }
+
+  /**
+   * Append a message.
+   *
+   * @param record
+   * @return false if the spool is full
+   * @throws IOException if the record does not fit or the spool is closed
+   */
+  public synchronized boolean append(final Record record) throws IOException {
+    if (closed) {
+      throw new IOException("Spool in " + dir + " is closed");
+    }
+    byte[] body = record.encode();
+    int size = HEADER + body.length;
+    if (size > segmentSize) {
+      throw new IOException("Record of " + size + " bytes does not fit in a " + segmentSize
+              + " byte spool segment");
+    }
+    if (writePosition + size > writeSegment.buffer.capacity()) {
+      if (segments.size() >= maxSegments) {
+        return false;
+      }
+      writeSegment.buffer.force();
+      writeSegment = openSegment(writeSegment.id + 1);
+      segments.addLast(writeSegment);
+      writePosition = 0;
+    }
+    ByteBuffer buffer = writeSegment.buffer;
+    crc.reset();
+    crc.update(body, 0, body.length);
+    ByteBuffer out = buffer.duplicate();
+    out.position(writePosition + HEADER);
+    out.put(body);
+    buffer.putInt(writePosition + 4, (int) crc.getValue());
+    buffer.putInt(writePosition, body.length);
+    writePosition += size;
+    notifyAll();
+    return true;
+  }
+
+  /**
+   * The oldest record not yet read, without moving past it.
+   *
+   * @return null if the spool is empty
+   * @throws IOException
+   */
+  public synchronized Record peek() throws IOException {
+    while (true) {
+      int end = readSegment == writeSegment ? writePosition : readSegment.buffer.capacity();
+      if (readPosition + HEADER <= end) {
+        ByteBuffer buffer = readSegment.buffer;
+        int length = buffer.getInt(readPosition);
+        if (length > 0 && readPosition + HEADER + length <= end) {
+          byte[] body = new byte[length];
+          ByteBuffer in = buffer.duplicate();
+          in.position(readPosition + HEADER);
+          in.get(body);
+          crc.reset();
+          crc.update(body, 0, length);
+          if ((int) crc.getValue() == buffer.getInt(readPosition + 4)) {
+            nextReadPosition = readPosition + HEADER + length;
+            return Record.decode(body);
+          }
+          logger.warn("Skipping the rest of spool segment " + readSegment.file
+                  + ", corrupt record at " + readPosition);
+        }
+      }
+      if (readSegment == writeSegment) {
+        return null;
+      }
+      // done with this segment
+      segments.removeFirst().delete();
+      readSegment = segments.getFirst();
+      readPosition = 0;
+      nextReadPosition = -1;
+      dirty = true;
+    }
+  }
+
+  /**
+   * Move past the record returned by the last {@link #peek()}.
+   */
+  public synchronized void advance() {
+    if (nextReadPosition < 0) {
+      throw new IllegalStateException("advance called without peek");
+    }
+    readPosition = nextReadPosition;
+    nextReadPosition = -1;
+    dirty = true;
+  }
+
+  /**
+   * Save the read offset, so records read so far are not read again after a restart.
+   *
+   * @throws IOException
+   */
+  public synchronized void commit() throws IOException {
+    if (!dirty) {
+      return;
+    }
+    File tmp = new File(dir, OFFSETS + ".tmp");
+    ByteBuffer offsets = ByteBuffer.allocate(12);
+    offsets.putLong(readSegment.id).putInt(readPosition).flip();
+    try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (offsets.hasRemaining()) {
+        channel.write(offsets);
+      }
+      channel.force(true);
+    }
+    Files.move(tmp.toPath(), new File(dir, OFFSETS).toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    dirty = false;
+  }
+
+  /**
+   * Wait up to timeout milliseconds for a record to be appended, returning early if the spool is
+   * not empty.
+   *
+   * @param timeout
+   * @throws InterruptedException
+   */
+  public synchronized void await(final long timeout) throws InterruptedException {
+    if (isEmpty()) {
+      wait(timeout);
+    }
+  }
+
+  /**
+   * Wake threads blocked in {@link #await(long)}.
+   */
+  public synchronized void wakeup() {
+    notifyAll();
+  }
+
+  /**
+   * @return true if every record appended has been read
+   */
+  public synchronized boolean isEmpty() {
+    return readSegment == writeSegment && readPosition >= writePosition;
+  }
+
+  /**
+   * @return number of segment files on disk
+   */
+  public synchronized int getSegmentCount() {
+    return segments.size();
+  }
+
+  /**
+   * @return bytes of unread records, including the space left at the end of each segment
+   */
+  public synchronized long getPendingBytes() {
+    if (readSegment == writeSegment) {
+      return writePosition - readPosition;
+    }
+    long bytes = readSegment.buffer.capacity() - readPosition + writePosition;
+    bytes += (long) (segments.size() - 2) * segmentSize;
+    return bytes;
+  }
+
+  public File getDirectory() {
+    return dir;
+  }
+
+  /**
+   * Flush the segments to disk and save the read offset.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      commit();
+    } finally {
+      for (Segment segment : segments) {
+        segment.buffer.force();
+        segment.close();
+      }
+      segments.clear();
+    }
+  }
+
+  private void recover() throws IOException {
+    File[] files = dir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File parent, String name) {
+        return name.endsWith(SUFFIX);
+      }
+    });
+    long[] ids = new long[files == null ? 0 : files.length];
+    for (int i = 0; i < ids.length; i++) {
+      String name = files[i].getName();
+      ids[i] = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+    Arrays.sort(ids);
+
+    long readId = -1;
+    int readOffset = 0;
+    File offsetsFile = new File(dir, OFFSETS);
+    if (offsetsFile.length() == 12) {
+      ByteBuffer offsets = ByteBuffer.wrap(Files.readAllBytes(offsetsFile.toPath()));
+      readId = offsets.getLong();
+      readOffset = offsets.getInt();
+    }
+    for (long id : ids) {
+      if (id < readId) {
+        // fully read before the last run stopped
+        new File(dir, name(id)).delete();
+      } else {
+        segments.addLast(openSegment(id));
+      }
+    }
+    if (segments.isEmpty()) {
+      segments.addLast(openSegment(Math.max(readId, 0)));
+    }
+    readSegment = segments.getFirst();
+    readPosition = readSegment.id == readId ? readOffset : 0;
+    writeSegment = segments.getLast();
+    writePosition = scan(writeSegment, readSegment == writeSegment ? readPosition : 0);
+  }
+
+  /**
+   * Find the end of the valid records in a segment.
+   */
+  private int scan(final Segment segment, final int from) {
+    ByteBuffer buffer = segment.buffer;
+    int position = from;
+    while (position + HEADER <= buffer.capacity()) {
+      int length = buffer.getInt(position);
+      if (length <= 0 || position + HEADER + length > buffer.capacity()) {
+        break;
+      }
+      byte[] body = new byte[length];
+      ByteBuffer in = buffer.duplicate();
+      in.position(position + HEADER);
+      in.get(body);
+      crc.reset();
+      crc.update(body, 0, length);
+      if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+        break;
+      }
+      position += HEADER + length;
+    }
+    // clear anything torn after the last good record so it cannot be mistaken for a record later
+    ByteBuffer out = buffer.duplicate();
+    out.position(position);
+    byte[] zeros = new byte[Math.min(out.remaining(), 64 * 1024)];
+    while (out.hasRemaining()) {
+      out.put(zeros, 0, Math.min(zeros.length, out.remaining()));
+    }
+    return position;
+  }
+
+  private Segment openSegment(final long id) throws IOException {
+    File file = new File(dir, name(id));
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      long length = raf.length();
+      int size = length > 0 ? (int) Math.min(length, Integer.MAX_VALUE) : segmentSize;
+      FileChannel channel = raf.getChannel();
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      return new Segment(id, file, buffer);
+    }
+  }
+
+  private static String name(final long id) {
+    return String.format("%020d%s", id, SUFFIX);
+  }
+
+  /**
+   * One spooled message and where it was going.
+   */
+  public static final class Record {
+
+    private final String type;
+    private final String destination;
+    private final String message;
+
+    public Record(final String type, final String destination, final String message) {
+      this.type = type;
+      this.destination = destination;
+      this.message = message;
+    }
+
+    public String getType() {
+      return type;
+    }
+
+    public String getDestination() {
+      return destination;
+    }
+
+    public String getMessage() {
+      return message;
+    }
+
+    byte[] encode() throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(message.length() + 64);
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeUTF(type);
+      out.writeUTF(destination);
+      out.write(message.getBytes(Compression.UTF8));
+      return bytes.toByteArray();
+    }
+
+    static Record decode(final byte[] body) throws IOException {
+      ByteArrayInputStream bytes = new ByteArrayInputStream(body);
+      DataInputStream in = new DataInputStream(bytes);
+      String type = in.readUTF();
+      String destination = in.readUTF();
+      int offset = body.length - bytes.available();
+      return new Record(type, destination, new String(body, offset, body.length - offset,
+              Compression.UTF8));
+    }
+  }
+
+  /**
+   * A mapped segment file. The mapping stays valid after the file is closed.
+   */
+  private static final class Segment {
+
+    private final long id;
+    private final File file;
+    private MappedByteBuffer buffer;
+
+    Segment(final long id, final File file, final MappedByteBuffer buffer) {
+      this.id = id;
+      this.file = file;
+      this.buffer = buffer;
+    }
+
+    void close() {
+      // mapped buffers are unmapped when collected, there is no way to do it sooner in Java 7
+      buffer = null;
+    }
+
+    void delete() {
+      close();
+      if (!file.delete()) {
+        logger.warn("Unable to delete spool segment " + file);
+      }
+    }
+  }
+}
@@ -0,0 +1,529 @@
+package com.vreco.util.mq;
+
+import com.vreco.util.shutdownhooks.ShutdownParticipant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.jms.*;
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.ActiveMQSession;
+import org.apache.log4j.Logger;
+
+/**
+ * Push mode consumer that keeps messages with the same key in order while handling different keys
+ * in parallel. Each message is hashed by its key, JMSXGroupID unless another property is set, to
+ * one of a fixed number of lanes. A lane is a bounded queue with a single worker thread, so
+ * messages sharing a key are handled one at a time in the order they arrived. When a lane is full
+ * the dispatch thread waits for room, which leaves the rest in the broker's prefetch buffer.
+ * Messages without a key are spread over the lanes round robin. A message whose key can not be
+ * read stops intake rather than letting the messages behind it overtake it, it is redelivered
+ * once the consumer closes.
+ *
+ * Messages are acknowledged one by one, with INDIVIDUAL_ACKNOWLEDGE, as soon as their handler
+ * returns, so a slow lane never holds up acknowledgement of the others. A handler that throws is
+ * retried in its lane, blocking the messages behind it, up to maxAttempts. After that the message
+ * is sent to the dead letter queue, DLQ.&lt;queue&gt; unless set, and acknowledged. Should the dead
+ * letter fail to send, the lane keeps trying every retryDelay rather than letting later messages
+ * with the same key overtake it.
+ *
+ * <pre>
+ * OrderedConsumer consumer = new OrderedConsumer(url, Runtime.getRuntime().availableProcessors(), 100);
+ * consumer.listen("orders", handler);
+ * </pre>
+ *
+ * @author Ben Aldrich
+ */
+public class OrderedConsumer implements ShutdownParticipant {
+
+  private static Logger logger = Logger.getLogger(OrderedConsumer.class);
+  public static final String GROUP_ID = "JMSXGroupID";
+  private final String url;
+  private final Lane[] lanes;
+  private final AtomicInteger nextLane = new AtomicInteger();
+  private String keyProperty = GROUP_ID;
+  private int maxAttempts = 3;
+  private long retryDelay = 100;
+  private String deadLetterQueue;
+  private RetryStage deadLetters;
+  private ConnectionManager connectionManager;
+  private Connection connection;
+  private Session session;
+  private MessageConsumer consumer;
+  private DestinationStatistics stats;
+  private boolean statsHeld = false;
+  private volatile boolean intakeStopped = false;
+
+  /**
+   * @param url broker url
+   * @param laneCount number of lanes, and so of messages handled at once
+   * @param laneCapacity messages each lane holds waiting for its worker
+   */
+  public OrderedConsumer(final String url, final int laneCount, final int laneCapacity) {
+    if (laneCount < 1) {
+      throw new IllegalArgumentException("laneCount must be at least 1");
+    }
+    if (laneCapacity < 1) {
+      throw new IllegalArgumentException("laneCapacity must be at least 1");
+    }
+    this.url = url;
+    this.lanes = new Lane[laneCount];
+    for (int i = 0; i < laneCount; i++) {
+      lanes[i] = new Lane(i, laneCapacity);
+    }
+  }
+
+  /**
+   * Start handling messages from a queue.
+   *
+   * @param queue
+   * @param handler
+   * @throws JMSException
+   */
+  public void listen(final String queue, final MessageHandler handler) throws JMSException {
+    if (consumer != null) {
+      throw new javax.jms.IllegalStateException("Already listening");
+    }
+    stats = DestinationStatistics.acquire(queue);
+    statsHeld = true;
+    if (connectionManager != null) {
+      connection = connectionManager.acquire();
+    } else {
+      connection = new ActiveMQConnectionFactory(url).createConnection();
+      connection.start();
+    }
+    try {
+      RetryPolicy policy = new RetryPolicy(1, 0, 1, 0);
+      policy.setDeadLetterQueue(deadLetterQueue);
+      deadLetters = new RetryStage(connection, policy);
+      for (Lane lane : lanes) {
+        lane.start(queue, handler);
+      }
+      session = connection.createSession(false, ActiveMQSession.INDIVIDUAL_ACKNOWLEDGE);
+      consumer = session.createConsumer(session.createQueue(queue));
+      consumer.setMessageListener(new MessageListener() {
+        @Override
+        public void onMessage(Message message) {
+          dispatch(message);
+        }
+      });
+    } catch (JMSException e) {
+      close();
+      throw e;
+    }
+  }
+
+  private void dispatch(final Message message) {
+    if (intakeStopped) {
+      // raced with stopIntake, left unacknowledged for the broker to redeliver once we close
+      logger.debug("Intake stopped, leaving message for redelivery");
+      return;
+    }
+    try {
+      Lane lane = lanes[laneOf(message)];
+      stats.recordReceive(DestinationStatistics.sizeOf(message));
+      lane.put(message);
+    } catch (InterruptedException e) {
+      logger.error("Interrupted handing a message to its lane, no longer taking messages");
+      stopIntake();
+      Thread.currentThread().interrupt();
+    } catch (JMSException e) {
+      // taking the next message would let it overtake this one, stop until we are closed and the
+      // broker redelivers both
+      stats.recordReceiveError();
+      logger.error("Failed to read the ordering key, no longer taking messages", e);
+      stopIntake();
+    }
+  }
+
+  /**
+   * @param message
+   * @return the lane the message is handled in
+   * @throws JMSException
+   */
+  int laneOf(final Message message) throws JMSException {
+    String key = message.getStringProperty(keyProperty);
+    if (key == null) {
+      return (nextLane.getAndIncrement() & Integer.MAX_VALUE) % lanes.length;
+    }
+    int h = key.hashCode();
+    // spread the bits, String hashes of similar keys differ mostly in the low bits
+    h ^= (h >>> 16);
+    return (h & Integer.MAX_VALUE) % lanes.length;
+  }
+
+  /**
+   * Order by this message property instead of JMSXGroupID. This must be called before listen to
+   * take affect.
+   *
+   * @param keyProperty
+   */
+  public void setKeyProperty(final String keyProperty) {
+    this.keyProperty = keyProperty;
+  }
+
+  public String getKeyProperty() {
+    return keyProperty;
+  }
+
+  /**
+   * How many times a message is handed to the handler before it is given up on.
+   *
+   * @param maxAttempts
+   */
+  public void setMaxAttempts(final int maxAttempts) {
+    if (maxAttempts < 1) {
+      throw new IllegalArgumentException("maxAttempts must be at least 1");
+    }
+    this.maxAttempts = maxAttempts;
+  }
+
+  /**
+   * How long a lane waits before retrying a message whose handler threw.
+   *
+   * @param retryDelay milliseconds
+   */
+  public void setRetryDelay(final long retryDelay) {
+    this.retryDelay = retryDelay;
+  }
+
+  /**
+   * Send messages given up on to this queue instead of DLQ.&lt;queue&gt;. This must be called
+   * before listen to take affect.
+   *
+   * @param deadLetterQueue
+   */
+  public void setDeadLetterQueue(final String deadLetterQueue) {
+    this.deadLetterQueue = deadLetterQueue;
+  }
+
+  /**
+   * Take the connection from a shared ConnectionManager instead of opening our own. This must be
+   * called before listen to take affect.
+   *
+   * @param connectionManager
+   */
+  public void setConnectionManager(final ConnectionManager connectionManager) {
+    this.connectionManager = connectionManager;
+  }
+
+  public int getLaneCount() {
+    return lanes.length;
+  }
+
+  /**
+   * @param lane
+   * @return statistics of one lane
+   */
+  public Lane getLane(final int lane) {
+    return lanes[lane];
+  }
+
+  /**
+   * @return messages waiting in all lanes
+   */
+  public int getDepth() {
+    int depth = 0;
+    for (Lane lane : lanes) {
+      depth += lane.getDepth();
+    }
+    return depth;
+  }
+
+  /**
+   * Stop taking messages from the broker. Messages already in the lanes are still handled, wait for
+   * them with {@link #drain(long)}.
+   */
+  @Override
+  public void stopIntake() {
+    intakeStopped = true;
+    if (consumer != null) {
+      try {
+        consumer.setMessageListener(null);
+      } catch (JMSException e) {
+        logger.warn("Failed to stop listener", e);
+      }
+    }
+  }
+
+  /**
+   * Wait for every lane to empty and go idle.
+   *
+   * @param millis
+   * @return true if all lanes are idle
+   * @throws InterruptedException
+   */
+  @Override
+  public boolean drain(final long millis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + millis;
+    for (Lane lane : lanes) {
+      if (!lane.awaitIdle(deadline - System.currentTimeMillis())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Stop the lanes and close the connection. Messages still waiting in the lanes were never
+   * acknowledged and are redelivered by the broker.
+   */
+  @Override
+  public void close() {
+    stopIntake();
+    // the workers acknowledge on the session, stop them before it goes away
+    for (Lane lane : lanes) {
+      lane.stop();
+    }
+    if (deadLetters != null) {
+      deadLetters.close();
+      deadLetters = null;
+    }
+    try {
+      if (session != null) {
+        session.close();
+      }
+    } catch (Exception e) {
+      logger.warn("Failed to close session", e);
+    }
+    if (connectionManager != null && connection != null) {
+      connectionManager.release(connection);
+    } else if (connection != null) {
+      try {
+        connection.close();
+      } catch (Exception e) {
+        logger.warn("Failed to close connection", e);
+      }
+    }
+    if (statsHeld) {
+      statsHeld = false;
+      stats.release();
+    }
+    session = null;
+    consumer = null;
+    connection = null;
+  }
+
+  /**
+   * One ordered lane: a bounded queue drained by a single worker. The lag is how long the message
+   * at the head of the queue has been waiting, the first sign of a lane falling behind.
+   */
+  public class Lane implements Runnable {
+
+    private final int index;
+    private final BlockingQueue<Entry> queue;
+    private final AtomicLong handled = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong handleNanos = new AtomicLong();
+    private final Object idleLock = new Object();
+    private MessageHandler handler;
+    private Thread worker;
+    private int pending = 0;
+
+    Lane(final int index, final int capacity) {
+      this.index = index;
+      this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    void start(final String name, final MessageHandler handler) {
+      this.handler = handler;
+      worker = new Thread(this, "OrderedConsumer-" + name + "-" + index);
+      worker.setDaemon(true);
+      worker.start();
+    }
+
+    void put(final Message message) throws InterruptedException {
+      synchronized (idleLock) {
+        pending++;
+      }
+      try {
+        queue.put(new Entry(message));
+      } catch (InterruptedException e) {
+        done();
+        throw e;
+      }
+    }
+
+    private void done() {
+      synchronized (idleLock) {
+        if (--pending == 0) {
+          idleLock.notifyAll();
+        }
+      }
+    }
+
+    void stop() {
+      if (worker != null) {
+        worker.interrupt();
+        try {
+          worker.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        worker = null;
+      }
+      // nothing will handle these now, count them off so awaitIdle does not wait on them
+      List<Entry> discarded = new ArrayList<>();
+      while (queue.drainTo(discarded) > 0) {
+        for (int i = 0; i < discarded.size(); i++) {
+          done();
+        }
+        discarded.clear();
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          Entry entry = queue.take();
+          waitNanos.addAndGet(System.nanoTime() - entry.enqueued);
+          try {
+            handle(entry.message);
+          } finally {
+            done();
+          }
+        }
+      } catch (InterruptedException e) {
+        // closed
+      }
+    }
+
+    private void handle(final Message message) throws InterruptedException {
+      long start = System.nanoTime();
+      Exception failure = null;
+      for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+        try {
+          handler.onMessage(Compression.decompress(message));
+          failure = null;
+          break;
+        } catch (InterruptedException e) {
+          throw e;
+        } catch (Exception e) {
+          failure = e;
+          stats.recordReceiveError();
+          logger.error("Message handler failed in lane " + index + ", attempt " + attempt
+                  + " of " + maxAttempts, e);
+          if (attempt < maxAttempts) {
+            Thread.sleep(retryDelay);
+          }
+        }
+      }
+      handleNanos.addAndGet(System.nanoTime() - start);
+      if (failure != null) {
+        failed.incrementAndGet();
+        deadLetter(message, failure);
+      } else {
+        handled.incrementAndGet();
+      }
+      try {
+        message.acknowledge();
+      } catch (JMSException e) {
+        // handled already, the broker redelivers it once we close
+        logger.error("Failed to acknowledge message in lane " + index, e);
+      }
+    }
+
+    /**
+     * Send a message given up on to the dead letter queue, holding up the lane until it is sent.
+     */
+    private void deadLetter(final Message message, final Exception cause)
+            throws InterruptedException {
+      while (true) {
+        try {
+          deadLetters.deadLetter(message, cause);
+          return;
+        } catch (JMSException e) {
+          logger.error("Failed to dead letter message in lane " + index + ", trying again", e);
+          Thread.sleep(retryDelay);
+        }
+      }
+    }
+
+    boolean awaitIdle(final long millis) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + millis;
+      synchronized (idleLock) {
+        while (pending > 0) {
+          long remaining = deadline - System.currentTimeMillis();
+          if (remaining <= 0) {
+            return false;
+          }
+          idleLock.wait(remaining);
+        }
+      }
+      return true;
+    }
+
+    public int getIndex() {
+      return index;
+    }
+
+    /**
+     * @return messages waiting for the worker
+     */
+    public int getDepth() {
+      return queue.size();
+    }
+
+    /**
+     * @return milliseconds the oldest waiting message has been in the lane, 0 if it is empty
+     */
+    public long getLagMillis() {
+      Entry head = queue.peek();
+      if (head == null) {
+        return 0;
+      }
+      return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - head.enqueued);
+    }
+
+    /**
+     * @return messages handled and acknowledged
+     */
+    public long getHandledCount() {
+      return handled.get();
+    }
+
+    /**
+     * @return messages given up on after maxAttempts and dead lettered
+     */
+    public long getFailedCount() {
+      return failed.get();
+    }
+
+    /**
+     * Time messages spent waiting in the lane, divide by the handled count for the average lag.
+     *
+     * @return milliseconds
+     */
+    public long getWaitMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+    }
+
+    /**
+     * @return milliseconds spent in the handler, retries included
+     */
+    public long getHandleMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(handleNanos.get());
+    }
+
+    @Override
+    public String toString() {
+      return "Lane " + index + " {depth = " + getDepth() + ", lagMillis = " + getLagMillis()
+              + ", handled = " + handled.get() + ", failed = " + failed.get() + "}";
+    }
+  }
+
+  private static class Entry {
+
+    private final Message message;
+    private final long enqueued = System.nanoTime();
+
+    Entry(final Message message) {
+      this.message = message;
+    }
+  }
+}
@@ -0,0 +1,353 @@
+package com.vreco.util.mq;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.jms.*;
+import org.apache.activemq.ActiveMQConnectionFactory;
+
+/**
+ * Thread safe producer. Keeps a bounded pool of sessions on one shared connection, each with its
+ * own cache of destinations and producers, so any thread can send to any destination without
+ * calling connect() or locking around the send.
+ *
+ * @author Ben Aldrich
+ */
+public class PooledProducer implements AutoCloseable {
+
+  private final String url;
+  private final int maxSessions;
+  private final BlockingQueue<PooledSession> idle;
+  private final AtomicInteger sessionCount = new AtomicInteger();
+  private final AtomicLong checkouts = new AtomicLong();
+  private final AtomicLong returns = new AtomicLong();
+  private final AtomicLong checkoutWaits = new AtomicLong();
+  private final AtomicLong checkoutTimeouts = new AtomicLong();
+  private final AtomicLong checkoutWaitNanos = new AtomicLong();
+  private final AtomicInteger waiting = new AtomicInteger();
+  private volatile Connection connection;
+  private volatile boolean persistence = false;
+  private volatile long ttl = Message.DEFAULT_TIME_TO_LIVE;
+  private long checkoutTimeout = 5000;
+
+  public PooledProducer(final String url, final int maxSessions) {
+    if (maxSessions < 1) {
+      throw new IllegalArgumentException("maxSessions must be at least 1");
+    }
+    this.url = url;
+    this.maxSessions = maxSessions;
+    this.idle = new ArrayBlockingQueue<>(maxSessions);
+  }
+
+  /**
+   * Open the shared connection. Sessions are created lazily up to maxSessions.
+   *
+   * @throws JMSException
+   */
+  public synchronized void connect() throws JMSException {
+    if (connection == null) {
+      ConnectionFactory connectionFactory = new ActiveMQConnectionFactory(url);
+      Connection conn = connectionFactory.createConnection();
+      conn.start();
+      connection = conn;
+    }
+  }
+
+  /**
+   * Send a TextMessage to a topic / queue.
+   *
+   * @param type
+   * @param destString
+   * @param message
+   * @throws JMSException
+   */
+  public void sendMessage(final String type, final String destString, final String message)
+          throws JMSException {
+    sendMessage(type, destString, message, null);
+  }
+
+  /**
+   * Send a TextMessage to a topic / queue with a reply destination.
+   *
+   * @param type
+   * @param destString
+   * @param message
+   * @param reply
+   * @throws JMSException
+   */
+  public void sendMessage(final String type, final String destString, final String message,
+          final Destination reply) throws JMSException {
+    if (message == null) {
+      return;
+    }
+    PooledSession pooled = checkout();
+    DestinationStatistics stats = null;
+    boolean broken = true;
+    try {
+      Message msg = pooled.session.createTextMessage(message);
+      if (reply != null) {
+        msg.setJMSReplyTo(reply);
+      }
+      MessageProducer producer = pooled.getProducer(type, destString);
+      stats = pooled.cache.getStatistics(destString);
+      producer.send(msg, getDeliveryMode(), Message.DEFAULT_PRIORITY, ttl);
+      broken = false;
+    } finally {
+      checkin(pooled, broken);
+      if (broken) {
+        if (stats == null) {
+          stats = DestinationStatistics.forDestination(destString);
+        }
+        stats.recordSendError();
+      }
+    }
+    stats.recordSend(message.length());
+  }
+
+  /**
+   * Take a session out of the pool, creating one if we are under maxSessions, otherwise wait up to
+   * the checkout timeout for another thread to return one.
+   *
+   * @return
+   * @throws JMSException
+   */
+  protected PooledSession checkout() throws JMSException {
+    if (connection == null) {
+      throw new javax.jms.IllegalStateException("PooledProducer is not connected");
+    }
+    PooledSession pooled = idle.poll();
+    if (pooled == null) {
+      pooled = createIfUnderLimit();
+    }
+    if (pooled == null) {
+      checkoutWaits.incrementAndGet();
+      long start = System.nanoTime();
+      waiting.incrementAndGet();
+      try {
+        // a slot may have freed up between the idle poll and here
+        pooled = createIfUnderLimit();
+        if (pooled == null) {
+          pooled = idle.poll(checkoutTimeout, TimeUnit.MILLISECONDS);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new JMSException("Interrupted waiting for a pooled session");
+      } finally {
+        waiting.decrementAndGet();
+        checkoutWaitNanos.addAndGet(System.nanoTime() - start);
+      }
+      if (pooled == null) {
+        checkoutTimeouts.incrementAndGet();
+        throw new JMSException("Timed out after " + checkoutTimeout + "ms waiting for a pooled session");
+      }
+    }
+    checkouts.incrementAndGet();
+    return pooled;
+  }
+
+  /**
+   * Return a session to the pool, broken sessions are closed so they can be recreated. A thread
+   * waiting for a session is handed a new one in place of a broken one, it would otherwise wait
+   * for a return that never comes.
+   *
+   * @param pooled
+   * @param broken
+   */
+  protected void checkin(final PooledSession pooled, final boolean broken) {
+    returns.incrementAndGet();
+    if (broken || connection == null || !idle.offer(pooled)) {
+      pooled.close();
+      sessionCount.decrementAndGet();
+      if (waiting.get() > 0 && connection != null) {
+        replace();
+      }
+    }
+  }
+
+  private void replace() {
+    try {
+      PooledSession created = createIfUnderLimit();
+      if (created != null && !idle.offer(created)) {
+        created.close();
+        sessionCount.decrementAndGet();
+      }
+    } catch (JMSException e) {
+      // the waiters time out, or create one themselves once the broker is back
+    }
+  }
+
+  private PooledSession createIfUnderLimit() throws JMSException {
+    while (true) {
+      int count = sessionCount.get();
+      if (count >= maxSessions) {
+        return null;
+      }
+      if (sessionCount.compareAndSet(count, count + 1)) {
+        break;
+      }
+    }
+    try {
+      return new PooledSession(connection.createSession(false, Session.AUTO_ACKNOWLEDGE));
+    } catch (JMSException e) {
+      sessionCount.decrementAndGet();
+      throw e;
+    }
+  }
+
+  private int getDeliveryMode() {
+    return persistence ? DeliveryMode.PERSISTENT : DeliveryMode.NON_PERSISTENT;
+  }
+
+  /**
+   * Set persistence for all messages sent after this call.
+   *
+   * @param persistence
+   */
+  public void setPersistence(final boolean persistence) {
+    this.persistence = persistence;
+  }
+
+  /**
+   * Set ttl for all messages sent after this call.
+   *
+   * @param ttl
+   */
+  public void setTTL(final long ttl) {
+    this.ttl = ttl;
+  }
+
+  /**
+   * How long a sender waits for a session when the pool is exhausted.
+   *
+   * @param checkoutTimeout milliseconds
+   */
+  public void setCheckoutTimeout(final long checkoutTimeout) {
+    this.checkoutTimeout = checkoutTimeout;
+  }
+
+  public long getCheckoutTimeout() {
+    return checkoutTimeout;
+  }
+
+  public int getMaxSessions() {
+    return maxSessions;
+  }
+
+  /**
+   * Number of sessions currently open, checked out or idle.
+   *
+   * @return
+   */
+  public int getSessionCount() {
+    return sessionCount.get();
+  }
+
+  public int getIdleCount() {
+    return idle.size();
+  }
+
+  public long getCheckoutCount() {
+    return checkouts.get();
+  }
+
+  public long getReturnCount() {
+    return returns.get();
+  }
+
+  /**
+   * Number of checkouts that found the pool exhausted and had to wait.
+   *
+   * @return
+   */
+  public long getCheckoutWaitCount() {
+    return checkoutWaits.get();
+  }
+
+  public long getCheckoutTimeoutCount() {
+    return checkoutTimeouts.get();
+  }
+
+  /**
+   * Total time spent waiting for a session, in milliseconds.
+   *
+   * @return
+   */
+  public long getCheckoutWaitMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(checkoutWaitNanos.get());
+  }
+
+  /**
+   * Close the idle sessions and the shared connection, sessions still checked out are closed along
+   * with the connection.
+   */
+  @Override
+  public synchronized void close() {
+    Connection conn = connection;
+    connection = null;
+    PooledSession pooled;
+    while ((pooled = idle.poll()) != null) {
+      pooled.close();
+      sessionCount.decrementAndGet();
+    }
+    try {
+      if (conn != null) {
+        conn.close();
+      }
+    } catch (Exception e) {
+      //loghere
+    }
+  }
+
+  /**
+   * A session along with the destinations and producers created on it. Only ever used by the
+   * thread that checked it out.
+   */
+  protected static class PooledSession {
+
+    private final Session session;
+    private final ProducerCache cache = new ProducerCache();
+
+    PooledSession(final Session session) {
+      this.session = session;
+    }
+
+    MessageProducer getProducer(final String type, final String destString) throws JMSException {
+      Destination destination = getDestination(type, destString);
+      MessageProducer producer = cache.getProducer(destString);
+      if (producer == null) {
+        producer = session.createProducer(destination);
+        cache.putProducer(destString, producer);
+      }
+      return producer;
+    }
+
+    Destination getDestination(final String type, final String destString) throws JMSException {
+      Destination destination = cache.getDestination(destString);
+      if (destination == null) {
+        switch (type) {
+          case "queue":
+            destination = session.createQueue(destString);
+            break;
+          case "topic":
+            destination = session.createTopic(destString);
+            break;
+          default:
+            throw new JMSException("Unknown destination type: " + type);
+        }
+        cache.putDestination(destString, destination);
+      }
+      return destination;
+    }
+
+    void close() {
+      cache.clear();
+      try {
+        session.close();
+      } catch (Exception e) {
+        //loghere
+      }
+    }
+  }
+}
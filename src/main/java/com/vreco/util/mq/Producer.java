@@ -1,9 +1,24 @@
 package com.vreco.util.mq;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
 import javax.jms.*;
 import org.apache.activemq.ActiveMQConnection;
 import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.ActiveMQMessageProducer;
+import org.apache.activemq.AsyncCallback;
 
 /**
  * @author mgolowka
@@ -18,8 +33,18 @@ public class Producer implements AutoCloseable {
   private MessageProducer producer;
   private boolean persistence = false;
   private boolean transactions = false;
-  private HashMap<String, Destination> destinations = new HashMap();
-  private HashMap<String, MessageProducer> producers = new HashMap();
+  private boolean instrumentation = false;
+  private int compressionThreshold = -1;
+  private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+  private final ProducerCache cache = new ProducerCache();
+  private DestinationStatistics stats;
+  private ConnectionManager connectionManager;
+  private MessageProducer replyProducer;
+  private int asyncWindow = 1000;
+  private long asyncWindowTimeout = 30000;
+  private Semaphore window = new Semaphore(asyncWindow);
+  private final Set<SendFuture> inFlight = Collections.newSetFromMap(
+          new ConcurrentHashMap<SendFuture, Boolean>());
 
   public Producer(final String url) {
     this.url = url;
@@ -39,6 +64,17 @@ public class Producer implements AutoCloseable {
     setProducer(type, queue);
   }
 
+  /**
+   * Connect without picking a destination, for sending with
+   * {@link #sendMessage(String, String, String)}.
+   *
+   * @throws JMSException
+   */
+  public void connect() throws JMSException {
+    setConnection();
+    setSession();
+  }
+
   /**
    * set our session.
    *
@@ -60,7 +96,7 @@ public class Producer implements AutoCloseable {
    * @throws JMSException
    */
   protected void setDestination(final String type, final String destString) throws JMSException {
-    Destination previousDestination = destinations.get(destString);
+    Destination previousDestination = cache.getDestination(destString);
     if (previousDestination != null) {
       destination = previousDestination;
     } else {
@@ -78,11 +114,11 @@ public class Producer implements AutoCloseable {
     switch (type) {
       case "queue":
         destination = session.createQueue(destString);
-        destinations.put(destString, destination);
+        cache.putDestination(destString, destination);
         break;
       case "topic":
         destination = session.createTopic(destString);
-        destinations.put(destString, destination);
+        cache.putDestination(destString, destination);
         break;
     }
   }
@@ -95,12 +131,13 @@ public class Producer implements AutoCloseable {
    * @throws JMSException
    */
   protected void setProducer(final String type, final String destString) throws JMSException {
-    MessageProducer previousProducer = producers.get(destString);
+    MessageProducer previousProducer = cache.getProducer(destString);
     if (previousProducer != null) {
       producer = previousProducer;
     } else {
       setProducerWithDestination(destString);
     }
+    stats = cache.getStatistics(destString);
     setPersistence(persistence);
   }
 
@@ -111,7 +148,7 @@ public class Producer implements AutoCloseable {
    */
   protected void setProducerWithDestination(final String destString) throws JMSException {
     producer = session.createProducer(destination);
-    producers.put(destString, producer);
+    cache.putProducer(destString, producer);
 
   }
 
@@ -124,8 +161,8 @@ public class Producer implements AutoCloseable {
     if (message == null) {
       return;
     }
-    Message msg = session.createTextMessage(message);
-    producer.send(msg);
+    Message msg = createTextMessage(message);
+    send(msg, message.length());
   }
 
   /**
@@ -138,11 +175,308 @@ public class Producer implements AutoCloseable {
     if (message == null) {
       return;
     }
-    Message msg = session.createTextMessage(message);
+    Message msg = createTextMessage(message);
     if (reply != null) {
       msg.setJMSReplyTo(reply);
     }
-    producer.send(msg);
+    send(msg, message.length());
+  }
+
+  /**
+   * Send a TextMessage to the given destination, reusing the cached destination and producer if we
+   * have seen it before.
+   *
+   * @param type
+   * @param destString
+   * @param message
+   * @throws JMSException
+   */
+  public void sendMessage(final String type, final String destString, final String message)
+          throws JMSException {
+    setDestination(type, destString);
+    setProducer(type, destString);
+    sendMessage(message);
+  }
+
+  /**
+   * Reply to a request from a {@link RequestReplyClient}: send a TextMessage to its JMSReplyTo
+   * with its JMSCorrelationID. Requests without a JMSReplyTo are ignored.
+   *
+   * @param request
+   * @param message
+   * @throws JMSException
+   */
+  public void sendReply(final Message request, final String message) throws JMSException {
+    Destination replyTo = request.getJMSReplyTo();
+    if (replyTo == null || message == null) {
+      return;
+    }
+    if (replyProducer == null) {
+      // reply queues are mostly temporary, so use one producer for all of them instead of caching
+      replyProducer = session.createProducer(null);
+    }
+    Message msg = createTextMessage(message);
+    msg.setJMSCorrelationID(request.getJMSCorrelationID());
+    int deliveryMode = persistence ? DeliveryMode.PERSISTENT : DeliveryMode.NON_PERSISTENT;
+    replyProducer.send(replyTo, msg, deliveryMode, Message.DEFAULT_PRIORITY,
+            Message.DEFAULT_TIME_TO_LIVE);
+  }
+
+  /**
+   * Send an object as JSON in a BytesMessage. The JSON is streamed straight into the message body
+   * through a per-thread buffer, read it back with {@link Consumer#receiveObject(Class)}.
+   *
+   * @param object
+   * @throws JMSException
+   */
+  public void sendObject(final Object object) throws JMSException {
+    if (object == null) {
+      return;
+    }
+    BytesMessage msg = session.createBytesMessage();
+    int size = JsonMessages.write(object, msg, compressionThreshold, compressionLevel);
+    send(msg, size);
+  }
+
+  /**
+   * Create a TextMessage, or a compressed BytesMessage when compression is on and the text is at
+   * least the threshold. Text that does not get smaller is sent as is.
+   *
+   * @param message
+   * @return
+   * @throws JMSException
+   */
+  private Message createTextMessage(final String message) throws JMSException {
+    if (compressionThreshold < 0 || message.length() < compressionThreshold) {
+      return session.createTextMessage(message);
+    }
+    byte[] body = message.getBytes(Compression.UTF8);
+    BytesMessage msg = session.createBytesMessage();
+    if (Compression.write(body, body.length, compressionLevel, msg) < 0) {
+      return session.createTextMessage(message);
+    }
+    return msg;
+  }
+
+  /**
+   * Send on the current producer, counting it in the destination statistics.
+   *
+   * @param msg
+   * @param size payload size
+   * @throws JMSException
+   */
+  private void send(final Message msg, final long size) throws JMSException {
+    long start = instrumentation ? System.nanoTime() : 0;
+    try {
+      producer.send(msg);
+    } catch (JMSException e) {
+      stats.recordSendError();
+      throw e;
+    }
+    if (instrumentation) {
+      stats.recordSendTime(System.nanoTime() - start);
+    }
+    stats.recordSend(size);
+  }
+
+  /**
+   * Send a TextMessage without waiting for the broker to confirm it. At most asyncWindow messages
+   * are unconfirmed at once, further sends wait for a slot, so this gets most of the throughput of
+   * {@link #setUseAsyncSend(boolean)} while still learning about every failed send. The callback,
+   * if any, is run on the connection's transport thread once the broker answers, keep it short.
+   *
+   * @param message
+   * @param callback told about the outcome of this message, may be null
+   * @return the pending send, or null if the message was null
+   * @throws JMSException if the send could not be started or no slot freed up in time, the
+   * callback is not called then
+   */
+  public SendFuture sendAsync(final String message, final AsyncCallback callback)
+          throws JMSException {
+    return sendAsync(message, callback, true);
+  }
+
+  private SendFuture sendAsync(final String message, final AsyncCallback callback,
+          final boolean wait) throws JMSException {
+    if (message == null) {
+      return null;
+    }
+    if (transactions) {
+      throw new javax.jms.IllegalStateException(
+              "Async sends are confirmed on commit in a transacted session, use sendBatch");
+    }
+    Message msg = createTextMessage(message);
+    SendFuture future = new SendFuture(window, stats, message.length(), callback);
+    try {
+      if (!wait && !window.tryAcquire()) {
+        return null;
+      }
+      if (wait && !window.tryAcquire(asyncWindowTimeout, TimeUnit.MILLISECONDS)) {
+        throw new JMSException("Timed out after " + asyncWindowTimeout + "ms waiting for one of "
+                + asyncWindow + " unconfirmed sends");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new JMSException("Interrupted waiting for an unconfirmed send");
+    }
+    inFlight.add(future);
+    try {
+      ((ActiveMQMessageProducer) producer).send(msg, producer.getDeliveryMode(),
+              producer.getPriority(), producer.getTimeToLive(), future);
+    } catch (JMSException e) {
+      future.abandon(e);
+      throw e;
+    }
+    return future;
+  }
+
+  /**
+   * Send a TextMessage to the given destination without waiting for the broker to confirm it.
+   *
+   * @param type
+   * @param destString
+   * @param message
+   * @param callback may be null
+   * @return the pending send
+   * @throws JMSException
+   * @see Producer#sendAsync(String, AsyncCallback)
+   */
+  public SendFuture sendAsync(final String type, final String destString, final String message,
+          final AsyncCallback callback) throws JMSException {
+    setDestination(type, destString);
+    setProducer(type, destString);
+    return sendAsync(message, callback);
+  }
+
+  /**
+   * Like {@link #sendAsync(String, String, String, AsyncCallback)}, but never waits for a slot.
+   *
+   * @param type
+   * @param destString
+   * @param message
+   * @param callback
+   * @return the pending send, null if the window is full or the message was null
+   * @throws JMSException if the send could not be started
+   */
+  public SendFuture trySendAsync(final String type, final String destString, final String message,
+          final AsyncCallback callback) throws JMSException {
+    setDestination(type, destString);
+    setProducer(type, destString);
+    return sendAsync(message, callback, false);
+  }
+
+  /**
+   * Wait until the broker has confirmed, or failed, every async send so far.
+   *
+   * @param millis
+   * @return true if none are left unconfirmed
+   * @throws InterruptedException
+   */
+  public boolean flushAsync(final long millis) throws InterruptedException {
+    Semaphore current = window;
+    if (!current.tryAcquire(asyncWindow, millis, TimeUnit.MILLISECONDS)) {
+      return false;
+    }
+    current.release(asyncWindow);
+    return true;
+  }
+
+  /**
+   * @return async sends the broker has not confirmed yet
+   */
+  public int getAsyncInFlight() {
+    return inFlight.size();
+  }
+
+  /**
+   * Send a batch of TextMessages to the current destination inside a single transaction. The
+   * session must be transacted (see {@link #setUseTransactions(boolean)}), so the broker only
+   * syncs once for the whole batch instead of once per message. On failure the transaction is
+   * rolled back and nothing from the batch is delivered.
+   *
+   * @param messages
+   * @return the number of messages sent, null messages are skipped
+   * @throws JMSException
+   */
+  public int sendBatch(final Collection<String> messages) throws JMSException {
+    if (!transactions) {
+      throw new javax.jms.IllegalStateException(
+              "Batch sends require a transacted session, call setUseTransactions(true) before connect");
+    }
+    if (messages == null || messages.isEmpty()) {
+      return 0;
+    }
+    int sent = 0;
+    long size = 0;
+    long start = instrumentation ? System.nanoTime() : 0;
+    try {
+      for (String message : messages) {
+        if (message == null) {
+          continue;
+        }
+        producer.send(createTextMessage(message));
+        sent++;
+        size += message.length();
+      }
+      session.commit();
+    } catch (JMSException e) {
+      stats.recordSendError();
+      rollbackQuietly();
+      throw e;
+    }
+    if (instrumentation) {
+      stats.recordSendTime(System.nanoTime() - start);
+    }
+    stats.recordSend(sent, size);
+    return sent;
+  }
+
+  /**
+   * Send a batch of TextMessages to the given destination inside a single transaction, reusing
+   * the cached destination and producer if we have seen it before.
+   *
+   * @param type
+   * @param destString
+   * @param messages
+   * @return the number of messages sent
+   * @throws JMSException
+   * @see Producer#sendBatch(Collection)
+   */
+  public int sendBatch(final String type, final String destString,
+          final Collection<String> messages) throws JMSException {
+    setDestination(type, destString);
+    setProducer(type, destString);
+    return sendBatch(messages);
+  }
+
+  /**
+   * Commit the current transaction.
+   *
+   * @throws JMSException
+   */
+  public void commit() throws JMSException {
+    if (transactions) {
+      session.commit();
+    }
+  }
+
+  /**
+   * Roll back the current transaction.
+   *
+   * @throws JMSException
+   */
+  public void rollback() throws JMSException {
+    if (transactions) {
+      session.rollback();
+    }
+  }
+
+  private void rollbackQuietly() {
+    try {
+      rollback();
+    } catch (JMSException e) {
+      //loghere
+    }
   }
 
   /**
@@ -150,6 +484,10 @@ public class Producer implements AutoCloseable {
    * @throws JMSException 
    */
   private void setConnection() throws JMSException {
+    if (connection == null && connectionManager != null) {
+      connection = connectionManager.acquire();
+      return;
+    }
     if (connectionFactory == null) {
       connectionFactory = new ActiveMQConnectionFactory(url);
     }
@@ -187,6 +525,85 @@ public class Producer implements AutoCloseable {
     }
   }
   
+  /**
+   * Enable transactions on the session. This must be called before connect to take affect.
+   *
+   * @param bool
+   */
+  public void setUseTransactions(final boolean bool) {
+    transactions = bool;
+  }
+
+  /**
+   * Take the connection from a shared ConnectionManager instead of opening our own. It is released
+   * back to the manager on close. This must be called before connect to take affect.
+   *
+   * @param connectionManager
+   */
+  public void setConnectionManager(final ConnectionManager connectionManager) {
+    this.connectionManager = connectionManager;
+  }
+
+  /**
+   * Time every send, including the commit of a batch, into the destination statistics and the
+   * Profiler tag mq.send.&lt;destination&gt;. Message and error counts are always kept.
+   *
+   * @param instrumentation
+   */
+  public void setInstrumentation(final boolean instrumentation) {
+    this.instrumentation = instrumentation;
+  }
+
+  /**
+   * Deflate message bodies of at least threshold characters (bytes for sendObject). Compressed
+   * messages go out as a flagged BytesMessage that {@link Consumer} inflates back into a
+   * TextMessage without the caller noticing. Off by default.
+   *
+   * @param threshold minimum size to compress, or -1 to turn compression off
+   */
+  public void setCompressionThreshold(final int threshold) {
+    this.compressionThreshold = threshold;
+  }
+
+  /**
+   * Deflate level used when compressing, 1 (fastest) to 9 (smallest).
+   *
+   * @param level
+   */
+  public void setCompressionLevel(final int level) {
+    if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION) {
+      throw new IllegalArgumentException("Invalid compression level: " + level);
+    }
+    this.compressionLevel = level;
+  }
+
+  /**
+   * Maximum number of async sends waiting for the broker to confirm them, see
+   * {@link #sendAsync(String, AsyncCallback)}. Defaults to 1000. This must be called while no async
+   * sends are in flight.
+   *
+   * @param size
+   */
+  public void setAsyncWindow(final int size) {
+    if (size < 1) {
+      throw new IllegalArgumentException("Async window must be at least 1");
+    }
+    if (!inFlight.isEmpty()) {
+      throw new java.lang.IllegalStateException("Async sends are in flight");
+    }
+    asyncWindow = size;
+    window = new Semaphore(size);
+  }
+
+  /**
+   * How long an async send waits for a slot in a full window before failing.
+   *
+   * @param millis
+   */
+  public void setAsyncWindowTimeout(final long millis) {
+    asyncWindowTimeout = millis;
+  }
+
   /**
    * This sets use async on the entire connection.
    * @param async 
@@ -195,6 +612,34 @@ public class Producer implements AutoCloseable {
     ((ActiveMQConnection)connection).setUseAsyncSend(async);
   }
 
+  /**
+   * Maximum number of destinations, with their producers, kept open for reuse. The least recently
+   * used one is closed when another is needed. Defaults to {@link ProducerCache#DEFAULT_MAX_SIZE}.
+   *
+   * @param size
+   */
+  public void setCacheSize(final int size) {
+    cache.setMaxSize(size);
+  }
+
+  /**
+   * Close cached producers unused for this long, checked as new destinations are opened.
+   *
+   * @param maxIdle milliseconds, 0 to keep them however long they sit unused
+   */
+  public void setCacheMaxIdle(final long maxIdle) {
+    cache.setMaxIdle(maxIdle);
+  }
+
+  /**
+   * The destination and producer cache, for its hit, miss and eviction counts.
+   *
+   * @return
+   */
+  public ProducerCache getCache() {
+    return cache;
+  }
+
   /**
    * Get the current destination object.
    * @return 
@@ -209,17 +654,138 @@ public class Producer implements AutoCloseable {
   @Override
   public void close() {
     try {
-      if (producer != null) {
-        producer.close();
+      cache.clear();
+      if (replyProducer != null) {
+        replyProducer.close();
       }
       if (session != null) {
         session.close();
       }
-      if (connection != null) {
+      if (connection != null && connectionManager != null) {
+        connectionManager.release(connection);
+        connection = null;
+      } else if (connection != null) {
         connection.close();
       }
     } catch (Exception e) {
       //loghere
     }
+    // the broker will not answer these any more
+    for (SendFuture future : new ArrayList<>(inFlight)) {
+      future.onException(new JMSException("Producer closed before the send was confirmed"));
+    }
+  }
+
+  /**
+   * An async send the broker has not confirmed yet. get() throws an ExecutionException caused by
+   * the JMSException if the send failed.
+   */
+  public class SendFuture implements Future<Void>, AsyncCallback {
+
+    private final Semaphore permits;
+    private final DestinationStatistics destStats;
+    private final long size;
+    private final AsyncCallback callback;
+    private final long start = System.nanoTime();
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile JMSException failure;
+
+    SendFuture(final Semaphore permits, final DestinationStatistics destStats, final long size,
+            final AsyncCallback callback) {
+      this.permits = permits;
+      this.destStats = destStats;
+      this.size = size;
+      this.callback = callback;
+    }
+
+    @Override
+    public void onSuccess() {
+      if (!finished.compareAndSet(false, true)) {
+        return;
+      }
+      if (instrumentation) {
+        destStats.recordSendTime(System.nanoTime() - start);
+      }
+      destStats.recordSend(size);
+      release();
+      if (callback != null) {
+        callback.onSuccess();
+      }
+    }
+
+    @Override
+    public void onException(final JMSException e) {
+      if (!finished.compareAndSet(false, true)) {
+        return;
+      }
+      failure = e;
+      destStats.recordSendError();
+      release();
+      if (callback != null) {
+        callback.onException(e);
+      }
+    }
+
+    /**
+     * The send never reached the broker. Free its slot without calling back, the caller learns
+     * about it from the exception instead.
+     */
+    void abandon(final JMSException e) {
+      if (!finished.compareAndSet(false, true)) {
+        return;
+      }
+      failure = e;
+      destStats.recordSendError();
+      release();
+    }
+
+    private void release() {
+      inFlight.remove(this);
+      permits.release();
+      done.countDown();
+    }
+
+    /**
+     * A message handed to the broker cannot be called back.
+     *
+     * @return false
+     */
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+      return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    @Override
+    public boolean isDone() {
+      return done.getCount() == 0;
+    }
+
+    @Override
+    public Void get() throws InterruptedException, ExecutionException {
+      done.await();
+      return result();
+    }
+
+    @Override
+    public Void get(final long timeout, final TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+      if (!done.await(timeout, unit)) {
+        throw new TimeoutException("Send not confirmed yet");
+      }
+      return result();
+    }
+
+    private Void result() throws ExecutionException {
+      if (failure != null) {
+        throw new ExecutionException(failure);
+      }
+      return null;
+    }
   }
 }
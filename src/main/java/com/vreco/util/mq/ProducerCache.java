@@ -0,0 +1,209 @@
+package com.vreco.util.mq;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import org.apache.log4j.Logger;
+
+/**
+ * Bounded cache of destinations and their producers by destination name, for a session that sends
+ * to many destinations. The least recently used destination is evicted once maxSize is reached, and
+ * destinations unused for maxIdle milliseconds are evicted as new ones are added. Evicted producers
+ * are closed. Each cached destination holds its {@link DestinationStatistics} in the registry, and
+ * lets go of them when evicted. Thread safe.
+ *
+ * @author Ben Aldrich
+ */
+public class ProducerCache {
+
+  private static Logger logger = Logger.getLogger(ProducerCache.class);
+  public static final int DEFAULT_MAX_SIZE = 1024;
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private int maxSize;
+  private long maxIdle = 0;
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  public ProducerCache() {
+    this(DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * @param maxSize number of destinations to keep
+   */
+  public ProducerCache(final int maxSize) {
+    setMaxSize(maxSize);
+  }
+
+  /**
+   * Look up a destination, counting a hit or a miss.
+   *
+   * @param name
+   * @return null if not cached
+   */
+  public synchronized Destination getDestination(final String name) {
+    Entry entry = entries.get(name);
+    if (entry == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    entry.lastUsed = System.currentTimeMillis();
+    return entry.destination;
+  }
+
+  /**
+   * Look up the producer of a destination already found with {@link #getDestination(String)}.
+   *
+   * @param name
+   * @return null if none was created yet
+   */
+  public synchronized MessageProducer getProducer(final String name) {
+    Entry entry = entries.get(name);
+    return entry == null ? null : entry.producer;
+  }
+
+  /**
+   * The statistics of a cached destination, held for as long as it stays cached.
+   *
+   * @param name
+   * @return null if not cached
+   */
+  public synchronized DestinationStatistics getStatistics(final String name) {
+    Entry entry = entries.get(name);
+    return entry == null ? null : entry.stats;
+  }
+
+  public synchronized void putDestination(final String name, final Destination destination) {
+    Entry entry = entries.get(name);
+    if (entry == null) {
+      entries.put(name, new Entry(name, destination));
+      evict();
+    } else {
+      entry.destination = destination;
+    }
+  }
+
+  /**
+   * Cache the producer of a destination, closing the one it replaces.
+   *
+   * @param name
+   * @param producer
+   * @throws JMSException
+   */
+  public synchronized void putProducer(final String name, final MessageProducer producer)
+          throws JMSException {
+    Entry entry = entries.get(name);
+    if (entry == null) {
+      entry = new Entry(name, producer.getDestination());
+      entries.put(name, entry);
+      evict();
+    } else if (entry.producer != null && entry.producer != producer) {
+      close(entry.producer);
+    }
+    entry.producer = producer;
+  }
+
+  private void evict() {
+    long idleSince = maxIdle > 0 ? System.currentTimeMillis() - maxIdle : Long.MIN_VALUE;
+    Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+    while (it.hasNext()) {
+      Entry eldest = it.next().getValue();
+      if (entries.size() <= maxSize && eldest.lastUsed >= idleSince) {
+        // in access order, so everything after this is newer
+        break;
+      }
+      it.remove();
+      evictions++;
+      close(eldest.producer);
+      eldest.stats.release();
+    }
+  }
+
+  private static void close(final MessageProducer producer) {
+    if (producer == null) {
+      return;
+    }
+    try {
+      producer.close();
+    } catch (JMSException e) {
+      logger.warn("Failed to close evicted producer", e);
+    }
+  }
+
+  /**
+   * Close every cached producer and empty the cache.
+   */
+  public synchronized void clear() {
+    for (Entry entry : entries.values()) {
+      close(entry.producer);
+      entry.stats.release();
+    }
+    entries.clear();
+  }
+
+  public final synchronized void setMaxSize(final int maxSize) {
+    if (maxSize < 1) {
+      throw new IllegalArgumentException("maxSize must be at least 1");
+    }
+    this.maxSize = maxSize;
+    evict();
+  }
+
+  public synchronized int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Evict destinations that have not been used for this long, checked as new destinations are
+   * added.
+   *
+   * @param maxIdle milliseconds, 0 to keep destinations however long they sit unused
+   */
+  public synchronized void setMaxIdle(final long maxIdle) {
+    this.maxIdle = maxIdle;
+  }
+
+  public synchronized long getMaxIdle() {
+    return maxIdle;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "ProducerCache {size = " + entries.size() + ", maxSize = " + maxSize + ", hits = " + hits
+            + ", misses = " + misses + ", evictions = " + evictions + "}";
+  }
+
+  private static class Entry {
+
+    private final DestinationStatistics stats;
+    private Destination destination;
+    private MessageProducer producer;
+    private long lastUsed = System.currentTimeMillis();
+
+    Entry(final String name, final Destination destination) {
+      this.stats = DestinationStatistics.acquire(name);
+      this.destination = destination;
+    }
+  }
+}
@@ -0,0 +1,417 @@
+package com.vreco.util.mq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.jms.*;
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.log4j.Logger;
+
+/**
+ * Request/reply over one temporary reply queue and one listener shared by every request. Each
+ * request gets a JMSCorrelationID, and replies are matched back to the waiting request by it, so a
+ * call costs one send and one dispatch. At most maxInFlight requests are outstanding at once.
+ * Requests expire after their timeout, both on the broker and here. Thread safe.
+ *
+ * The other side replies to JMSReplyTo with the JMSCorrelationID copied over, see
+ * {@link Producer#sendReply(Message, String)}.
+ *
+ * @author Ben Aldrich
+ */
+public class RequestReplyClient implements AutoCloseable {
+
+  private static Logger logger = Logger.getLogger(RequestReplyClient.class);
+  private final String url;
+  private final int maxInFlight;
+  private final Semaphore permits;
+  private final ConcurrentMap<String, ReplyFuture> pending = new ConcurrentHashMap<>();
+  private final String idPrefix = UUID.randomUUID().toString() + ":";
+  private final AtomicLong nextId = new AtomicLong();
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong replies = new AtomicLong();
+  private final AtomicLong timeouts = new AtomicLong();
+  private final AtomicLong lateReplies = new AtomicLong();
+  private final ScheduledThreadPoolExecutor timer;
+  private final Object sendLock = new Object();
+  private final ProducerCache cache = new ProducerCache();
+  private ConnectionManager connectionManager;
+  private Connection connection;
+  private Session sendSession;
+  private Session replySession;
+  private TemporaryQueue replyQueue;
+  private volatile boolean persistence = false;
+
+  /**
+   * @param url broker url
+   * @param maxInFlight most requests waiting for a reply at once
+   */
+  public RequestReplyClient(final String url, final int maxInFlight) {
+    if (maxInFlight < 1) {
+      throw new IllegalArgumentException("maxInFlight must be at least 1");
+    }
+    this.url = url;
+    this.maxInFlight = maxInFlight;
+    this.permits = new Semaphore(maxInFlight);
+    this.timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "RequestReplyClient-timer");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.timer.setRemoveOnCancelPolicy(true);
+  }
+
+  /**
+   * Connect and start listening on the temporary reply queue.
+   *
+   * @throws JMSException
+   */
+  public void connect() throws JMSException {
+    if (connectionManager != null) {
+      connection = connectionManager.acquire();
+    } else {
+      connection = new ActiveMQConnectionFactory(url).createConnection();
+      connection.start();
+    }
+    sendSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+    replySession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+    replyQueue = replySession.createTemporaryQueue();
+    replySession.createConsumer(replyQueue).setMessageListener(new MessageListener() {
+      @Override
+      public void onMessage(Message message) {
+        onReply(message);
+      }
+    });
+  }
+
+  /**
+   * Send a request without waiting for the reply. The request expires, on the broker too, if no
+   * reply arrives within timeout.
+   *
+   * @param type
+   * @param destString
+   * @param message
+   * @param timeout milliseconds, also the longest to wait for a free in-flight slot
+   * @return the pending reply
+   * @throws JMSException if the send failed or no in-flight slot freed up in time
+   */
+  public ReplyFuture request(final String type, final String destString, final String message,
+          final long timeout) throws JMSException {
+    try {
+      if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+        throw new JMSException("Timed out after " + timeout + "ms waiting for one of "
+                + maxInFlight + " in-flight requests to finish");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new JMSException("Interrupted waiting for an in-flight request to finish");
+    }
+    final String id = idPrefix + nextId.incrementAndGet();
+    final ReplyFuture future = new ReplyFuture(id);
+    pending.put(id, future);
+    future.timeoutTask = timer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        if (finish(id) != null) {
+          timeouts.incrementAndGet();
+          future.fail(new TimeoutException("No reply to " + id + " within " + timeout + "ms"));
+        }
+      }
+    }, timeout, TimeUnit.MILLISECONDS);
+    try {
+      synchronized (sendLock) {
+        TextMessage msg = sendSession.createTextMessage(message);
+        msg.setJMSCorrelationID(id);
+        msg.setJMSReplyTo(replyQueue);
+        getProducer(type, destString).send(msg,
+                persistence ? DeliveryMode.PERSISTENT : DeliveryMode.NON_PERSISTENT,
+                Message.DEFAULT_PRIORITY, timeout);
+      }
+    } catch (JMSException e) {
+      finish(id);
+      throw e;
+    }
+    requests.incrementAndGet();
+    return future;
+  }
+
+  /**
+   * Send a request and wait for the reply.
+   *
+   * @param type
+   * @param destString
+   * @param message
+   * @param timeout milliseconds
+   * @return the reply
+   * @throws JMSException if the request failed or timed out
+   */
+  public TextMessage call(final String type, final String destString, final String message,
+          final long timeout) throws JMSException {
+    ReplyFuture future = request(type, destString, message, timeout);
+    try {
+      Message reply = future.get();
+      if (!(reply instanceof TextMessage)) {
+        throw new JMSException("Reply not of type TextMessage: " + reply.getClass());
+      }
+      return (TextMessage) reply;
+    } catch (InterruptedException e) {
+      future.cancel(false);
+      Thread.currentThread().interrupt();
+      throw new JMSException("Interrupted waiting for a reply");
+    } catch (ExecutionException e) {
+      JMSException ex = new JMSException(e.getCause().getMessage());
+      if (e.getCause() instanceof Exception) {
+        ex.setLinkedException((Exception) e.getCause());
+      }
+      throw ex;
+    }
+  }
+
+  private MessageProducer getProducer(final String type, final String destString)
+          throws JMSException {
+    Destination destination = cache.getDestination(destString);
+    if (destination == null) {
+      switch (type) {
+        case "queue":
+          destination = sendSession.createQueue(destString);
+          break;
+        case "topic":
+          destination = sendSession.createTopic(destString);
+          break;
+        default:
+          throw new JMSException("Unknown destination type: " + type);
+      }
+      cache.putDestination(destString, destination);
+    }
+    MessageProducer producer = cache.getProducer(destString);
+    if (producer == null) {
+      producer = sendSession.createProducer(destination);
+      cache.putProducer(destString, producer);
+    }
+    return producer;
+  }
+
+  private void onReply(final Message message) {
+    try {
+      ReplyFuture future = finish(message.getJMSCorrelationID());
+      if (future == null) {
+        lateReplies.incrementAndGet();
+        return;
+      }
+      replies.incrementAndGet();
+      future.complete(Compression.decompress(message));
+    } catch (JMSException e) {
+      logger.error("Failed to handle reply", e);
+    }
+  }
+
+  /**
+   * Stop tracking a request and free its in-flight slot, exactly once.
+   *
+   * @return the request, or null if it already finished
+   */
+  private ReplyFuture finish(final String id) {
+    if (id == null) {
+      return null;
+    }
+    ReplyFuture future = pending.remove(id);
+    if (future != null) {
+      permits.release();
+      ScheduledFuture<?> task = future.timeoutTask;
+      if (task != null) {
+        task.cancel(false);
+      }
+    }
+    return future;
+  }
+
+  /**
+   * Share a connection from a ConnectionManager instead of opening our own. This must be called
+   * before connect to take affect.
+   *
+   * @param connectionManager
+   */
+  public void setConnectionManager(final ConnectionManager connectionManager) {
+    this.connectionManager = connectionManager;
+  }
+
+  /**
+   * Set persistence for all requests sent after this call.
+   *
+   * @param persistence
+   */
+  public void setPersistence(final boolean persistence) {
+    this.persistence = persistence;
+  }
+
+  /**
+   * @return the temporary queue replies are sent to
+   */
+  public Destination getReplyDestination() {
+    return replyQueue;
+  }
+
+  public int getMaxInFlight() {
+    return maxInFlight;
+  }
+
+  /**
+   * @return requests waiting for a reply
+   */
+  public int getInFlightCount() {
+    return pending.size();
+  }
+
+  public long getRequestCount() {
+    return requests.get();
+  }
+
+  public long getReplyCount() {
+    return replies.get();
+  }
+
+  public long getTimeoutCount() {
+    return timeouts.get();
+  }
+
+  /**
+   * @return replies that arrived after their request timed out or was cancelled
+   */
+  public long getLateReplyCount() {
+    return lateReplies.get();
+  }
+
+  /**
+   * Fail every pending request and close the reply queue and connection.
+   */
+  @Override
+  public void close() {
+    List<String> ids = new ArrayList<>(pending.keySet());
+    for (String id : ids) {
+      ReplyFuture future = finish(id);
+      if (future != null) {
+        future.fail(new JMSException("RequestReplyClient closed"));
+      }
+    }
+    timer.shutdownNow();
+    try {
+      cache.clear();
+      if (replySession != null) {
+        replySession.close();
+      }
+      if (replyQueue != null) {
+        replyQueue.delete();
+      }
+      if (sendSession != null) {
+        sendSession.close();
+      }
+    } catch (Exception e) {
+      logger.warn("Failed to close request/reply sessions", e);
+    }
+    if (connectionManager != null && connection != null) {
+      connectionManager.release(connection);
+    } else if (connection != null) {
+      try {
+        connection.close();
+      } catch (Exception e) {
+        logger.warn("Failed to close connection", e);
+      }
+    }
+    connection = null;
+  }
+
+  /**
+   * A reply that has not arrived yet. get() throws an ExecutionException caused by a
+   * TimeoutException once the request timeout passes without a reply.
+   */
+  public class ReplyFuture implements Future<Message> {
+
+    private final String correlationId;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile ScheduledFuture<?> timeoutTask;
+    private volatile Message reply;
+    private volatile Exception failure;
+    private volatile boolean cancelled = false;
+
+    ReplyFuture(final String correlationId) {
+      this.correlationId = correlationId;
+    }
+
+    public String getCorrelationId() {
+      return correlationId;
+    }
+
+    void complete(final Message message) {
+      reply = message;
+      done.countDown();
+    }
+
+    void fail(final Exception e) {
+      failure = e;
+      done.countDown();
+    }
+
+    /**
+     * Stop waiting for the reply and free its in-flight slot. A reply arriving later is dropped.
+     */
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+      if (finish(correlationId) == null) {
+        return false;
+      }
+      cancelled = true;
+      done.countDown();
+      return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+      return done.getCount() == 0;
+    }
+
+    @Override
+    public Message get() throws InterruptedException, ExecutionException {
+      done.await();
+      return result();
+    }
+
+    @Override
+    public Message get(final long timeout, final TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+      if (!done.await(timeout, unit)) {
+        throw new TimeoutException("No reply to " + correlationId + " yet");
+      }
+      return result();
+    }
+
+    private Message result() throws ExecutionException {
+      if (cancelled) {
+        throw new CancellationException("Request " + correlationId + " was cancelled");
+      }
+      if (failure != null) {
+        throw new ExecutionException(failure);
+      }
+      return reply;
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package com.vreco.util.mq;
+
+/**
+ * How a {@link RetryStage} retries messages whose handler failed: up to maxAttempts handler calls
+ * in total, waiting initialDelay before the first retry and multiplier times longer before each one
+ * after that, never more than maxDelay. Messages still failing after maxAttempts go to a dead
+ * letter queue, DLQ.&lt;queue&gt; unless set.
+ *
+ * Delays are either left to the broker, through the AMQ_SCHEDULED_DELAY property, which survives a
+ * restart but needs schedulerSupport turned on in the broker, or kept on a local timer.
+ *
+ * @author Ben Aldrich
+ */
+public class RetryPolicy {
+
+  public static final String DLQ_PREFIX = "DLQ.";
+  private final int maxAttempts;
+  private final long initialDelay;
+  private final double multiplier;
+  private final long maxDelay;
+  private String deadLetterQueue;
+  private boolean brokerScheduling = false;
+
+  /**
+   * @param maxAttempts handler calls before a message is dead lettered, at least 1
+   * @param initialDelay milliseconds before the first retry
+   * @param multiplier growth of the delay with each retry, at least 1
+   * @param maxDelay longest delay in milliseconds
+   */
+  public RetryPolicy(final int maxAttempts, final long initialDelay, final double multiplier,
+          final long maxDelay) {
+    if (maxAttempts < 1) {
+      throw new IllegalArgumentException("maxAttempts must be at least 1");
+    }
+    if (initialDelay < 0 || maxDelay < initialDelay) {
+      throw new IllegalArgumentException("Delays must satisfy 0 <= initialDelay <= maxDelay");
+    }
+    if (multiplier < 1) {
+      throw new IllegalArgumentException("multiplier must be at least 1");
+    }
+    this.maxAttempts = maxAttempts;
+    this.initialDelay = initialDelay;
+    this.multiplier = multiplier;
+    this.maxDelay = maxDelay;
+  }
+
+  /**
+   * @param attempts handler calls that failed so far
+   * @return true if the message gets another try
+   */
+  public boolean shouldRetry(final int attempts) {
+    return attempts < maxAttempts;
+  }
+
+  /**
+   * @param attempts handler calls that failed so far, at least 1
+   * @return milliseconds to wait before the next try
+   */
+  public long delayFor(final int attempts) {
+    double delay = initialDelay * Math.pow(multiplier, Math.max(0, attempts - 1));
+    return delay >= maxDelay ? maxDelay : (long) delay;
+  }
+
+  /**
+   * @param queue the queue the message failed on
+   * @return where messages from that queue go after maxAttempts
+   */
+  public String deadLetterQueueFor(final String queue) {
+    return deadLetterQueue != null ? deadLetterQueue : DLQ_PREFIX + queue;
+  }
+
+  /**
+   * Send every dead lettered message to this queue instead of DLQ.&lt;queue&gt;.
+   *
+   * @param deadLetterQueue
+   */
+  public void setDeadLetterQueue(final String deadLetterQueue) {
+    this.deadLetterQueue = deadLetterQueue;
+  }
+
+  /**
+   * Republish retries right away with AMQ_SCHEDULED_DELAY set, so the broker holds them, instead of
+   * holding them on a local timer. The broker must have schedulerSupport on, otherwise it delivers
+   * them at once.
+   *
+   * @param brokerScheduling
+   */
+  public void setBrokerScheduling(final boolean brokerScheduling) {
+    this.brokerScheduling = brokerScheduling;
+  }
+
+  public boolean isBrokerScheduling() {
+    return brokerScheduling;
+  }
+
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  public long getInitialDelay() {
+    return initialDelay;
+  }
+
+  public double getMultiplier() {
+    return multiplier;
+  }
+
+  public long getMaxDelay() {
+    return maxDelay;
+  }
+
+  @Override
+  public String toString() {
+    return "RetryPolicy {maxAttempts = " + maxAttempts + ", initialDelay = " + initialDelay
+            + ", multiplier = " + multiplier + ", maxDelay = " + maxDelay + ", brokerScheduling = "
+            + brokerScheduling + "}";
+  }
+}
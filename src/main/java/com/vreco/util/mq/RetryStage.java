@@ -0,0 +1,293 @@
+package com.vreco.util.mq;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.jms.*;
+import org.apache.activemq.ScheduledMessage;
+import org.apache.activemq.command.ActiveMQMessage;
+import org.apache.activemq.util.JMSExceptionSupport;
+import org.apache.log4j.Logger;
+
+/**
+ * Takes messages whose handler failed off the consuming thread. Each message is copied with its
+ * attempt count in the VrecoAttempts property and republished to the queue it came from after the
+ * delay of the {@link RetryPolicy}, or to the dead letter queue once it has used up its attempts.
+ * Copies going to the dead letter queue, or held by the broker's scheduler, are sent before
+ * {@link #retry(Message, Exception)} returns, so the caller only acknowledges the original once the
+ * copy is safe with the broker.
+ *
+ * With a local timer the copy waits in memory on our own thread and session, so the caller can
+ * acknowledge the original and move on to the next message right away. A copy that fails to send
+ * stays waiting and is tried again after the policy's maxDelay until it goes through. Retries that
+ * are still waiting when the stage closes are republished at once, so a clean shutdown loses
+ * nothing unless the broker is unreachable. A crash loses them, use broker scheduling where that
+ * matters.
+ *
+ * @author Ben Aldrich
+ */
+public class RetryStage implements AutoCloseable {
+
+  private static Logger logger = Logger.getLogger(RetryStage.class);
+  public static final String ATTEMPTS_PROPERTY = "VrecoAttempts";
+  public static final String FAILURE_PROPERTY = "VrecoFailure";
+  private final RetryPolicy policy;
+  private final Session session;
+  private final MessageProducer producer;
+  private final ScheduledThreadPoolExecutor timer;
+  private final Set<Retry> waiting = Collections.newSetFromMap(new ConcurrentHashMap<Retry, Boolean>());
+  private final AtomicLong retried = new AtomicLong();
+  private final AtomicLong deadLettered = new AtomicLong();
+  private final AtomicLong lost = new AtomicLong();
+  private volatile boolean closed = false;
+
+  /**
+   * @param connection opens our session, stays open when we close
+   * @param policy
+   * @throws JMSException
+   */
+  public RetryStage(final Connection connection, final RetryPolicy policy) throws JMSException {
+    this.policy = policy;
+    this.session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+    this.producer = session.createProducer(null);
+    this.timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "RetryStage");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.timer.setRemoveOnCancelPolicy(true);
+  }
+
+  /**
+   * Schedule a failed message for another try, or for the dead letter queue. Only blocks on the
+   * broker for dead letters and broker scheduled retries. The original counts as handled
+   * afterwards, acknowledge it.
+   *
+   * @param message as received, not a copy
+   * @param cause why the handler failed, recorded on dead lettered messages
+   * @throws JMSException if the message could not be copied or sent, or the stage is closed. The
+   * original is not handled, recover it.
+   */
+  public void retry(final Message message, final Exception cause) throws JMSException {
+    ActiveMQMessage raw = rawOf(message);
+    int attempts = attemptsOf(raw) + 1;
+    if (!policy.shouldRetry(attempts)) {
+      deadLetter(raw, attempts, cause);
+      return;
+    }
+    long delay = policy.delayFor(attempts);
+    Retry retry = new Retry(copyOf(raw, attempts), raw.getJMSDestination(), delay, true);
+    if (policy.isBrokerScheduling() || delay == 0) {
+      retry.send();
+      return;
+    }
+    waiting.add(retry);
+    timer.schedule(retry, delay, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Send a failed message straight to the dead letter queue, however many attempts it has left.
+   * Blocks until the broker has it, then the original counts as handled, acknowledge it.
+   *
+   * @param message as received, not a copy
+   * @param cause why the handler failed, recorded on the dead lettered message
+   * @throws JMSException if it could not be sent or the stage is closed, the original is not handled
+   */
+  public void deadLetter(final Message message, final Exception cause) throws JMSException {
+    ActiveMQMessage raw = rawOf(message);
+    deadLetter(raw, attemptsOf(raw) + 1, cause);
+  }
+
+  private void deadLetter(final ActiveMQMessage raw, final int attempts, final Exception cause)
+          throws JMSException {
+    ActiveMQMessage copy = copyOf(raw, attempts);
+    if (cause != null) {
+      copy.setStringProperty(FAILURE_PROPERTY, String.valueOf(cause));
+    }
+    Destination destination =
+            session.createQueue(policy.deadLetterQueueFor(nameOf(raw.getJMSDestination())));
+    new Retry(copy, destination, 0, false).send();
+  }
+
+  private ActiveMQMessage rawOf(final Message message) throws JMSException {
+    if (closed) {
+      throw new javax.jms.IllegalStateException("RetryStage closed");
+    }
+    Message raw = message instanceof InflatedTextMessage
+            ? ((InflatedTextMessage) message).getDelegate() : message;
+    if (!(raw instanceof ActiveMQMessage)) {
+      throw new JMSException("Cannot retry " + raw.getClass());
+    }
+    return (ActiveMQMessage) raw;
+  }
+
+  private static ActiveMQMessage copyOf(final ActiveMQMessage raw, final int attempts)
+          throws JMSException {
+    ActiveMQMessage copy = (ActiveMQMessage) raw.copy();
+    copy.setReadOnlyProperties(false);
+    copy.setIntProperty(ATTEMPTS_PROPERTY, attempts);
+    return copy;
+  }
+
+  /**
+   * @param message
+   * @return failed handler calls recorded on the message so far
+   * @throws JMSException
+   */
+  public static int attemptsOf(final Message message) throws JMSException {
+    if (!message.propertyExists(ATTEMPTS_PROPERTY)) {
+      return 0;
+    }
+    return message.getIntProperty(ATTEMPTS_PROPERTY);
+  }
+
+  private static String nameOf(final Destination destination) throws JMSException {
+    if (destination instanceof Queue) {
+      return ((Queue) destination).getQueueName();
+    }
+    if (destination instanceof Topic) {
+      return ((Topic) destination).getTopicName();
+    }
+    return String.valueOf(destination);
+  }
+
+  public RetryPolicy getPolicy() {
+    return policy;
+  }
+
+  /**
+   * @return retries waiting on the local timer, including ones whose send failed
+   */
+  public int getWaitingCount() {
+    return waiting.size();
+  }
+
+  /**
+   * @return messages republished for another try
+   */
+  public long getRetriedCount() {
+    return retried.get();
+  }
+
+  /**
+   * @return messages sent to a dead letter queue
+   */
+  public long getDeadLetteredCount() {
+    return deadLettered.get();
+  }
+
+  /**
+   * @return messages that were still waiting and could not be republished when the stage closed,
+   * see the log
+   */
+  public long getLostCount() {
+    return lost.get();
+  }
+
+  /**
+   * Stop the timer, republish the retries still waiting on it without their delay, and close our
+   * session.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    timer.shutdownNow();
+    try {
+      timer.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (Retry retry : new ArrayList<>(waiting)) {
+      retry.attempt(true);
+    }
+    try {
+      session.close();
+    } catch (JMSException e) {
+      logger.warn("Failed to close retry session", e);
+    }
+  }
+
+  /**
+   * One message on its way back to its queue or to the dead letter queue. While waiting it is in
+   * the waiting set, and only whoever takes it out of there sends it.
+   */
+  private class Retry implements Runnable {
+
+    private final ActiveMQMessage message;
+    private final Destination destination;
+    private final long delay;
+    private final boolean retry;
+
+    Retry(final ActiveMQMessage message, final Destination destination, final long delay,
+            final boolean retry) {
+      this.message = message;
+      this.destination = destination;
+      this.delay = delay;
+      this.retry = retry;
+    }
+
+    @Override
+    public void run() {
+      attempt(false);
+    }
+
+    /**
+     * Send it if it is still waiting, putting it back to be tried again on failure.
+     *
+     * @param last true when closing, a failure then loses the message
+     */
+    void attempt(final boolean last) {
+      if (!waiting.remove(this)) {
+        return;
+      }
+      try {
+        send();
+      } catch (JMSException | RuntimeException e) {
+        if (last) {
+          lost.incrementAndGet();
+          logger.error("Lost message for " + destination + ", failed to republish it on close", e);
+          return;
+        }
+        logger.warn("Failed to republish message to " + destination + ", trying again in "
+                + policy.getMaxDelay() + "ms", e);
+        waiting.add(this);
+        try {
+          timer.schedule(this, policy.getMaxDelay(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+          // closing, close() sends whatever is still waiting
+        }
+      }
+    }
+
+    void send() throws JMSException {
+      if (policy.isBrokerScheduling() && delay > 0) {
+        message.setLongProperty(ScheduledMessage.AMQ_SCHEDULED_DELAY, delay);
+      } else if (message.propertyExists(ScheduledMessage.AMQ_SCHEDULED_DELAY)) {
+        try {
+          message.removeProperty(ScheduledMessage.AMQ_SCHEDULED_DELAY);
+        } catch (IOException e) {
+          throw JMSExceptionSupport.create(e);
+        }
+      }
+      synchronized (producer) {
+        producer.send(destination, message, message.getJMSDeliveryMode(),
+                message.getJMSPriority(), Message.DEFAULT_TIME_TO_LIVE);
+      }
+      if (retry) {
+        retried.incrementAndGet();
+      } else {
+        deadLettered.incrementAndGet();
+      }
+    }
+  }
+}
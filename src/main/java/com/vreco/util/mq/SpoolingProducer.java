@@ -0,0 +1,490 @@
+package com.vreco.util.mq;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.jms.JMSException;
+import org.apache.activemq.AsyncCallback;
+import org.apache.log4j.Logger;
+
+/**
+ * Producer that keeps accepting messages while the broker is unavailable. Sends go straight to the
+ * broker while it is up. When a send fails, or the connection is down, the message is appended to
+ * a {@link MessageSpool} on local disk instead. A drainer thread reconnects and replays the spool in
+ * order through a {@link Producer}. Until the spool is empty new messages are spooled behind it, so
+ * messages arrive in the order they were sent. Thread safe.
+ *
+ * With a send window set, sends are asynchronous with at most that many waiting for the broker to
+ * confirm them, and a message that finds the window full is spooled rather than waiting for a
+ * slot. A message the broker refuses after the fact is spooled too, behind whatever was sent since,
+ * so it is the one message that can arrive out of order.
+ *
+ * <pre>
+ * MessageSpool spool = new MessageSpool(new File("/var/spool/app"), 16 * 1024 * 1024, 64);
+ * SpoolingProducer producer = new SpoolingProducer(url, spool);
+ * producer.start();
+ * producer.sendMessage("queue", "jobs", json);
+ * </pre>
+ *
+ * @author Ben Aldrich
+ */
+public class SpoolingProducer implements AutoCloseable {
+
+  private static Logger logger = Logger.getLogger(SpoolingProducer.class);
+  private final String url;
+  private final MessageSpool spool;
+  private final Object lock = new Object();
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong spooled = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong replayed = new AtomicLong();
+  private final AtomicLong replayNanos = new AtomicLong();
+  private final AtomicLong reconnects = new AtomicLong();
+  private final AtomicLong saturated = new AtomicLong();
+  private Producer producer;
+  private Thread drainer;
+  private volatile boolean running = false;
+  private volatile boolean persistence = false;
+  private volatile boolean asyncFailed = false;
+  private volatile boolean closed = false;
+  private volatile int sendWindow = 0;
+  private long retryInterval = 1000;
+  private int commitInterval = 100;
+
+  /**
+   * @param url broker url
+   * @param spool where messages wait while the broker is unavailable, closed along with us
+   */
+  public SpoolingProducer(final String url, final MessageSpool spool) {
+    this.url = url;
+    this.spool = spool;
+  }
+
+  /**
+   * Try to connect and start the drainer. A broker that is down is not an error, messages are
+   * spooled until it comes back.
+   */
+  public void start() {
+    synchronized (lock) {
+      if (running) {
+        return;
+      }
+      running = true;
+    }
+    Producer connected = connect();
+    if (connected != null) {
+      install(connected);
+    }
+    drainer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        drain();
+      }
+    }, "SpoolingProducer-drainer");
+    drainer.setDaemon(true);
+    drainer.start();
+  }
+
+  /**
+   * Send a TextMessage, or spool it if the broker is unavailable or older messages are still
+   * waiting in the spool.
+   *
+   * @param type
+   * @param destString
+   * @param message
+   * @throws JMSException if the message could not be sent and the spool is full, or we are closed
+   */
+  public void sendMessage(final String type, final String destString, final String message)
+          throws JMSException {
+    if (message == null) {
+      return;
+    }
+    Producer broken = null;
+    try {
+      synchronized (lock) {
+        if (closed) {
+          throw new javax.jms.IllegalStateException("SpoolingProducer closed");
+        }
+        if (asyncFailed) {
+          asyncFailed = false;
+          broken = detach();
+        }
+        Respool respool = null;
+        if (producer != null && spool.isEmpty()) {
+          try {
+            if (sendWindow > 0) {
+              respool = new Respool(type, destString, message);
+              if (producer.trySendAsync(type, destString, message, respool) != null) {
+                sent.incrementAndGet();
+                return;
+              }
+              // window full, spool it and let the drainer catch up
+              saturated.incrementAndGet();
+            } else {
+              producer.sendMessage(type, destString, message);
+              sent.incrementAndGet();
+              return;
+            }
+          } catch (JMSException e) {
+            broken = detach();
+            if (respool != null && !respool.claim()) {
+              // already spooled by the callback
+              return;
+            }
+            logger.warn("Send to " + destString + " failed, spooling until the broker is back", e);
+          }
+        }
+        spool(type, destString, message);
+      }
+    } finally {
+      close(broken);
+    }
+  }
+
+  /**
+   * Append a message to the spool. Hold the lock unless the order no longer matters.
+   */
+  private void spool(final String type, final String destString, final String message)
+          throws JMSException {
+    try {
+      if (!spool.append(new MessageSpool.Record(type, destString, message))) {
+        rejected.incrementAndGet();
+        throw new JMSException("Broker unavailable and spool in " + spool.getDirectory()
+                + " is full");
+      }
+    } catch (IOException e) {
+      rejected.incrementAndGet();
+      JMSException ex = new JMSException("Broker unavailable and spooling failed: "
+              + e.getMessage());
+      ex.setLinkedException(e);
+      throw ex;
+    }
+    spooled.incrementAndGet();
+  }
+
+  /**
+   * Replay the spool until stopped, reconnecting every retryInterval while the broker is down.
+   */
+  private void drain() {
+    int uncommitted = 0;
+    while (running) {
+      try {
+        MessageSpool.Record record = spool.peek();
+        if (record == null) {
+          if (uncommitted > 0) {
+            spool.commit();
+            uncommitted = 0;
+          }
+          spool.await(retryInterval);
+          continue;
+        }
+        if (!replay(record)) {
+          spool.commit();
+          uncommitted = 0;
+          sleep(retryInterval);
+          continue;
+        }
+        if (++uncommitted >= commitInterval) {
+          spool.commit();
+          uncommitted = 0;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (IOException | RuntimeException e) {
+        logger.error("Failed to read the spool in " + spool.getDirectory(), e);
+        sleep(retryInterval);
+      }
+    }
+  }
+
+  /**
+   * Send one spooled record, moving past it in the spool if it was sent.
+   *
+   * @return false if the broker is unavailable
+   */
+  private boolean replay(final MessageSpool.Record record) {
+    if (!isConnected()) {
+      // connect without the lock, so senders keep spooling while the broker is slow to answer
+      Producer connected = connect();
+      if (connected == null) {
+        return false;
+      }
+      install(connected);
+    }
+    Producer broken = null;
+    try {
+      synchronized (lock) {
+        if (producer == null) {
+          return false;
+        }
+        long start = System.nanoTime();
+        try {
+          producer.sendMessage(record.getType(), record.getDestination(), record.getMessage());
+        } catch (JMSException e) {
+          logger.warn("Replay to " + record.getDestination() + " failed, will retry", e);
+          broken = detach();
+          return false;
+        }
+        replayNanos.addAndGet(System.nanoTime() - start);
+        replayed.incrementAndGet();
+        spool.advance();
+        return true;
+      }
+    } finally {
+      close(broken);
+    }
+  }
+
+  /**
+   * Open a new producer, without the lock.
+   *
+   * @return the connected producer, null if the broker is unavailable
+   */
+  private Producer connect() {
+    Producer created = new Producer(url);
+    try {
+      created.connect();
+      created.setPersistence(persistence);
+      if (sendWindow > 0) {
+        created.setAsyncWindow(sendWindow);
+      }
+    } catch (JMSException e) {
+      logger.debug("Broker at " + url + " unavailable", e);
+      created.close();
+      return null;
+    }
+    return created;
+  }
+
+  /**
+   * Make a connected producer the current one, closing it instead if we already have one or are
+   * stopped.
+   */
+  private void install(final Producer connected) {
+    synchronized (lock) {
+      if (producer == null && running) {
+        producer = connected;
+        reconnects.incrementAndGet();
+        return;
+      }
+    }
+    connected.close();
+  }
+
+  /**
+   * Drop the current producer, must hold the lock. Close it once the lock is released.
+   *
+   * @return the dropped producer, null if there was none
+   */
+  private Producer detach() {
+    Producer dropped = producer;
+    producer = null;
+    return dropped;
+  }
+
+  private static void close(final Producer dropped) {
+    if (dropped != null) {
+      dropped.close();
+    }
+  }
+
+  private void sleep(final long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      running = false;
+    }
+  }
+
+  /**
+   * Set persistence for all messages sent after the next (re)connect.
+   *
+   * @param persistence
+   */
+  public void setPersistence(final boolean persistence) {
+    this.persistence = persistence;
+  }
+
+  /**
+   * Send asynchronously with at most this many messages waiting for the broker to confirm them,
+   * spooling messages that find the window full. Applies after the next (re)connect.
+   *
+   * @param sendWindow 0, the default, to send synchronously
+   */
+  public void setSendWindow(final int sendWindow) {
+    if (sendWindow < 0) {
+      throw new IllegalArgumentException("sendWindow must not be negative");
+    }
+    this.sendWindow = sendWindow;
+  }
+
+  /**
+   * How long the drainer waits between reconnect attempts while the broker is down.
+   *
+   * @param retryInterval milliseconds
+   */
+  public void setRetryInterval(final long retryInterval) {
+    this.retryInterval = retryInterval;
+  }
+
+  /**
+   * Save the spool read offset every this many replayed messages, and whenever the spool empties.
+   * Lower means fewer duplicates replayed after a crash, higher means faster replay.
+   *
+   * @param commitInterval
+   */
+  public void setCommitInterval(final int commitInterval) {
+    this.commitInterval = commitInterval;
+  }
+
+  /**
+   * @return true if connected to the broker
+   */
+  public boolean isConnected() {
+    synchronized (lock) {
+      return producer != null;
+    }
+  }
+
+  /**
+   * @return messages sent straight to the broker
+   */
+  public long getSentCount() {
+    return sent.get();
+  }
+
+  /**
+   * @return messages appended to the spool
+   */
+  public long getSpooledCount() {
+    return spooled.get();
+  }
+
+  /**
+   * @return messages spooled because the send window was full
+   */
+  public long getSaturatedCount() {
+    return saturated.get();
+  }
+
+  /**
+   * @return messages refused because the broker was unavailable and the spool was full
+   */
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+
+  /**
+   * @return spooled messages sent to the broker by the drainer
+   */
+  public long getReplayedCount() {
+    return replayed.get();
+  }
+
+  /**
+   * Time spent sending replayed messages, divide by the replayed count for the replay rate.
+   *
+   * @return milliseconds
+   */
+  public long getReplayMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(replayNanos.get());
+  }
+
+  /**
+   * @return number of times a connection to the broker was opened
+   */
+  public long getReconnectCount() {
+    return reconnects.get();
+  }
+
+  public MessageSpool getSpool() {
+    return spool;
+  }
+
+  /**
+   * Stop the drainer, wait for unconfirmed sends, and close the producer and the spool. Messages
+   * still spooled are replayed the next time the spool is opened.
+   */
+  @Override
+  public void close() {
+    synchronized (lock) {
+      closed = true;
+    }
+    running = false;
+    if (drainer != null) {
+      spool.wakeup();
+      try {
+        drainer.join(TimeUnit.SECONDS.toMillis(30));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    Producer dropped;
+    synchronized (lock) {
+      dropped = detach();
+    }
+    if (dropped != null) {
+      try {
+        dropped.flushAsync(TimeUnit.SECONDS.toMillis(30));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    // sends still unconfirmed fail now, and are spooled before the spool closes
+    close(dropped);
+    synchronized (lock) {
+      try {
+        spool.close();
+      } catch (IOException e) {
+        logger.error("Failed to close the spool in " + spool.getDirectory(), e);
+      }
+    }
+  }
+
+  /**
+   * Spools an async send the broker refused, and has the next send reconnect. Runs on the
+   * connection's transport thread, so it must not wait on the lock. A send that fails before it
+   * reaches the broker is spooled by sendMessage instead, whichever claims it first spools it.
+   */
+  private class Respool implements AsyncCallback {
+
+    private final String type;
+    private final String destination;
+    private final String message;
+    private final AtomicBoolean claimed = new AtomicBoolean(false);
+
+    Respool(final String type, final String destination, final String message) {
+      this.type = type;
+      this.destination = destination;
+      this.message = message;
+    }
+
+    @Override
+    public void onSuccess() {
+    }
+
+    /**
+     * @return true if the caller is the one to spool the message
+     */
+    boolean claim() {
+      return claimed.compareAndSet(false, true);
+    }
+
+    @Override
+    public void onException(final JMSException e) {
+      if (!claim()) {
+        return;
+      }
+      logger.warn("Send to " + destination + " failed, spooling until the broker is back", e);
+      asyncFailed = true;
+      try {
+        spool(type, destination, message);
+      } catch (JMSException ex) {
+        logger.error("Lost message for " + destination, ex);
+      }
+    }
+  }
+}
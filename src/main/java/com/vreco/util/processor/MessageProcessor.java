@@ -0,0 +1,18 @@
+package com.vreco.util.processor;
+
+/**
+ * User handler run by each {@link Processor} worker.
+ *
+ * @author Ben Aldrich
+ */
+public interface MessageProcessor {
+
+  /**
+   * Process one message.
+   *
+   * @param message the body of the consumed TextMessage
+   * @return a result to publish to activemq.topic, or null to publish nothing
+   * @throws Exception to have the message redelivered
+   */
+  String process(String message) throws Exception;
+}
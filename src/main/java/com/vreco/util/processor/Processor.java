@@ -0,0 +1,300 @@
+package com.vreco.util.processor;
+
+import com.vreco.util.mq.Consumer;
+import com.vreco.util.mq.Producer;
+import com.vreco.util.shutdownhooks.ShutdownParticipant;
+import com.vreco.util.shutdownhooks.SimpleShutdown;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.jms.JMSException;
+import javax.jms.TextMessage;
+import org.apache.log4j.Logger;
+
+/**
+ * Multi-threaded message processor. Runs processor.numThreads workers, each with its own Consumer
+ * on activemq.queue and, when activemq.topic is set, its own Producer to publish results. Workers
+ * stop taking new messages once {@link #stop()} is called or the {@link SimpleShutdown} hook fires,
+ * finish the message in hand, and close their connections. After a shutdown signal the engine marks
+ * the hook finished once every worker has drained, or as soon as the signal arrives if they were
+ * already stopped. It can also be registered with a
+ * {@link com.vreco.util.shutdownhooks.ShutdownCoordinator}.
+ *
+ * @author Ben Aldrich
+ */
+public class Processor implements ShutdownParticipant {
+
+  private static Logger logger = Logger.getLogger(Processor.class);
+  private volatile ProcessorConfig config;
+  private final MessageProcessor handler;
+  private final SimpleShutdown shutdown;
+  private final List<Thread> workers = new ArrayList<>();
+  private final AtomicLong processed = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong published = new AtomicLong();
+  private final AtomicInteger activeWorkers = new AtomicInteger();
+  private final AtomicBoolean watching = new AtomicBoolean(false);
+  private volatile boolean running = false;
+  private volatile CountDownLatch stopped = new CountDownLatch(0);
+
+  public Processor(final ProcessorConfig config, final MessageProcessor handler) {
+    this(config, handler, SimpleShutdown.getInstance());
+  }
+
+  public Processor(final ProcessorConfig config, final MessageProcessor handler,
+          final SimpleShutdown shutdown) {
+    this.config = config;
+    this.handler = handler;
+    this.shutdown = shutdown;
+  }
+
+  /**
+   * Connect every worker and start them. If any worker fails to connect, the ones already connected
+   * are closed and nothing is started.
+   *
+   * @throws JMSException
+   */
+  public synchronized void start() throws JMSException {
+    if (running) {
+      return;
+    }
+    List<Worker> connected = new ArrayList<>();
+    try {
+      for (int i = 0; i < config.getNumThreads(); i++) {
+        Worker worker = new Worker();
+        connected.add(worker);
+        worker.connect();
+      }
+    } catch (JMSException e) {
+      for (Worker worker : connected) {
+        worker.close();
+      }
+      throw e;
+    }
+
+    running = true;
+    stopped = new CountDownLatch(connected.size());
+    activeWorkers.set(connected.size());
+    workers.clear();
+    for (int i = 0; i < connected.size(); i++) {
+      Thread t = new Thread(connected.get(i), "Processor worker " + i);
+      workers.add(t);
+      t.start();
+    }
+    logger.info("Started " + connected.size() + " processor workers on " + config.getQueue());
+  }
+
+  /**
+   * Swap in new settings while running. activemq.timeout, processor.minWait and processor.maxWait
+   * take effect with the next message each worker takes. The other settings are used by the next
+   * {@link #start()}.
+   *
+   * @param config
+   */
+  public void reconfigure(final ProcessorConfig config) {
+    this.config = config;
+  }
+
+  public ProcessorConfig getConfig() {
+    return config;
+  }
+
+  /**
+   * Ask the workers to stop after the message they are handling.
+   */
+  public void stop() {
+    running = false;
+  }
+
+  /**
+   * Wait for every worker to finish and close its connections.
+   *
+   * @param millis
+   * @return true if all workers stopped in time
+   * @throws InterruptedException
+   */
+  public boolean awaitTermination(final long millis) throws InterruptedException {
+    return stopped.await(millis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void stopIntake() {
+    stop();
+  }
+
+  @Override
+  public boolean drain(final long millis) throws InterruptedException {
+    return awaitTermination(millis);
+  }
+
+  /**
+   * Workers close their own connections as they stop, nothing is left to close.
+   */
+  @Override
+  public void close() {
+    stop();
+  }
+
+  public boolean isRunning() {
+    return running;
+  }
+
+  public long getProcessedCount() {
+    return processed.get();
+  }
+
+  public long getFailedCount() {
+    return failed.get();
+  }
+
+  public long getPublishedCount() {
+    return published.get();
+  }
+
+  private boolean shouldRun() {
+    return running && !shutdown.isShutdown();
+  }
+
+  private void workerStopped() {
+    if (activeWorkers.decrementAndGet() == 0) {
+      running = false;
+      if (shutdown.isShutdown()) {
+        finish();
+      } else {
+        watchForShutdown();
+      }
+    }
+    stopped.countDown();
+  }
+
+  private void finish() {
+    logger.info("All processor workers drained");
+    shutdown.setFinished(true);
+  }
+
+  /**
+   * The workers stopped before the shutdown signal. Mark the hook finished once it arrives, unless
+   * workers were started again by then, they mark it themselves as they stop.
+   */
+  private void watchForShutdown() {
+    if (!watching.compareAndSet(false, true)) {
+      return;
+    }
+    Thread watcher = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        boolean signalled;
+        try {
+          signalled = shutdown.awaitShutdown(Long.MAX_VALUE);
+        } catch (InterruptedException e) {
+          signalled = false;
+        }
+        watching.set(false);
+        if (signalled && activeWorkers.get() == 0) {
+          finish();
+        }
+      }
+    }, "Processor shutdown watcher");
+    watcher.setDaemon(true);
+    watcher.start();
+  }
+
+  /**
+   * One worker thread. Consumer and Producer are not thread safe, so every worker owns its own.
+   */
+  private class Worker implements Runnable {
+
+    private ProcessorConfig settings = config;
+    private final Consumer consumer = new Consumer(settings.getUrl());
+    private final Producer producer = settings.getTopic() == null ? null : new Producer(settings.getUrl());
+    private int consecutiveFailures = 0;
+
+    void connect() throws JMSException {
+      consumer.setTimeout(settings.getTimeout());
+      consumer.connect("queue", settings.getQueue());
+      if (producer != null) {
+        producer.connect("topic", settings.getTopic());
+      }
+    }
+
+    /**
+     * Pick up settings swapped in by reconfigure, one volatile read per message.
+     */
+    private void refresh() {
+      ProcessorConfig latest = config;
+      if (latest != settings) {
+        settings = latest;
+        consumer.setTimeout(latest.getTimeout());
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (shouldRun()) {
+          TextMessage msg = consumer.getTextMessage();
+          refresh();
+          if (msg == null) {
+            continue;
+          }
+          try {
+            String result = handler.process(msg.getText());
+            if (result != null && producer != null) {
+              producer.sendMessage(result);
+              published.incrementAndGet();
+            }
+            msg.acknowledge();
+            processed.incrementAndGet();
+            consecutiveFailures = 0;
+          } catch (Exception e) {
+            failed.incrementAndGet();
+            logger.error("Failed to process message, it will be redelivered", e);
+            consumer.rollback();
+            backoff();
+          }
+        }
+      } catch (JMSException e) {
+        logger.error("Processor worker lost its connection", e);
+      } finally {
+        close();
+        workerStopped();
+      }
+    }
+
+    /**
+     * Wait minWait after the first failure, doubling up to maxWait while failures continue.
+     */
+    private void backoff() {
+      consecutiveFailures++;
+      long wait = settings.getMinWait();
+      for (int i = 1; i < consecutiveFailures && wait < settings.getMaxWait(); i++) {
+        wait *= 2;
+      }
+      wait = Math.min(wait, settings.getMaxWait());
+      if (wait <= 0) {
+        return;
+      }
+      try {
+        Thread.sleep(wait);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        running = false;
+      }
+    }
+
+    void close() {
+      try {
+        consumer.close();
+      } catch (JMSException e) {
+        logger.warn("Failed to close consumer", e);
+      }
+      if (producer != null) {
+        producer.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package com.vreco.util.processor;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Settings for a {@link Processor}, read once from the activemq.* and processor.* keys of
+ * conf/processor.conf.
+ *
+ * <pre>
+ * activemq.url          broker url
+ * activemq.timeout      receive timeout in ms
+ * activemq.queue        queue to consume from
+ * activemq.topic        topic to publish results to, optional
+ * processor.numThreads  number of workers
+ * processor.minWait     first backoff in ms after a failed message
+ * processor.maxWait     largest backoff in ms after repeated failures
+ * </pre>
+ *
+ * @author Ben Aldrich
+ */
+public class ProcessorConfig {
+
+  private final String url;
+  private final long timeout;
+  private final String queue;
+  private final String topic;
+  private final int numThreads;
+  private final long minWait;
+  private final long maxWait;
+
+  public ProcessorConfig(final Properties conf) {
+    url = required(conf, "activemq.url");
+    queue = required(conf, "activemq.queue");
+    String topicValue = conf.getProperty("activemq.topic", "").trim();
+    topic = topicValue.isEmpty() ? null : topicValue;
+    timeout = Long.parseLong(conf.getProperty("activemq.timeout", "5000").trim());
+    numThreads = Integer.parseInt(conf.getProperty("processor.numThreads", "1").trim());
+    minWait = Long.parseLong(conf.getProperty("processor.minWait", "0").trim());
+    maxWait = Long.parseLong(conf.getProperty("processor.maxWait", "0").trim());
+
+    if (timeout < 0) {
+      throw new IllegalArgumentException("activemq.timeout must not be negative");
+    }
+    if (numThreads < 1) {
+      throw new IllegalArgumentException("processor.numThreads must be at least 1");
+    }
+    if (minWait < 0 || maxWait < minWait) {
+      throw new IllegalArgumentException("processor.minWait and processor.maxWait must satisfy 0 <= minWait <= maxWait");
+    }
+  }
+
+  /**
+   * Load the configuration from a properties file such as conf/processor.conf.
+   *
+   * @param path
+   * @return
+   * @throws IOException
+   */
+  public static ProcessorConfig load(final String path) throws IOException {
+    Properties conf = new Properties();
+    try (InputStream in = new FileInputStream(path)) {
+      conf.load(in);
+    }
+    return new ProcessorConfig(conf);
+  }
+
+  private static String required(final Properties conf, final String key) {
+    String value = conf.getProperty(key);
+    if (value == null || value.trim().isEmpty()) {
+      throw new IllegalArgumentException("Missing required property " + key);
+    }
+    return value.trim();
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  public long getTimeout() {
+    return timeout;
+  }
+
+  public String getQueue() {
+    return queue;
+  }
+
+  /**
+   * @return the topic to publish results to, null if results are not published
+   */
+  public String getTopic() {
+    return topic;
+  }
+
+  public int getNumThreads() {
+    return numThreads;
+  }
+
+  public long getMinWait() {
+    return minWait;
+  }
+
+  public long getMaxWait() {
+    return maxWait;
+  }
+}
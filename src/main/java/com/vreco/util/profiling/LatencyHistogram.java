@@ -0,0 +1,117 @@
+package com.vreco.util.profiling;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed memory latency histogram over nanosecond durations. Buckets are log-linear: every power of
+ * two is split into 32 sub-buckets, so any recorded value is reported within about 3% whatever its
+ * magnitude, and the histogram never grows. Safe to record from many threads at once.
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS     = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS         = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong      count  = new AtomicLong();
+  private final AtomicLong      sum    = new AtomicLong();
+  private final AtomicLong      min    = new AtomicLong(Long.MAX_VALUE);
+  private final AtomicLong      max    = new AtomicLong(0);
+
+  /**
+   * Record one duration.
+   *
+   * @param nanos negative durations are counted as 0
+   */
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    counts.incrementAndGet(bucketFor(nanos));
+    count.incrementAndGet();
+    sum.addAndGet(nanos);
+    long current;
+    while (nanos < (current = min.get()) && !min.compareAndSet(current, nanos)) {
+      // retry
+    }
+    while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+      // retry
+    }
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * Statistics for everything recorded so far. Recording may continue while the snapshot is taken,
+   * in which case the figures are approximate.
+   *
+   * @param tag
+   * @return
+   */
+  public ProfileSnapshot snapshot(final String tag) {
+    long[] copy = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      copy[i] = counts.get(i);
+      total += copy[i];
+    }
+    long minValue = min.get();
+    long maxValue = max.get();
+    if (total == 0) {
+      return new ProfileSnapshot(tag, 0, 0, 0, 0, 0, 0, 0, 0);
+    }
+    return new ProfileSnapshot(tag, total, minValue, maxValue, (double) sum.get() / total,
+        percentile(copy, total, 0.50, maxValue), percentile(copy, total, 0.90, maxValue),
+        percentile(copy, total, 0.99, maxValue), percentile(copy, total, 0.999, maxValue));
+  }
+
+  /**
+   * Clear everything recorded so far.
+   */
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      counts.set(i, 0);
+    }
+    count.set(0);
+    sum.set(0);
+    min.set(Long.MAX_VALUE);
+    max.set(0);
+  }
+
+  private static long percentile(final long[] copy, final long total, final double percentile,
+      final long maxValue) {
+    long rank = Math.max(1, (long) Math.ceil(total * percentile));
+    long seen = 0;
+    for (int i = 0; i < copy.length; i++) {
+      seen += copy[i];
+      if (seen >= rank) {
+        return Math.min(highestValueIn(i), maxValue);
+      }
+    }
+    return maxValue;
+  }
+
+  static int bucketFor(final long nanos) {
+    if (nanos < SUB_BUCKETS) {
+      return (int) nanos;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+    int shift = exponent - SUB_BUCKET_BITS;
+    int subBucket = (int) (nanos >>> shift) & (SUB_BUCKETS - 1);
+    return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+  }
+
+  static long highestValueIn(final int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+    long subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+    long lowest = (1L << (shift + SUB_BUCKET_BITS)) | (subBucket << shift);
+    return lowest + (1L << shift) - 1;
+  }
+}
@@ -0,0 +1,84 @@
+package com.vreco.util.profiling;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency statistics for one profiling tag. All durations are in nanoseconds.
+ */
+public class ProfileSnapshot {
+
+  private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final String tag;
+  private final long   count;
+  private final long   min;
+  private final long   max;
+  private final double mean;
+  private final long   p50;
+  private final long   p90;
+  private final long   p99;
+  private final long   p999;
+
+  public ProfileSnapshot(final String tag, final long count, final long min, final long max,
+      final double mean, final long p50, final long p90, final long p99, final long p999) {
+    this.tag = tag;
+    this.count = count;
+    this.min = min;
+    this.max = max;
+    this.mean = mean;
+    this.p50 = p50;
+    this.p90 = p90;
+    this.p99 = p99;
+    this.p999 = p999;
+  }
+
+  public String getTag() {
+    return tag;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public long getMin() {
+    return min;
+  }
+
+  public long getMax() {
+    return max;
+  }
+
+  public double getMean() {
+    return mean;
+  }
+
+  public long getP50() {
+    return p50;
+  }
+
+  public long getP90() {
+    return p90;
+  }
+
+  public long getP99() {
+    return p99;
+  }
+
+  public long getP999() {
+    return p999;
+  }
+
+  /**
+   * One line summary with durations in milliseconds.
+   */
+  @Override
+  public String toString() {
+    return String.format("tag[%s] count[%d] min[%.3f] max[%.3f] mean[%.3f] p50[%.3f] p90[%.3f] "
+        + "p99[%.3f] p999[%.3f]", tag, count, millis(min), millis(max), mean / NANOS_PER_MILLI,
+        millis(p50), millis(p90), millis(p99), millis(p999));
+  }
+
+  private static double millis(final long nanos) {
+    return nanos / NANOS_PER_MILLI;
+  }
+}
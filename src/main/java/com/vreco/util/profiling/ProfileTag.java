@@ -0,0 +1,41 @@
+package com.vreco.util.profiling;
+
+/**
+ * Handle for a profiling tag, returned by {@link Profiler#tag(String)}. Keep it in a static field
+ * and pass it to {@link Profiler#time(ProfileTag)} to time code without looking the tag up by name.
+ */
+public final class ProfileTag {
+
+  private final String           name;
+  private final int              id;
+  private final LatencyHistogram histogram = new LatencyHistogram();
+
+  ProfileTag(final String name, final int id) {
+    this.name = name;
+    this.id = id;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  int getId() {
+    return id;
+  }
+
+  LatencyHistogram getHistogram() {
+    return histogram;
+  }
+
+  /**
+   * @return latency statistics for this tag
+   */
+  public ProfileSnapshot snapshot() {
+    return histogram.snapshot(name);
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
@@ -1,67 +1,463 @@
 package com.vreco.util.profiling;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 import org.perf4j.StopWatch;
-import org.perf4j.log4j.Log4JStopWatch;
 
+/**
+ * Start / stop timings by tag. Every thread keeps its own open timings, so there is no shared lock
+ * between profiled threads. The same tag can be started again before it is stopped (nested or
+ * reentrant timings); each stop closes the most recent start of that tag on the calling thread.
+ *
+ * Durations are aggregated per tag into fixed memory {@link LatencyHistogram}s, available through
+ * {@link #snapshot()} and logged as a summary to the "Profiling" logger every
+ * profiling.flushInterval milliseconds (default 60000, 0 disables). Setting profiling.logEvents to
+ * false stops the per-timing perf4j log line.
+ *
+ * Settings are read once by {@link #initialize(Properties)}, so with profiling.enabled=false a
+ * start / stop costs a single volatile read. profiling.sampleRate=N times only 1 in N calls of each
+ * tag on each thread (default 1, every call), in which case snapshot counts are sampled counts.
+ *
+ * {@link #time(ProfileTag)} is the allocation free alternative to start / stop:
+ *
+ * <pre>
+ * private static final ProfileTag SEND = Profiler.tag("send");
+ *
+ * try (Profiler.Scope scope = Profiler.time(SEND)) {
+ *   ...
+ * }
+ * </pre>
+ *
+ * Scope objects are pooled per thread. A scope closed out of order, twice, or on another thread is
+ * reported to the "Profiling" logger, and scopes left open inside it are discarded. Do not keep a
+ * scope after closing it, the object is reused by the next timing on that thread.
+ */
 public class Profiler {
 
   private static Logger                       logger          = Logger.getLogger(Profiler.class);
   private static Logger                       profilingLogger = Logger.getLogger("Profiling");
-  private static final Map<String, StopWatch> profiles        = new HashMap<String, StopWatch>();
-  private static Properties                   conf;
-  private static boolean                      errored = false;
+  private static final long                   UNSAMPLED       = Long.MIN_VALUE;
+  private static final int                    MAX_SCOPE_DEPTH = 256;
+  private static final Scope                  NOOP            = new Scope(null, -1);
+  private static final ConcurrentMap<String, ProfileTag> tags =
+      new ConcurrentHashMap<String, ProfileTag>();
+  private static final AtomicInteger          nextTagId       = new AtomicInteger();
+  private static final ThreadLocal<ThreadState> threadStates =
+      new ThreadLocal<ThreadState>() {
+        @Override
+        protected ThreadState initialValue() {
+          return new ThreadState();
+        }
+      };
+  private static final ScheduledExecutorService flusher =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "Profiler flush");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+  private static volatile Settings            settings;
+  private static volatile boolean             errored = false;
+  private static ScheduledFuture<?>           flushTask;
 
+  /**
+   * Read the profiling.* settings. Can be called again to pick up changed settings.
+   *
+   * @param config
+   */
   public static void initialize(final Properties config) {
-    conf = config;
+    initialize(new ProfilingConfig(config));
   }
 
-  public static synchronized void startProfile(String tagName) {
-    if (conf == null) {
-      if (!errored) {
-        logger.error("Failed to initialize profiler");
-        errored = true; // Prevent this message from happening a lot
+  /**
+   * Apply parsed profiling settings. Can be called again to pick up changed settings, for example
+   * from a {@link com.vreco.util.config.ConfigWatcher}.
+   *
+   * @param config
+   */
+  public static synchronized void initialize(final ProfilingConfig config) {
+    Settings previous = settings;
+    settings = new Settings(config, previous == null ? 0 : previous.generation + 1);
+    long flushInterval = config.getFlushInterval();
+    if (flushTask != null) {
+      flushTask.cancel(false);
+      flushTask = null;
+    }
+    if (flushInterval > 0) {
+      flushTask = flusher.scheduleAtFixedRate(new Runnable() {
+        @Override
+        public void run() {
+          flush();
+        }
+      }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Get the handle for a tag, registering it the first time.
+   *
+   * @param tagName
+   * @return
+   */
+  public static ProfileTag tag(final String tagName) {
+    ProfileTag tag = tags.get(tagName);
+    if (tag == null) {
+      ProfileTag created = new ProfileTag(tagName, nextTagId.getAndIncrement());
+      tag = tags.putIfAbsent(tagName, created);
+      if (tag == null) {
+        tag = created;
+      }
+    }
+    return tag;
+  }
+
+  /**
+   * Forget a tag and its statistics, for tags of things that come and go such as temporary
+   * destinations. Handles still held keep working but are no longer reported.
+   *
+   * @param tagName
+   */
+  public static void remove(final String tagName) {
+    tags.remove(tagName);
+  }
+
+  /**
+   * @return true if initialized with profiling.enabled=true
+   */
+  public static boolean isEnabled() {
+    Settings current = settings;
+    return current != null && current.enabled;
+  }
+
+  /**
+   * Start timing a tag, the timing stops when the returned scope is closed.
+   *
+   * @param tagName
+   * @return
+   * @see #time(ProfileTag)
+   */
+  public static Scope time(final String tagName) {
+    Settings current = settings;
+    if (current == null || !current.enabled) {
+      if (current == null) {
+        notInitialized();
       }
+      return NOOP;
+    }
+    return time(tag(tagName), current);
+  }
+
+  /**
+   * Start timing a tag, the timing stops when the returned scope is closed. Allocates nothing once
+   * the thread has warmed up.
+   *
+   * @param tag
+   * @return
+   */
+  public static Scope time(final ProfileTag tag) {
+    Settings current = settings;
+    if (current == null || !current.enabled) {
+      if (current == null) {
+        notInitialized();
+      }
+      return NOOP;
+    }
+    return time(tag, current);
+  }
+
+  private static Scope time(final ProfileTag tag, final Settings current) {
+    ThreadState state = threadStates.get();
+    state.sync(current);
+    if (!state.sample(tag, current)) {
+      return NOOP;
+    }
+    return state.push(tag, current);
+  }
+
+  /**
+   * Record a duration measured elsewhere, for code that already times itself. Recorded only while
+   * profiling is enabled; sampling does not apply.
+   *
+   * @param tag
+   * @param elapsedNanos
+   */
+  public static void record(final ProfileTag tag, final long elapsedNanos) {
+    Settings current = settings;
+    if (current == null || !current.enabled) {
       return;
     }
-    if (Boolean.parseBoolean(conf.getProperty("profiling.enabled", "false"))) {
-      tagName = getTagName(tagName);
-      if (profiles.get(tagName) != null) {
-        profilingLogger.error("Unable to start profiling on a tag that has already started ["
-            + tagName + "]");
-        return;
+    record(tag, elapsedNanos, current);
+  }
+
+  public static void startProfile(final String tagName) {
+    Settings current = settings;
+    if (current == null || !current.enabled) {
+      if (current == null) {
+        notInitialized();
+      }
+      return;
+    }
+    ThreadState state = threadStates.get();
+    state.sync(current);
+    ThreadTag tag = state.profiles.get(tagName);
+    if (tag == null) {
+      tag = new ThreadTag(tag(tagName));
+      state.profiles.put(tagName, tag);
+    }
+    tag.start(state.sample(tag.tag, current) ? System.nanoTime() : UNSAMPLED);
+  }
+
+  public static void stopProfile(final String tagName) {
+    Settings current = settings;
+    if (current == null || !current.enabled) {
+      if (current == null) {
+        notInitialized();
       }
+      return;
+    }
+    long now = System.nanoTime();
+    ThreadState state = threadStates.get();
+    state.sync(current);
+    ThreadTag tag = state.profiles.get(tagName);
+    if (tag == null || tag.depth == 0) {
+      profilingLogger.error("Unable to stop profile: no start detected on tag [" + tagName
+          + "] in thread " + Thread.currentThread().getName());
+      return;
+    }
 
-      StopWatch sw = new Log4JStopWatch(tagName, profilingLogger);
-      profiles.put(tagName, sw);
+    long start = tag.stop();
+    if (start != UNSAMPLED) {
+      record(tag.tag, now - start, current);
     }
   }
 
-  public static synchronized void stopProfile(String tagName) {
-    if (conf == null) {
-      if (!errored) {
-        logger.error("Failed to initialize profiler");
-        errored = true; // Prevent this message from happening a lot
+  /**
+   * Latency statistics for every tag profiled since startup or the last {@link #reset()}.
+   *
+   * @return snapshots by tag name
+   */
+  public static SortedMap<String, ProfileSnapshot> snapshot() {
+    SortedMap<String, ProfileSnapshot> snapshots = new TreeMap<String, ProfileSnapshot>();
+    for (ProfileTag tag : tags.values()) {
+      if (tag.getHistogram().getCount() > 0) {
+        snapshots.put(tag.getName(), tag.snapshot());
       }
+    }
+    return snapshots;
+  }
+
+  /**
+   * Clear the statistics of every tag. Timings already started are still recorded when stopped.
+   */
+  public static void reset() {
+    for (ProfileTag tag : tags.values()) {
+      tag.getHistogram().reset();
+    }
+  }
+
+  /**
+   * Log a summary line per tag to the "Profiling" logger.
+   */
+  public static void flush() {
+    if (!profilingLogger.isInfoEnabled()) {
       return;
     }
-    if (Boolean.parseBoolean(conf.getProperty("profiling.enabled", "false"))) {
-      tagName = getTagName(tagName);
-      if (profiles.get(tagName) == null) {
-        profilingLogger.error("Unable to stop profile: no start detected on tag [" + tagName + "]");
-        return;
+    for (ProfileSnapshot snapshot : snapshot().values()) {
+      profilingLogger.info(snapshot);
+    }
+  }
+
+  private static void record(final ProfileTag tag, final long elapsed, final Settings current) {
+    tag.getHistogram().record(elapsed);
+    if (current.logEvents && profilingLogger.isInfoEnabled()) {
+      long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsed);
+      profilingLogger.info(new StopWatch(System.currentTimeMillis() - elapsedMillis, elapsedMillis,
+          tag.getName(), null));
+    }
+  }
+
+  private static void notInitialized() {
+    if (!errored) {
+      logger.error("Failed to initialize profiler");
+      errored = true; // Prevent this message from happening a lot
+    }
+  }
+
+  /**
+   * A running timing from {@link #time(ProfileTag)}. Closing it records the duration.
+   */
+  public static final class Scope implements AutoCloseable {
+
+    private final ThreadState owner;
+    private final int         index;
+    private ProfileTag        tag;
+    private long              start;
+    private int               generation;
+
+    Scope(final ThreadState owner, final int index) {
+      this.owner = owner;
+      this.index = index;
+    }
+
+    @Override
+    public void close() {
+      if (owner != null) {
+        owner.close(this);
       }
+    }
+  }
+
+  /**
+   * The profiling.* settings as plain fields, copied once per call to initialize.
+   */
+  private static class Settings {
 
-      profiles.get(tagName).stop();
-      profiles.remove(tagName);
+    private final boolean enabled;
+    private final boolean logEvents;
+    private final int     sampleRate;
+    private final int     generation;
+
+    Settings(final ProfilingConfig config, final int generation) {
+      this.enabled = config.isEnabled();
+      this.logEvents = config.isLogEvents();
+      this.sampleRate = config.getSampleRate();
+      this.generation = generation;
     }
   }
 
-  private static String getTagName(final String tagName) {
-    return Thread.currentThread().getId() + " - " + tagName;
+  /**
+   * Everything one thread needs to profile without touching shared state: open start / stop
+   * timings by tag name, the pooled scopes of open {@link #time(ProfileTag)} timings, and sampling
+   * counters by tag id.
+   */
+  private static class ThreadState {
+
+    private final Thread                 thread          = Thread.currentThread();
+    private final Map<String, ThreadTag> profiles        = new HashMap<String, ThreadTag>();
+    private Scope[]                      scopes          = new Scope[8];
+    private int                          depth           = 0;
+    private int[]                        sampleCounters  = new int[16];
+    private int                          generation      = -1;
+
+    /**
+     * Forget timings started under earlier settings, they may never have been stopped.
+     */
+    void sync(final Settings current) {
+      if (generation != current.generation) {
+        generation = current.generation;
+        depth = 0;
+        Arrays.fill(sampleCounters, 0);
+        for (ThreadTag tag : profiles.values()) {
+          tag.depth = 0;
+        }
+      }
+    }
+
+    /**
+     * @return true if this call should be timed, 1 in sampleRate calls of each tag are
+     */
+    boolean sample(final ProfileTag tag, final Settings current) {
+      if (current.sampleRate == 1) {
+        return true;
+      }
+      int id = tag.getId();
+      if (id >= sampleCounters.length) {
+        sampleCounters = Arrays.copyOf(sampleCounters, Math.max(id + 1, sampleCounters.length * 2));
+      }
+      if (sampleCounters[id] == 0) {
+        sampleCounters[id] = current.sampleRate - 1;
+        return true;
+      }
+      sampleCounters[id]--;
+      return false;
+    }
+
+    Scope push(final ProfileTag tag, final Settings current) {
+      if (depth == MAX_SCOPE_DEPTH) {
+        profilingLogger.error("More than " + MAX_SCOPE_DEPTH + " open scopes in thread "
+            + thread.getName() + ", scopes are being leaked, discarding them");
+        depth = 0;
+      }
+      if (depth == scopes.length) {
+        scopes = Arrays.copyOf(scopes, depth * 2);
+      }
+      Scope scope = scopes[depth];
+      if (scope == null) {
+        scope = new Scope(this, depth);
+        scopes[depth] = scope;
+      }
+      depth++;
+      scope.tag = tag;
+      scope.generation = current.generation;
+      scope.start = System.nanoTime();
+      return scope;
+    }
+
+    void close(final Scope scope) {
+      long now = System.nanoTime();
+      if (Thread.currentThread() != thread) {
+        profilingLogger.error("Scope for tag [" + scope.tag + "] opened in thread "
+            + thread.getName() + " closed in thread " + Thread.currentThread().getName());
+        return;
+      }
+      Settings current = settings;
+      if (current == null || scope.generation != current.generation
+          || generation != current.generation) {
+        return; // opened under earlier settings
+      }
+      if (scope.index >= depth) {
+        profilingLogger.error("Scope for tag [" + scope.tag + "] closed twice in thread "
+            + thread.getName());
+        return;
+      }
+      for (int i = depth - 1; i > scope.index; i--) {
+        profilingLogger.error("Scope for tag [" + scopes[i].tag + "] was never closed, discarding it"
+            + " when closing [" + scope.tag + "] in thread " + thread.getName());
+      }
+      depth = scope.index;
+      record(scope.tag, now - scope.start, current);
+    }
+  }
+
+  /**
+   * Open start / stop timings of one tag on one thread, kept as a stack of start times so the same
+   * tag can be nested.
+   */
+  private static class ThreadTag {
+
+    private final ProfileTag       tag;
+    private long[]                 starts = new long[2];
+    private int                    depth  = 0;
+
+    ThreadTag(final ProfileTag tag) {
+      this.tag = tag;
+    }
+
+    void start(final long nanos) {
+      if (depth == starts.length) {
+        starts = Arrays.copyOf(starts, depth * 2);
+      }
+      starts[depth++] = nanos;
+    }
+
+    long stop() {
+      return starts[--depth];
+    }
   }
 }
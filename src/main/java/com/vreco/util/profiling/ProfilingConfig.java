@@ -0,0 +1,79 @@
+package com.vreco.util.profiling;
+
+import java.util.Properties;
+
+/**
+ * Settings for the {@link Profiler}, read once from the profiling.* keys of conf/processor.conf.
+ *
+ * <pre>
+ * profiling.enabled        time anything at all, default false
+ * profiling.logEvents      log a perf4j line per timing, default true
+ * profiling.flushInterval  ms between summaries in the Profiling log, 0 disables, default 60000
+ * profiling.sampleRate     time 1 in N calls of each tag, default 1
+ * </pre>
+ *
+ * @author Ben Aldrich
+ */
+public class ProfilingConfig {
+
+  private final boolean enabled;
+  private final boolean logEvents;
+  private final long flushInterval;
+  private final int sampleRate;
+
+  public ProfilingConfig(final Properties conf) {
+    enabled = bool(conf, "profiling.enabled", "false");
+    logEvents = bool(conf, "profiling.logEvents", "true");
+    flushInterval = Long.parseLong(conf.getProperty("profiling.flushInterval", "60000").trim());
+    sampleRate = Integer.parseInt(conf.getProperty("profiling.sampleRate", "1").trim());
+
+    if (flushInterval < 0) {
+      throw new IllegalArgumentException("profiling.flushInterval must not be negative");
+    }
+    if (sampleRate < 1) {
+      throw new IllegalArgumentException("profiling.sampleRate must be at least 1");
+    }
+  }
+
+  private static boolean bool(final Properties conf, final String key, final String defaultValue) {
+    String value = conf.getProperty(key, defaultValue).trim();
+    if (!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false")) {
+      throw new IllegalArgumentException(key + " must be true or false, not " + value);
+    }
+    return Boolean.parseBoolean(value);
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public boolean isLogEvents() {
+    return logEvents;
+  }
+
+  public long getFlushInterval() {
+    return flushInterval;
+  }
+
+  public int getSampleRate() {
+    return sampleRate;
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (!(o instanceof ProfilingConfig)) {
+      return false;
+    }
+    ProfilingConfig other = (ProfilingConfig) o;
+    return enabled == other.enabled && logEvents == other.logEvents
+            && flushInterval == other.flushInterval && sampleRate == other.sampleRate;
+  }
+
+  @Override
+  public int hashCode() {
+    int h = enabled ? 1 : 0;
+    h = 31 * h + (logEvents ? 1 : 0);
+    h = 31 * h + (int) (flushInterval ^ (flushInterval >>> 32));
+    return 31 * h + sampleRate;
+  }
+}
@@ -0,0 +1,198 @@
+package com.vreco.util.shutdownhooks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Shutdown hook that shuts registered participants down in three phases: every participant stops
+ * taking new work, then all of them drain the work in hand in parallel until drainTimeout, then
+ * they are closed in the reverse order they were registered, so consumers and producers go before
+ * the connections they share. Anything still checking {@link #isShutdown()} sees the signal before
+ * the first phase.
+ *
+ * <pre>
+ * ShutdownCoordinator coordinator = new ShutdownCoordinator(30000);
+ * coordinator.register(connectionManager);
+ * coordinator.register(processor);
+ * Runtime.getRuntime().addShutdownHook(coordinator);
+ * </pre>
+ *
+ * @author Ben Aldrich
+ */
+public class ShutdownCoordinator extends SimpleShutdown {
+
+  private static Logger logger = Logger.getLogger(ShutdownCoordinator.class);
+  private final List<ShutdownParticipant> participants = new CopyOnWriteArrayList<>();
+  private final long drainTimeout;
+  private final AtomicBoolean started = new AtomicBoolean(false);
+  private final CountDownLatch completed = new CountDownLatch(1);
+  private volatile boolean drained = false;
+
+  /**
+   * @param drainTimeout milliseconds all participants together get to drain
+   */
+  public ShutdownCoordinator(final long drainTimeout) {
+    this.drainTimeout = drainTimeout;
+  }
+
+  /**
+   * Take part in the shutdown.
+   *
+   * @param participant
+   */
+  public void register(final ShutdownParticipant participant) {
+    participants.add(participant);
+  }
+
+  /**
+   * Close something with nothing to drain, like a Producer or a ConnectionManager, in the last
+   * phase.
+   *
+   * @param closeable
+   */
+  public void register(final AutoCloseable closeable) {
+    participants.add(new ShutdownParticipant() {
+      @Override
+      public void stopIntake() {
+      }
+
+      @Override
+      public boolean drain(long millis) {
+        return true;
+      }
+
+      @Override
+      public void close() {
+        try {
+          closeable.close();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          logger.error("Interrupted closing " + closeable, e);
+        } catch (Exception e) {
+          logger.error("Failed to close " + closeable, e);
+        }
+      }
+
+      @Override
+      public String toString() {
+        return closeable.toString();
+      }
+    });
+  }
+
+  /**
+   * Run the shutdown now. Calls after the first wait for it to complete.
+   *
+   * @return true if every participant drained before the deadline
+   * @throws InterruptedException
+   */
+  public boolean shutdown() throws InterruptedException {
+    if (!started.compareAndSet(false, true)) {
+      completed.await();
+      return drained;
+    }
+    try {
+      setShutdown(true);
+      List<ShutdownParticipant> all = new ArrayList<>(participants);
+      for (ShutdownParticipant participant : all) {
+        try {
+          participant.stopIntake();
+        } catch (RuntimeException e) {
+          logger.error("Failed to stop intake of " + participant, e);
+        }
+      }
+      drained = drainAll(all);
+      for (int i = all.size() - 1; i >= 0; i--) {
+        try {
+          all.get(i).close();
+        } catch (Exception e) {
+          logger.error("Failed to close " + all.get(i), e);
+        }
+      }
+      return drained;
+    } finally {
+      setFinished(true);
+      completed.countDown();
+    }
+  }
+
+  private boolean drainAll(final List<ShutdownParticipant> all) throws InterruptedException {
+    if (all.isEmpty()) {
+      return true;
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(all.size(), new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Shutdown drain");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    try {
+      final long deadline = System.currentTimeMillis() + drainTimeout;
+      List<Future<Boolean>> results = new ArrayList<>(all.size());
+      for (final ShutdownParticipant participant : all) {
+        results.add(pool.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws Exception {
+            return participant.drain(Math.max(0, deadline - System.currentTimeMillis()));
+          }
+        }));
+      }
+      boolean allDrained = true;
+      for (int i = 0; i < results.size(); i++) {
+        long remaining = Math.max(0, deadline - System.currentTimeMillis());
+        try {
+          if (!results.get(i).get(remaining, TimeUnit.MILLISECONDS)) {
+            logger.warn(all.get(i) + " did not drain within " + drainTimeout + "ms");
+            allDrained = false;
+          }
+        } catch (TimeoutException e) {
+          logger.warn(all.get(i) + " did not drain within " + drainTimeout + "ms");
+          allDrained = false;
+        } catch (ExecutionException e) {
+          logger.error("Failed to drain " + all.get(i), e.getCause());
+          allDrained = false;
+        }
+      }
+      return allDrained;
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  public long getDrainTimeout() {
+    return drainTimeout;
+  }
+
+  /**
+   * This is the method called when a signal is received.
+   */
+  @Override
+  public void run() {
+    logger.info("Caught signal to shutdown");
+    try {
+      if (shutdown()) {
+        logger.info("Finished shutdown");
+      } else {
+        logger.warn("Finished shutdown, some work did not drain in time");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    LogManager.shutdown();
+  }
+}
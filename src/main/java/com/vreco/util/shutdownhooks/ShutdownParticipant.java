@@ -0,0 +1,35 @@
+package com.vreco.util.shutdownhooks;
+
+import javax.jms.JMSException;
+
+/**
+ * Something that takes part in a graceful shutdown run by a {@link ShutdownCoordinator}. Every
+ * participant is told to stop taking new work, then all drain in parallel, then all are closed.
+ *
+ * @author Ben Aldrich
+ */
+public interface ShutdownParticipant extends AutoCloseable {
+
+  /**
+   * Stop accepting new work. Should return quickly, work in hand is finished in drain.
+   */
+  void stopIntake();
+
+  /**
+   * Wait for work in hand to finish.
+   *
+   * @param millis
+   * @return true if everything finished in time
+   * @throws InterruptedException
+   */
+  boolean drain(long millis) throws InterruptedException;
+
+  /**
+   * Release everything, after drain. Narrower than AutoCloseable, a close that can be interrupted
+   * has no place in a shutdown.
+   *
+   * @throws JMSException
+   */
+  @Override
+  void close() throws JMSException;
+}
@@ -1,6 +1,8 @@
 
 package com.vreco.util.shutdownhooks;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
@@ -17,6 +19,9 @@ public class SimpleShutdown extends Thread {
   private static SimpleShutdown instance = null;
   private AtomicBoolean finished = new AtomicBoolean(false);
   private AtomicBoolean shutdown = new AtomicBoolean(false);
+  // replaced with a fresh latch when the flag is reset, so waiters block again
+  private volatile CountDownLatch finishedLatch = new CountDownLatch(1);
+  private volatile CountDownLatch shutdownLatch = new CountDownLatch(1);
   private static Logger logger = Logger.getLogger(SimpleShutdown.class);
 
   protected SimpleShutdown() {
@@ -33,11 +38,28 @@ public class SimpleShutdown extends Thread {
   }
 
   /**
-   * Set atomic boolean for shutdown.
+   * Set atomic boolean for shutdown. Setting it back to false re-arms {@link #awaitShutdown(long)}.
    * @param shutdown 
    */
-  public void setShutdown(final boolean shutdown) {
-    this.shutdown.set(shutdown);
+  public synchronized void setShutdown(final boolean shutdown) {
+    if (this.shutdown.getAndSet(shutdown) == shutdown) {
+      return;
+    }
+    if (shutdown) {
+      shutdownLatch.countDown();
+    } else {
+      shutdownLatch = new CountDownLatch(1);
+    }
+  }
+
+  /**
+   * Block until shutdown is signalled, for a main thread with nothing else to do.
+   * @param millis
+   * @return true if we should be shutting down
+   * @throws InterruptedException 
+   */
+  public boolean awaitShutdown(final long millis) throws InterruptedException {
+    return shutdownLatch.await(millis, TimeUnit.MILLISECONDS);
   }
 
   /**
@@ -49,11 +71,19 @@ public class SimpleShutdown extends Thread {
   }
 
   /**
-   * Set the finished atomic boolean.
+   * Set the finished atomic boolean, setting it to true releases {@link #run()}. Setting it back
+   * to false makes {@link #run()} wait again.
    * @param finished 
    */
-  public void setFinished(final boolean finished) {
-    this.finished.set(finished);
+  public synchronized void setFinished(final boolean finished) {
+    if (this.finished.getAndSet(finished) == finished) {
+      return;
+    }
+    if (finished) {
+      finishedLatch.countDown();
+    } else {
+      finishedLatch = new CountDownLatch(1);
+    }
   }
 
   
@@ -73,12 +103,17 @@ public class SimpleShutdown extends Thread {
   public void run() {
     this.setShutdown(true);
     logger.info("Caught signal to shutdown");
+    boolean interrupted = false;
     while (!this.isFinished()) {
       try {
-        Thread.sleep(100);
+        finishedLatch.await();
       } catch (InterruptedException ex) {
+        interrupted = true;
       }
     }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
     logger.info("Finished shutdown");
 
     LogManager.shutdown();
@@ -0,0 +1,121 @@
+package com.vreco.util;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author mgolowka
+ */
+public class UtilTest extends TestCase {
+
+  public UtilTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * Test of join method with objects, of class Util.
+   */
+  public void testJoinObjects() throws Exception {
+    Assert.assertEquals("a,1,b", Util.join(",", "a", 1, null, "", "  ", "b"));
+    Assert.assertEquals("ab", Util.join(null, "a", "b"));
+    Assert.assertEquals("", Util.join(",", new Object[0]));
+    Assert.assertEquals("a", Util.join(",", "a", null));
+  }
+
+  /**
+   * Test of join method with a collection, of class Util.
+   */
+  public void testJoinCollection() throws Exception {
+    List<Object> list = new ArrayList<>();
+    list.add(" x ");
+    list.add(null);
+    list.add("\t");
+    list.add(2);
+    Assert.assertEquals(" x |2", Util.join("|", list));
+    Assert.assertEquals("", Util.join("|", (Collection<?>) null));
+  }
+
+  /**
+   * Test of join method with several collections, of class Util.
+   */
+  public void testJoinCollections() throws Exception {
+    Collection<?> first = Arrays.asList("a", "b");
+    Collection<?> empty = new ArrayList<>();
+    Collection<?> second = Arrays.asList(null, "c");
+    Assert.assertEquals("a-b-c", Util.join("-", first, empty, null, second));
+    Assert.assertEquals("", Util.join("-", empty, empty));
+  }
+
+  /**
+   * Test of joinTo methods, of class Util.
+   */
+  public void testJoinTo() throws Exception {
+    StringBuilder str = new StringBuilder("values: ");
+    Assert.assertSame(str, Util.joinTo(str, ", ", "a", null, "b"));
+    Assert.assertEquals("values: a, b", str.toString());
+
+    StringWriter out = new StringWriter();
+    Util.joinTo(out, "/", Arrays.asList("x", "", "y"));
+    Assert.assertEquals("x/y", out.toString());
+  }
+
+  /**
+   * Test of getStackTrace method, of class Util.
+   */
+  public void testGetStackTrace() throws Exception {
+    String trace = Util.getStackTrace();
+    Assert.assertTrue(trace.startsWith(UtilTest.class.getName() + ".testGetStackTrace"));
+    Assert.assertFalse(trace.contains("null"));
+  }
+
+  /**
+   * Test of captureStackTrace methods, of class Util.
+   */
+  public void testCaptureStackTrace() throws Exception {
+    CapturedStackTrace trace = Util.captureStackTrace(2, null);
+    Assert.assertEquals(2, trace.getFrames().length);
+    Assert.assertEquals("testCaptureStackTrace", trace.getFrames()[0].getMethodName());
+    Assert.assertTrue(trace.getOmitted() > 0);
+
+    CapturedStackTrace filtered = Util.captureStackTrace(new Exception("boom", new RuntimeException()),
+            100, new StackFrameFilter() {
+      @Override
+      public boolean accept(StackTraceElement frame) {
+        return frame.getClassName().startsWith("com.vreco");
+      }
+    });
+    for (StackTraceElement frame : filtered.getFrames()) {
+      Assert.assertTrue(frame.getClassName().startsWith("com.vreco"));
+    }
+    Assert.assertTrue(filtered.toString().startsWith("java.lang.Exception: boom"));
+    Assert.assertTrue(filtered.toString().contains("Caused by: java.lang.RuntimeException"));
+  }
+
+  /**
+   * Test of StackTraceCache, repeated traces share one entry.
+   */
+  public void testStackTraceCache() throws Exception {
+    StackTraceCache cache = new StackTraceCache(2);
+    StackTraceCache.Entry first = null;
+    for (int i = 0; i < 3; i++) {
+      StackTraceCache.Entry entry = cache.record(Util.captureStackTrace(new Exception("id " + i), 10, null));
+      if (first == null) {
+        first = entry;
+      }
+      Assert.assertSame(first, entry);
+    }
+    Assert.assertEquals(3, first.getCount());
+    Assert.assertTrue(first.getTrace().contains("id 0"));
+
+    cache.record(Util.captureStackTrace(new IllegalStateException(), 10, null));
+    cache.record(Util.captureStackTrace(new IllegalArgumentException(), 10, null));
+    Assert.assertEquals(2, cache.size());
+    Assert.assertEquals(1, cache.getEvictionCount());
+  }
+}
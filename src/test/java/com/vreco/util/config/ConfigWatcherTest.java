@@ -0,0 +1,127 @@
+package com.vreco.util.config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Ben Aldrich
+ */
+public class ConfigWatcherTest extends TestCase {
+
+  private Path dir;
+  private Path file;
+
+  public ConfigWatcherTest(String testName) {
+    super(testName);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    dir = Files.createTempDirectory("config");
+    file = dir.resolve("processor.conf");
+    write("1000", "2");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+    for (File f : dir.toFile().listFiles()) {
+      f.delete();
+    }
+    dir.toFile().delete();
+  }
+
+  private void write(String timeout, String sampleRate) throws IOException {
+    String conf = "activemq.url=vm://localhost\n"
+            + "activemq.queue=configQ\n"
+            + "activemq.timeout=" + timeout + "\n"
+            + "processor.numThreads=2\n"
+            + "profiling.enabled=true\n"
+            + "profiling.sampleRate=" + sampleRate + "\n"
+            + "custom.key=value\n";
+    // replace the file in one step, the way editors and deploy tools do
+    Path tmp = dir.resolve("processor.conf.tmp");
+    Files.write(tmp, conf.getBytes(StandardCharsets.UTF_8));
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * The file is parsed into typed settings once.
+   */
+  public void testLoad() throws Exception {
+    System.out.println("load");
+    try (ConfigWatcher watcher = new ConfigWatcher(file)) {
+      Config config = watcher.get();
+      Assert.assertEquals(1000, config.getProcessor().getTimeout());
+      Assert.assertEquals(2, config.getProcessor().getNumThreads());
+      Assert.assertTrue(config.getProfiling().isEnabled());
+      Assert.assertEquals(2, config.getProfiling().getSampleRate());
+      Assert.assertEquals(60000, config.getProfiling().getFlushInterval());
+      Assert.assertEquals("value", config.getProperty("custom.key"));
+      Assert.assertFalse(watcher.reload());
+    }
+  }
+
+  /**
+   * Out of range values are rejected up front.
+   */
+  public void testValidation() throws Exception {
+    System.out.println("validation");
+    write("1000", "0");
+    try {
+      new ConfigWatcher(file);
+      Assert.fail("Expected profiling.sampleRate=0 to be rejected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    write("soon", "1");
+    try {
+      new ConfigWatcher(file);
+      Assert.fail("Expected activemq.timeout=soon to be rejected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  /**
+   * A changed file is swapped in, an invalid one is ignored.
+   */
+  public void testHotReload() throws Exception {
+    System.out.println("hotReload");
+    try (ConfigWatcher watcher = new ConfigWatcher(file)) {
+      final AtomicReference<Config> seen = new AtomicReference<>();
+      final CountDownLatch changed = new CountDownLatch(1);
+      watcher.addListener(new ConfigListener() {
+        @Override
+        public void configChanged(Config previous, Config current) {
+          seen.set(current);
+          changed.countDown();
+        }
+      });
+      Config original = watcher.get();
+      watcher.start();
+
+      write("-1", "1");
+      Thread.sleep(200);
+      Assert.assertFalse(watcher.reload());
+      Assert.assertSame(original, watcher.get());
+
+      write("250", "1");
+      Assert.assertTrue(changed.await(10, TimeUnit.SECONDS));
+      Assert.assertSame(seen.get(), watcher.get());
+      Assert.assertEquals(250, watcher.get().getProcessor().getTimeout());
+      Assert.assertEquals(1000, original.getProcessor().getTimeout());
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package com.vreco.util.metrics;
+
+import com.vreco.util.mq.Consumer;
+import com.vreco.util.mq.DestinationStatistics;
+import com.vreco.util.mq.Producer;
+import com.vreco.util.profiling.ProfileSnapshot;
+import com.vreco.util.profiling.Profiler;
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Ben Aldrich
+ */
+public class JmxReporterTest extends TestCase {
+
+  private final String vmUrl = "vm://localhost?broker.persistent=false";
+  private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+  public JmxReporterTest(String testName) {
+    super(testName);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    Profiler.initialize(new Properties());
+    Profiler.reset();
+    super.tearDown();
+  }
+
+  /**
+   * Destination counters and Profiler tags show up in the platform MBeanServer.
+   */
+  @SuppressWarnings("try")
+  public void testReport() throws Exception {
+    System.out.println("testReport");
+    Properties conf = new Properties();
+    conf.setProperty("profiling.enabled", "true");
+    conf.setProperty("profiling.logEvents", "false");
+    Profiler.initialize(conf);
+
+    // closed by hand below, to check it unregisters everything
+    JmxReporter reporter = new JmxReporter();
+    try (Producer producer = new Producer(vmUrl); Consumer consumer = new Consumer(vmUrl);
+            MetricsPublisher publisher = new MetricsPublisher(60000)) {
+      producer.connect("queue", "jmxQ");
+      consumer.connect("queue", "jmxQ");
+      consumer.setTimeout(2000);
+      try (Profiler.Scope scope = Profiler.time("jmxSend")) {
+        producer.sendMessage("testT");
+      }
+      consumer.getTextMessage().acknowledge();
+      consumer.setTimeout(10);
+      consumer.getTextMessage();
+
+      publisher.addReporter(reporter);
+      publisher.publish();
+
+      ObjectName destination = JmxReporter.getObjectName("Destination", "name", "jmxQ");
+      Assert.assertEquals(1L, server.getAttribute(destination, "MessagesSent"));
+      Assert.assertEquals(5L, server.getAttribute(destination, "BytesSent"));
+      Assert.assertEquals(1L, server.getAttribute(destination, "MessagesReceived"));
+      Assert.assertEquals(1L, server.getAttribute(destination, "ReceiveTimeouts"));
+
+      ObjectName tag = JmxReporter.getObjectName("Profiler", "tag", "jmxSend");
+      Assert.assertEquals(1L, server.getAttribute(tag, "Count"));
+
+      reporter.close();
+      Assert.assertFalse(server.isRegistered(destination));
+      Assert.assertFalse(server.isRegistered(tag));
+    } finally {
+      reporter.close();
+    }
+  }
+
+  /**
+   * Names that drop out of a report are unregistered, and a name whose statistics were replaced
+   * reads the new ones.
+   */
+  public void testReconcile() throws Exception {
+    System.out.println("testReconcile");
+    Properties conf = new Properties();
+    conf.setProperty("profiling.enabled", "true");
+    conf.setProperty("profiling.logEvents", "false");
+    Profiler.initialize(conf);
+    MBeanServer local = MBeanServerFactory.newMBeanServer();
+    JmxReporter reporter = new JmxReporter(local);
+    try {
+      SortedMap<String, ProfileSnapshot> profiles = new TreeMap<>();
+      SortedMap<String, DestinationStatistics> destinations = new TreeMap<>();
+      profiles.put("jmxReconcile", Profiler.tag("jmxReconcile").snapshot());
+      destinations.put("jmxGone", DestinationStatistics.forDestination("jmxGone"));
+      reporter.report(profiles, destinations);
+
+      ObjectName tag = JmxReporter.getObjectName("Profiler", "tag", "jmxReconcile");
+      ObjectName gone = JmxReporter.getObjectName("Destination", "name", "jmxGone");
+      Assert.assertTrue(local.isRegistered(tag));
+      Assert.assertTrue(local.isRegistered(gone));
+
+      Profiler.remove("jmxReconcile");
+      Profiler.record(Profiler.tag("jmxReconcile"), 1000);
+      destinations.clear();
+      reporter.report(profiles, destinations);
+      Assert.assertFalse(local.isRegistered(gone));
+      Assert.assertEquals(1L, local.getAttribute(tag, "Count"));
+    } finally {
+      reporter.close();
+      Profiler.remove("jmxReconcile");
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package com.vreco.util.mq;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.jms.JMSException;
+import javax.jms.TextMessage;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Ben Aldrich
+ */
+public class BatchingProducerTest extends TestCase {
+
+  private final String vmUrl = "vm://localhost?broker.persistent=false";
+  private Consumer consumer;
+  private Producer producer;
+
+  public BatchingProducerTest(String testName) {
+    super(testName);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    consumer = new Consumer(vmUrl);
+    producer = new Producer(vmUrl);
+    producer.setUseTransactions(true);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+    if (consumer != null) {
+      consumer.close();
+    }
+    if (producer != null) {
+      producer.close();
+    }
+  }
+
+  /**
+   * A full batch is committed as soon as it reaches maxBatchSize.
+   */
+  public void testFlushOnSize() throws Exception {
+    producer.connect("queue", "testBatchSizeQ");
+    consumer.connect("queue", "testBatchSizeQ");
+    final AtomicInteger committed = new AtomicInteger();
+    try (BatchingProducer batcher = new BatchingProducer(producer, 2, 60000, new BatchListener() {
+      @Override
+      public void batchCommitted(List<String> batch) {
+        committed.addAndGet(batch.size());
+      }
+
+      @Override
+      public void batchFailed(List<String> batch, JMSException e) {
+      }
+    })) {
+      batcher.send("testT1");
+      Assert.assertEquals(1, batcher.getPendingCount());
+      batcher.send("testT2");
+      Assert.assertEquals(0, batcher.getPendingCount());
+      Assert.assertEquals(2, committed.get());
+    }
+    consumer.setTimeout(2000);
+    TextMessage msg = consumer.getTextMessage();
+    if (msg == null) {
+      throw new IOException("NO message found!");
+    }
+    msg.acknowledge();
+    Assert.assertEquals("testT1", msg.getText());
+  }
+
+  /**
+   * A partial batch is committed once maxBatchMillis has passed.
+   */
+  public void testFlushOnTime() throws Exception {
+    producer.connect("queue", "testBatchTimeQ");
+    consumer.connect("queue", "testBatchTimeQ");
+    final CountDownLatch latch = new CountDownLatch(1);
+    try (BatchingProducer batcher = new BatchingProducer(producer, 100, 50, new BatchListener() {
+      @Override
+      public void batchCommitted(List<String> batch) {
+        latch.countDown();
+      }
+
+      @Override
+      public void batchFailed(List<String> batch, JMSException e) {
+      }
+    })) {
+      batcher.send("testT");
+      Assert.assertTrue(latch.await(2, TimeUnit.SECONDS));
+    }
+    consumer.setTimeout(2000);
+    TextMessage msg = consumer.getTextMessage();
+    if (msg == null) {
+      throw new IOException("NO message found!");
+    }
+    msg.acknowledge();
+    Assert.assertEquals("testT", msg.getText());
+  }
+}
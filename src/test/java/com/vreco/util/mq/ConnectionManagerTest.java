@@ -0,0 +1,119 @@
+package com.vreco.util.mq;
+
+import javax.jms.Connection;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Ben Aldrich
+ */
+public class ConnectionManagerTest extends TestCase {
+
+  private final String vmUrl = "vm://localhost?broker.persistent=false";
+
+  public ConnectionManagerTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * Test of acquire and release, of class ConnectionManager.
+   */
+  public void testAcquireRelease() throws Exception {
+    System.out.println("acquireRelease");
+    try (ConnectionManager manager = new ConnectionManager(vmUrl, 2)) {
+      Connection first = manager.acquire();
+      Connection second = manager.acquire();
+      Connection third = manager.acquire();
+      Assert.assertNotSame(first, second);
+      Assert.assertSame(first, third);
+      Assert.assertEquals(2, manager.getConnectionCount());
+      Assert.assertEquals(3, manager.getReferenceCount());
+
+      manager.release(first);
+      Assert.assertEquals(2, manager.getConnectionCount());
+      manager.release(third);
+      Assert.assertEquals(1, manager.getConnectionCount());
+
+      Session session = manager.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      Assert.assertEquals(2, manager.getReferenceCount());
+      manager.release(session);
+      manager.release(second);
+      Assert.assertEquals(0, manager.getConnectionCount());
+      Assert.assertEquals(0, manager.getReferenceCount());
+      Assert.assertEquals(3, manager.getCreatedCount());
+    }
+  }
+
+  /**
+   * Producers and Consumers share the pooled connections.
+   */
+  public void testSharedByProducerAndConsumer() throws Exception {
+    System.out.println("sharedByProducerAndConsumer");
+    String queue = "managedQ";
+    try (ConnectionManager manager = new ConnectionManager(vmUrl, 1)) {
+      try (Producer producer = new Producer(vmUrl); Consumer consumer = new Consumer(vmUrl)) {
+        producer.setConnectionManager(manager);
+        consumer.setConnectionManager(manager);
+        producer.connect("queue", queue);
+        consumer.connect("queue", queue);
+        Assert.assertEquals(1, manager.getConnectionCount());
+        Assert.assertEquals(2, manager.getReferenceCount());
+
+        producer.sendMessage("testT");
+        consumer.setTimeout(2000);
+        TextMessage msg = consumer.getTextMessage();
+        Assert.assertEquals("testT", msg.getText());
+        msg.acknowledge();
+      }
+      Assert.assertEquals(0, manager.getConnectionCount());
+    }
+  }
+
+  /**
+   * Connecting a Consumer twice reuses its connection, and close releases it.
+   */
+  public void testConsumerConnectTwice() throws Exception {
+    System.out.println("consumerConnectTwice");
+    try (ConnectionManager manager = new ConnectionManager(vmUrl, 2)) {
+      Consumer consumer = new Consumer(vmUrl);
+      consumer.setConnectionManager(manager);
+      consumer.connect("queue", "managedQ1");
+      consumer.connect("queue", "managedQ2");
+      Assert.assertEquals(1, manager.getConnectionCount());
+      Assert.assertEquals(1, manager.getReferenceCount());
+      consumer.close();
+      Assert.assertEquals(0, manager.getConnectionCount());
+      Assert.assertEquals(0, manager.getReferenceCount());
+    }
+  }
+
+  /**
+   * Closing a managed Consumer twice releases its connection once, the other user keeps it.
+   */
+  public void testConsumerCloseTwice() throws Exception {
+    System.out.println("consumerCloseTwice");
+    try (ConnectionManager manager = new ConnectionManager(vmUrl, 1);
+            Producer producer = new Producer(vmUrl)) {
+      producer.setConnectionManager(manager);
+      producer.connect("queue", "managedCloseQ");
+      Consumer consumer = new Consumer(vmUrl);
+      consumer.setConnectionManager(manager);
+      consumer.connect("queue", "managedCloseQ");
+      Assert.assertEquals(2, manager.getReferenceCount());
+      consumer.close();
+      consumer.close();
+      Assert.assertEquals(1, manager.getConnectionCount());
+      Assert.assertEquals(1, manager.getReferenceCount());
+      producer.sendMessage("testT");
+
+      try (Consumer check = new Consumer(vmUrl)) {
+        check.setTimeout(2000);
+        check.connect("queue", "managedCloseQ");
+        Assert.assertEquals("testT", check.getTextMessage().getText());
+      }
+    }
+  }
+}
@@ -1,6 +1,13 @@
 package com.vreco.util.mq;
 
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.jms.Destination;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+import junit.framework.Assert;
 import junit.framework.TestCase;
 
 /**
@@ -49,4 +56,146 @@ public class ConsumerTest extends TestCase {
       }
     }
   }
+
+  /**
+   * Test of listen method, of class Consumer.
+   */
+  public void testListen() throws Exception {
+    System.out.println("listen");
+    String queue = "listenQ";
+    final int count = 20;
+    final CountDownLatch latch = new CountDownLatch(count);
+    try (Consumer instance = new Consumer(vmUrl); Producer producer = new Producer(vmUrl)) {
+      instance.listen("queue", queue, 3, new MessageHandler() {
+        @Override
+        public void onMessage(Message message) {
+          latch.countDown();
+        }
+      });
+      Assert.assertEquals(3, instance.getListenerCount());
+      producer.connect("queue", queue);
+      for (int i = 0; i < count; i++) {
+        producer.sendMessage("testT" + i);
+      }
+      Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+  }
+
+  /**
+   * A handler failure sends the message back for redelivery.
+   */
+  public void testListenRedelivery() throws Exception {
+    System.out.println("listenRedelivery");
+    String queue = "listenRedeliveryQ";
+    final AtomicInteger attempts = new AtomicInteger();
+    final CountDownLatch latch = new CountDownLatch(1);
+    try (Consumer instance = new Consumer(vmUrl); Producer producer = new Producer(vmUrl)) {
+      instance.listen("queue", queue, 1, new MessageHandler() {
+        @Override
+        public void onMessage(Message message) throws Exception {
+          if (attempts.incrementAndGet() == 1) {
+            throw new Exception("first attempt fails");
+          }
+          Assert.assertTrue(message.getJMSRedelivered());
+          latch.countDown();
+        }
+      });
+      producer.connect("queue", queue);
+      producer.sendMessage("testT");
+      Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+  }
+
+  /**
+   * Test of receiveBatch method, of class Consumer.
+   */
+  public void testReceiveBatch() throws Exception {
+    System.out.println("receiveBatch");
+    String queue = "batchReceiveQ";
+    try (Consumer instance = new Consumer(vmUrl); Producer producer = new Producer(vmUrl)) {
+      instance.connect("queue", queue);
+      producer.connect("queue", queue);
+      for (int i = 0; i < 5; i++) {
+        producer.sendMessage("testT" + i);
+      }
+      List<Message> batch = instance.receiveBatch(3, 2000);
+      Assert.assertEquals(3, batch.size());
+      Assert.assertEquals("testT0", ((TextMessage) batch.get(0)).getText());
+      instance.acknowledgeBatch(batch);
+
+      batch = instance.receiveBatch(10, 500);
+      Assert.assertEquals(2, batch.size());
+      instance.acknowledgeBatch(batch);
+
+      Assert.assertTrue(instance.receiveBatch(10, 10).isEmpty());
+    }
+  }
+
+  /**
+   * A rolled back transacted batch is redelivered.
+   */
+  public void testReceiveBatchRollback() throws Exception {
+    System.out.println("receiveBatchRollback");
+    String queue = "batchRollbackQ";
+    try (Consumer instance = new Consumer(vmUrl); Producer producer = new Producer(vmUrl)) {
+      instance.setUseTransactions(true);
+      instance.connect("queue", queue);
+      producer.connect("queue", queue);
+      producer.sendMessage("testT0");
+      producer.sendMessage("testT1");
+      List<Message> batch = instance.receiveBatch(2, 2000);
+      Assert.assertEquals(2, batch.size());
+      instance.rollback();
+
+      batch = instance.receiveBatch(2, 2000);
+      Assert.assertEquals(2, batch.size());
+      Assert.assertTrue(batch.get(0).getJMSRedelivered());
+      instance.acknowledgeBatch(batch);
+    }
+  }
+
+  /**
+   * Instrumented receives split waits that got a message from empty polls.
+   */
+  public void testInstrumentation() throws Exception {
+    System.out.println("instrumentation");
+    String queue = "instrumentedQ";
+    try (Consumer instance = new Consumer(vmUrl); Producer producer = new Producer(vmUrl)) {
+      instance.setInstrumentation(true);
+      instance.setTimeout(100);
+      instance.connect("queue", queue);
+      producer.setInstrumentation(true);
+      producer.connect("queue", queue);
+      producer.sendMessage("testT");
+      Assert.assertEquals("testT", instance.getTextMessage().getText());
+      Assert.assertNull(instance.getTextMessage());
+
+      DestinationStatistics stats = DestinationStatistics.forDestination(queue);
+      Assert.assertEquals(1, stats.getMessagesSent());
+      Assert.assertEquals(5, stats.getBytesSent());
+      Assert.assertEquals(1, stats.getMessagesReceived());
+      Assert.assertEquals(1, stats.getReceiveTimeouts());
+      Assert.assertTrue(stats.getEmptyPollWaitMillis() >= 90);
+    }
+  }
+
+  /**
+   * The registry stays within its bound, but never drops a destination a Consumer is using.
+   */
+  public void testStatisticsBounded() throws Exception {
+    System.out.println("statisticsBounded");
+    int max = DestinationStatistics.getMaxDestinations();
+    try (Consumer instance = new Consumer(vmUrl)) {
+      instance.connect("queue", "boundedHeldQ");
+      DestinationStatistics.setMaxDestinations(2);
+      for (int i = 0; i < 10; i++) {
+        DestinationStatistics.forDestination("boundedQ" + i);
+      }
+      Assert.assertEquals(2, DestinationStatistics.getAll().size());
+      Assert.assertTrue(DestinationStatistics.getAll().containsKey("boundedHeldQ"));
+      Assert.assertTrue(DestinationStatistics.getAll().containsKey("boundedQ9"));
+    } finally {
+      DestinationStatistics.setMaxDestinations(max);
+    }
+  }
 }
@@ -0,0 +1,109 @@
+package com.vreco.util.mq;
+
+import java.io.File;
+import java.nio.file.Files;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Ben Aldrich
+ */
+public class MessageSpoolTest extends TestCase {
+
+  private File dir;
+
+  public MessageSpoolTest(String testName) {
+    super(testName);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    dir = Files.createTempDirectory("spool").toFile();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    dir.delete();
+    super.tearDown();
+  }
+
+  /**
+   * Records come back in order across segments, and fully read segments are deleted.
+   */
+  public void testAppendAndRead() throws Exception {
+    System.out.println("appendAndRead");
+    try (MessageSpool spool = new MessageSpool(dir, 1024, 4)) {
+      Assert.assertTrue(spool.isEmpty());
+      for (int i = 0; i < 20; i++) {
+        Assert.assertTrue(spool.append(new MessageSpool.Record("queue", "spoolQ", "message" + i)));
+      }
+      Assert.assertTrue(spool.getSegmentCount() == 1);
+      for (int i = 20; i < 60; i++) {
+        Assert.assertTrue(spool.append(new MessageSpool.Record("queue", "spoolQ", "message" + i)));
+      }
+      Assert.assertTrue(spool.getSegmentCount() > 1);
+      for (int i = 0; i < 60; i++) {
+        MessageSpool.Record record = spool.peek();
+        Assert.assertEquals("queue", record.getType());
+        Assert.assertEquals("spoolQ", record.getDestination());
+        Assert.assertEquals("message" + i, record.getMessage());
+        spool.advance();
+      }
+      Assert.assertNull(spool.peek());
+      Assert.assertTrue(spool.isEmpty());
+      Assert.assertEquals(1, spool.getSegmentCount());
+    }
+  }
+
+  /**
+   * Appends are refused once every segment is full.
+   */
+  public void testBounded() throws Exception {
+    System.out.println("bounded");
+    try (MessageSpool spool = new MessageSpool(dir, 1024, 2)) {
+      int appended = 0;
+      while (spool.append(new MessageSpool.Record("queue", "spoolQ", "message" + appended))) {
+        appended++;
+      }
+      Assert.assertTrue(appended > 0);
+      Assert.assertEquals(2, spool.getSegmentCount());
+      Assert.assertEquals(2, dir.listFiles().length);
+    }
+  }
+
+  /**
+   * Reading resumes where it stopped after the spool is closed and reopened.
+   */
+  public void testRecover() throws Exception {
+    System.out.println("recover");
+    try (MessageSpool spool = new MessageSpool(dir, 1024, 8)) {
+      for (int i = 0; i < 50; i++) {
+        spool.append(new MessageSpool.Record("topic", "spoolT", "message" + i));
+      }
+      for (int i = 0; i < 30; i++) {
+        spool.peek();
+        spool.advance();
+      }
+      spool.commit();
+      spool.peek();
+      spool.advance();
+    }
+    try (MessageSpool spool = new MessageSpool(dir, 1024, 8)) {
+      for (int i = 31; i < 50; i++) {
+        Assert.assertEquals("message" + i, spool.peek().getMessage());
+        spool.advance();
+      }
+      Assert.assertNull(spool.peek());
+      Assert.assertTrue(spool.append(new MessageSpool.Record("topic", "spoolT", "after")));
+      Assert.assertEquals("after", spool.peek().getMessage());
+    }
+  }
+}
@@ -0,0 +1,269 @@
+package com.vreco.util.mq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.jms.Connection;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+import org.apache.activemq.ActiveMQConnectionFactory;
+
+/**
+ *
+ * @author Ben Aldrich
+ */
+public class OrderedConsumerTest extends TestCase {
+
+  private final String vmUrl = "vm://localhost?broker.persistent=false";
+
+  public OrderedConsumerTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * Messages with the same key are handled in order, different keys in parallel.
+   */
+  public void testOrdering() throws Exception {
+    System.out.println("ordering");
+    String queue = "orderedQ";
+    int keys = 16;
+    int perKey = 25;
+    final Map<String, List<Integer>> seen = new ConcurrentHashMap<>();
+    final Set<String> threads = java.util.Collections.newSetFromMap(
+            new ConcurrentHashMap<String, Boolean>());
+    final CountDownLatch done = new CountDownLatch(keys * perKey);
+    OrderedConsumer consumer = new OrderedConsumer(vmUrl, 4, 10);
+    try {
+      consumer.listen(queue, new MessageHandler() {
+        @Override
+        public void onMessage(Message message) throws Exception {
+          String key = message.getStringProperty(OrderedConsumer.GROUP_ID);
+          List<Integer> list = seen.get(key);
+          if (list == null) {
+            list = new ArrayList<>();
+            seen.put(key, list);
+          }
+          list.add(Integer.parseInt(((TextMessage) message).getText()));
+          threads.add(Thread.currentThread().getName());
+          done.countDown();
+        }
+      });
+      send(queue, OrderedConsumer.GROUP_ID, keys, perKey);
+      Assert.assertTrue(done.await(20, TimeUnit.SECONDS));
+      Assert.assertEquals(keys, seen.size());
+      for (List<Integer> list : seen.values()) {
+        Assert.assertEquals(perKey, list.size());
+        for (int i = 0; i < perKey; i++) {
+          Assert.assertEquals(i, (int) list.get(i));
+        }
+      }
+      Assert.assertTrue(threads.size() > 1);
+      Assert.assertTrue(consumer.drain(5000));
+      long handled = 0;
+      for (int i = 0; i < consumer.getLaneCount(); i++) {
+        handled += consumer.getLane(i).getHandledCount();
+        Assert.assertEquals(0, consumer.getLane(i).getDepth());
+        Assert.assertEquals(0, consumer.getLane(i).getLagMillis());
+      }
+      Assert.assertEquals(keys * perKey, handled);
+    } finally {
+      consumer.close();
+    }
+  }
+
+  /**
+   * A failing message is retried in its lane before the messages behind it.
+   */
+  public void testRetry() throws Exception {
+    System.out.println("retry");
+    String queue = "orderedRetryQ";
+    final List<Integer> seen = java.util.Collections.synchronizedList(new ArrayList<Integer>());
+    final AtomicInteger failures = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(3);
+    OrderedConsumer consumer = new OrderedConsumer(vmUrl, 2, 10);
+    consumer.setKeyProperty("account");
+    consumer.setRetryDelay(10);
+    try {
+      consumer.listen(queue, new MessageHandler() {
+        @Override
+        public void onMessage(Message message) throws Exception {
+          int value = Integer.parseInt(((TextMessage) message).getText());
+          if (value == 1 && failures.get() < 2) {
+            failures.incrementAndGet();
+            throw new Exception("try again");
+          }
+          seen.add(value);
+          done.countDown();
+        }
+      });
+      send(queue, "account", 1, 3);
+      Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+      Assert.assertEquals("[0, 1, 2]", seen.toString());
+      Assert.assertEquals(2, failures.get());
+    } finally {
+      consumer.close();
+    }
+  }
+
+  /**
+   * A message failing every attempt is dead lettered and acknowledged, and the messages behind it
+   * still follow in order.
+   */
+  public void testDeadLetter() throws Exception {
+    System.out.println("deadLetter");
+    String queue = "orderedDeadQ";
+    final List<Integer> seen = java.util.Collections.synchronizedList(new ArrayList<Integer>());
+    final CountDownLatch done = new CountDownLatch(2);
+    // opened first so the broker outlives the OrderedConsumer
+    try (Consumer dlq = new Consumer(vmUrl); Consumer rest = new Consumer(vmUrl)) {
+      dlq.connect("queue", RetryPolicy.DLQ_PREFIX + queue);
+      dlq.setTimeout(5000);
+      OrderedConsumer consumer = new OrderedConsumer(vmUrl, 2, 10);
+      consumer.setKeyProperty("account");
+      consumer.setMaxAttempts(2);
+      consumer.setRetryDelay(10);
+      try {
+        consumer.listen(queue, new MessageHandler() {
+          @Override
+          public void onMessage(Message message) throws Exception {
+            int value = Integer.parseInt(((TextMessage) message).getText());
+            if (value == 0) {
+              throw new Exception("poison");
+            }
+            seen.add(value);
+            done.countDown();
+          }
+        });
+        send(queue, "account", 1, 3);
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals("[1, 2]", seen.toString());
+        Assert.assertTrue(consumer.drain(5000));
+        long failed = 0;
+        for (int i = 0; i < consumer.getLaneCount(); i++) {
+          failed += consumer.getLane(i).getFailedCount();
+        }
+        Assert.assertEquals(1, failed);
+      } finally {
+        consumer.close();
+      }
+
+      TextMessage dead = dlq.getTextMessage();
+      Assert.assertEquals("0", dead.getText());
+      Assert.assertEquals("java.lang.Exception: poison",
+              dead.getStringProperty(RetryStage.FAILURE_PROPERTY));
+      dead.acknowledge();
+      // everything was acknowledged, nothing comes back
+      rest.connect("queue", queue);
+      rest.setTimeout(500);
+      Assert.assertNull(rest.getTextMessage());
+    }
+  }
+
+  /**
+   * A message whose key cannot be read stops intake, and it and the messages behind it are
+   * redelivered once the consumer closes.
+   */
+  public void testUnreadableKey() throws Exception {
+    System.out.println("unreadableKey");
+    String queue = "orderedBadKeyQ";
+    final AtomicInteger handled = new AtomicInteger();
+    // opened first so the broker outlives the OrderedConsumer
+    Connection connection = new ActiveMQConnectionFactory(vmUrl).createConnection();
+    try {
+      Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      MessageProducer producer = session.createProducer(session.createQueue(queue));
+      OrderedConsumer consumer = new OrderedConsumer(vmUrl, 2, 10);
+      consumer.setKeyProperty("account");
+      try {
+        consumer.listen(queue, new MessageHandler() {
+          @Override
+          public void onMessage(Message message) throws Exception {
+            handled.incrementAndGet();
+          }
+        });
+        TextMessage bad = session.createTextMessage("bad");
+        // a map can not be read as a String
+        bad.setObjectProperty("account", new java.util.HashMap<String, Object>());
+        producer.send(bad);
+        TextMessage good = session.createTextMessage("good");
+        good.setStringProperty("account", "key0");
+        producer.send(good);
+        Thread.sleep(500);
+        Assert.assertEquals(0, handled.get());
+      } finally {
+        consumer.close();
+      }
+
+      try (Consumer rest = new Consumer(vmUrl)) {
+        rest.connect("queue", queue);
+        rest.setTimeout(5000);
+        TextMessage first = rest.getTextMessage();
+        Assert.assertEquals("bad", first.getText());
+        first.acknowledge();
+        TextMessage second = rest.getTextMessage();
+        Assert.assertEquals("good", second.getText());
+        second.acknowledge();
+      }
+    } finally {
+      connection.close();
+    }
+  }
+
+  /**
+   * Closing with messages still waiting in a lane leaves nothing pending.
+   */
+  public void testCloseDiscardsLanes() throws Exception {
+    System.out.println("closeDiscardsLanes");
+    String queue = "orderedCloseQ";
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch never = new CountDownLatch(1);
+    OrderedConsumer consumer = new OrderedConsumer(vmUrl, 1, 10);
+    consumer.setKeyProperty("account");
+    try {
+      consumer.listen(queue, new MessageHandler() {
+        @Override
+        public void onMessage(Message message) throws Exception {
+          started.countDown();
+          never.await();
+        }
+      });
+      send(queue, "account", 1, 5);
+      Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+      long deadline = System.currentTimeMillis() + 5000;
+      while (consumer.getDepth() < 4 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      Assert.assertEquals(4, consumer.getDepth());
+    } finally {
+      consumer.close();
+    }
+    Assert.assertEquals(0, consumer.getDepth());
+    Assert.assertTrue(consumer.drain(100));
+  }
+
+  private void send(String queue, String property, int keys, int perKey) throws Exception {
+    Connection connection = new ActiveMQConnectionFactory(vmUrl).createConnection();
+    try {
+      Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      MessageProducer producer = session.createProducer(session.createQueue(queue));
+      for (int i = 0; i < perKey; i++) {
+        for (int k = 0; k < keys; k++) {
+          TextMessage msg = session.createTextMessage(Integer.toString(i));
+          msg.setStringProperty(property, "key" + k);
+          producer.send(msg);
+        }
+      }
+    } finally {
+      connection.close();
+    }
+  }
+}
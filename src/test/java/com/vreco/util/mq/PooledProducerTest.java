@@ -0,0 +1,128 @@
+package com.vreco.util.mq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.jms.TextMessage;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Ben Aldrich
+ */
+public class PooledProducerTest extends TestCase {
+
+  private final String vmUrl = "vm://localhost?broker.persistent=false";
+  private Consumer consumer;
+  private PooledProducer producer;
+
+  public PooledProducerTest(String testName) {
+    super(testName);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    consumer = new Consumer(vmUrl);
+    producer = new PooledProducer(vmUrl, 2);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+    if (consumer != null) {
+      consumer.close();
+    }
+    if (producer != null) {
+      producer.close();
+    }
+  }
+
+  /**
+   * Several threads share the pool without exceeding maxSessions.
+   */
+  public void testConcurrentSend() throws Exception {
+    final int threads = 4;
+    final int perThread = 25;
+    producer.connect();
+    consumer.connect("queue", "testPooledQ");
+    final AtomicReference<Exception> failure = new AtomicReference<>();
+    List<Thread> senders = new ArrayList<>();
+    for (int i = 0; i < threads; i++) {
+      Thread t = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int j = 0; j < perThread; j++) {
+              producer.sendMessage("queue", "testPooledQ", "testT");
+            }
+          } catch (Exception e) {
+            failure.set(e);
+          }
+        }
+      });
+      senders.add(t);
+      t.start();
+    }
+    for (Thread t : senders) {
+      t.join();
+    }
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+    Assert.assertTrue(producer.getSessionCount() <= 2);
+    Assert.assertEquals(threads * perThread, producer.getCheckoutCount());
+    Assert.assertEquals(producer.getCheckoutCount(), producer.getReturnCount());
+
+    consumer.setTimeout(2000);
+    for (int i = 0; i < threads * perThread; i++) {
+      TextMessage msg = consumer.getTextMessage();
+      Assert.assertNotNull(msg);
+      msg.acknowledge();
+    }
+  }
+
+  /**
+   * A thread waiting on a full pool gets a session as soon as a broken one is returned.
+   */
+  public void testBrokenCheckinWakesWaiter() throws Exception {
+    producer = new PooledProducer(vmUrl, 1);
+    producer.setCheckoutTimeout(5000);
+    producer.connect();
+    PooledProducer.PooledSession held = producer.checkout();
+    final AtomicReference<Exception> failure = new AtomicReference<>();
+    Thread waiter = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          producer.checkin(producer.checkout(), false);
+        } catch (Exception e) {
+          failure.set(e);
+        }
+      }
+    });
+    long start = System.currentTimeMillis();
+    waiter.start();
+    Thread.sleep(100);
+    producer.checkin(held, true);
+    waiter.join(10000);
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+    Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+    Assert.assertEquals(1, producer.getSessionCount());
+  }
+
+  /**
+   * Sending before connect fails fast.
+   */
+  public void testSendWithoutConnect() throws Exception {
+    try {
+      producer.sendMessage("queue", "testPooledQ", "testT");
+      Assert.fail("Expected send without connect to fail");
+    } catch (javax.jms.IllegalStateException e) {
+      // expected
+    }
+  }
+}
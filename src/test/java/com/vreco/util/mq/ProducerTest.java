@@ -1,11 +1,19 @@
 package com.vreco.util.mq;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
 import javax.jms.DeliveryMode;
 import javax.jms.Destination;
+import javax.jms.JMSException;
 import javax.jms.TextMessage;
 import junit.framework.Assert;
 import junit.framework.TestCase;
+import org.apache.activemq.AsyncCallback;
 import org.junit.Ignore;
 
 /**
@@ -177,4 +185,237 @@ public class ProducerTest extends TestCase {
       throw new IOException("Message found when none should exist!");
     }
   }  
-}
\ No newline at end of file
+
+  /**
+   * Test of sendBatch method, of class Producer.
+   */
+  public void testSendBatch() throws Exception {
+    producer.setUseTransactions(true);
+    producer.connect("queue", "testBatchQ");
+    consumer.connect("queue", "testBatchQ");
+    int sent = producer.sendBatch(Arrays.asList("one", null, "two", "three"));
+    Assert.assertEquals(3, sent);
+    consumer.setTimeout(2000);
+    for (String expected : Arrays.asList("one", "two", "three")) {
+      TextMessage msg = consumer.getTextMessage();
+      if (msg == null) {
+        throw new IOException("NO message found!");
+      }
+      msg.acknowledge();
+      Assert.assertEquals(expected, msg.getText());
+    }
+  }
+
+  /**
+   * Test of sendBatch method without transactions, of class Producer.
+   */
+  public void testSendBatchWithoutTransactions() throws Exception {
+    producer.connect("queue", "testBatchQ");
+    try {
+      producer.sendBatch(Arrays.asList("one"));
+      Assert.fail("Expected sendBatch to require a transacted session");
+    } catch (javax.jms.IllegalStateException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Test of sendObject method, of class Producer.
+   */
+  public void testSendObject() throws Exception {
+    producer.connect("queue", "testObjectQ");
+    consumer.connect("queue", "testObjectQ");
+    Payload payload = new Payload();
+    payload.id = 42;
+    payload.name = "test";
+    payload.tags = Arrays.asList("a", "b");
+    producer.sendObject(payload);
+    producer.sendMessage("{\"id\":7,\"unknown\":true}");
+    consumer.setTimeout(2000);
+
+    Payload received = consumer.receiveObject(Payload.class);
+    Assert.assertEquals(42, received.id);
+    Assert.assertEquals("test", received.name);
+    Assert.assertEquals(Arrays.asList("a", "b"), received.tags);
+    received = consumer.receiveObject(Payload.class);
+    Assert.assertEquals(7, received.id);
+  }
+
+  /**
+   * Test of compression, of class Producer.
+   */
+  public void testCompression() throws Exception {
+    producer.setCompressionThreshold(100);
+    producer.setCompressionLevel(1);
+    producer.connect("queue", "testCompressionQ");
+    consumer.connect("queue", "testCompressionQ");
+    StringBuilder large = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      large.append("{\"id\":").append(i).append(",\"name\":\"compressed\"}");
+    }
+    producer.sendMessage(large.toString());
+    producer.sendMessage("small");
+    Payload payload = new Payload();
+    payload.name = large.toString();
+    producer.sendObject(payload);
+    consumer.setTimeout(2000);
+
+    TextMessage msg = consumer.getTextMessage();
+    Assert.assertTrue(msg instanceof InflatedTextMessage);
+    Assert.assertEquals(large.toString(), msg.getText());
+    msg = consumer.getTextMessage();
+    Assert.assertFalse(msg instanceof InflatedTextMessage);
+    Assert.assertEquals("small", msg.getText());
+    Assert.assertEquals(large.toString(), consumer.receiveObject(Payload.class).name);
+    msg.acknowledge();
+  }
+
+  /**
+   * Test of deflate and inflate, of class Compression.
+   */
+  public void testDeflateInflate() throws Exception {
+    byte[] data = new byte[100000];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) (i % 31);
+    }
+    byte[] compressed = Compression.deflate(data, 0, data.length, 6);
+    Assert.assertTrue(compressed.length < data.length);
+    Assert.assertTrue(Arrays.equals(data, Compression.inflate(compressed, 0, compressed.length, -1)));
+    Assert.assertTrue(Arrays.equals(data,
+            Compression.inflate(compressed, 0, compressed.length, data.length)));
+  }
+
+  /**
+   * Test of the inflate limits, of class Compression.
+   */
+  public void testInflateLimits() throws Exception {
+    byte[] bomb = new byte[1024 * 1024];
+    byte[] compressed = Compression.deflate(bomb, 0, bomb.length, 9);
+    int max = Compression.getMaxInflatedLength();
+    try {
+      Compression.setMaxInflatedLength(64 * 1024);
+      for (int expected : new int[]{-1, 1024, -2, Integer.MIN_VALUE, bomb.length}) {
+        try {
+          Compression.inflate(compressed, 0, compressed.length, expected);
+          Assert.fail("Inflated past the limit with expected length " + expected);
+        } catch (DataFormatException e) {
+          // refused
+        }
+      }
+      Compression.setMaxInflatedLength(bomb.length);
+      Assert.assertTrue(Arrays.equals(bomb, Compression.inflate(compressed, 0, compressed.length, -1)));
+    } finally {
+      Compression.setMaxInflatedLength(max);
+    }
+  }
+
+  /**
+   * Test of the destination cache, of class Producer.
+   */
+  public void testCacheEviction() throws Exception {
+    producer.setCacheSize(2);
+    producer.connect();
+    producer.sendMessage("queue", "testCacheQ1", "one");
+    producer.sendMessage("queue", "testCacheQ2", "two");
+    producer.sendMessage("queue", "testCacheQ1", "three");
+    producer.sendMessage("queue", "testCacheQ3", "four");
+    ProducerCache cache = producer.getCache();
+    Assert.assertEquals(2, cache.size());
+    Assert.assertEquals(1, cache.getHits());
+    Assert.assertEquals(3, cache.getMisses());
+    Assert.assertEquals(1, cache.getEvictions());
+
+    // testCacheQ2 was least recently used, sending to it again opens a new producer
+    producer.sendMessage("queue", "testCacheQ2", "five");
+    Assert.assertEquals(2, cache.getEvictions());
+    consumer.connect("queue", "testCacheQ2");
+    consumer.setTimeout(2000);
+    Assert.assertEquals("two", consumer.getTextMessage().getText());
+    Assert.assertEquals("five", consumer.getTextMessage().getText());
+  }
+
+  /**
+   * Sending to many distinct queues keeps the statistics registry bounded, destinations evicted
+   * from the cache are let go.
+   */
+  public void testStatisticsBounded() throws Exception {
+    int max = DestinationStatistics.getMaxDestinations();
+    try {
+      DestinationStatistics.setMaxDestinations(4);
+      producer.setCacheSize(2);
+      producer.connect();
+      for (int i = 0; i < 50; i++) {
+        producer.sendMessage("queue", "testStatsQ" + i, "message");
+        Assert.assertTrue(DestinationStatistics.getAll().size() <= 4);
+      }
+      Assert.assertEquals(2, producer.getCache().size());
+      Assert.assertTrue(DestinationStatistics.getAll().containsKey("testStatsQ49"));
+      Assert.assertEquals(1, DestinationStatistics.getAll().get("testStatsQ49").getMessagesSent());
+    } finally {
+      DestinationStatistics.setMaxDestinations(max);
+    }
+  }
+
+  /**
+   * Test of sendAsync method, of class Producer.
+   */
+  public void testSendAsync() throws Exception {
+    producer.setAsyncWindow(4);
+    producer.connect("queue", "testAsyncQ");
+    producer.setPersistence(true);
+    final AtomicInteger confirmed = new AtomicInteger();
+    AsyncCallback callback = new AsyncCallback() {
+      @Override
+      public void onSuccess() {
+        confirmed.incrementAndGet();
+      }
+
+      @Override
+      public void onException(JMSException e) {
+      }
+    };
+    List<Producer.SendFuture> futures = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      futures.add(producer.sendAsync("message" + i, callback));
+    }
+    for (Producer.SendFuture future : futures) {
+      future.get(5, TimeUnit.SECONDS);
+      Assert.assertTrue(future.isDone());
+    }
+    Assert.assertTrue(producer.flushAsync(5000));
+    Assert.assertEquals(20, confirmed.get());
+    Assert.assertEquals(0, producer.getAsyncInFlight());
+
+    consumer.connect("queue", "testAsyncQ");
+    consumer.setTimeout(2000);
+    for (int i = 0; i < 20; i++) {
+      Assert.assertEquals("message" + i, consumer.getTextMessage().getText());
+    }
+  }
+
+  /**
+   * Test of sendAsync method after close, of class Producer.
+   */
+  public void testSendAsyncClosed() throws Exception {
+    producer.setAsyncWindow(1);
+    producer.connect("queue", "testAsyncClosedQ");
+    producer.sendAsync("message", null).get(5, TimeUnit.SECONDS);
+    producer.close();
+    try {
+      producer.sendAsync("message", null);
+      Assert.fail("Expected the send on a closed producer to fail");
+    } catch (JMSException e) {
+      // expected
+    }
+    Assert.assertEquals(0, producer.getAsyncInFlight());
+    Assert.assertTrue(producer.flushAsync(0));
+    producer = null;
+  }
+
+  public static class Payload {
+
+    public long id;
+    public String name;
+    public List<String> tags;
+  }
+}
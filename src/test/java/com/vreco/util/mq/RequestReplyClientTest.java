@@ -0,0 +1,74 @@
+package com.vreco.util.mq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Ben Aldrich
+ */
+public class RequestReplyClientTest extends TestCase {
+
+  private final String vmUrl = "vm://localhost?broker.persistent=false";
+
+  public RequestReplyClientTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * Concurrent requests each get their own reply over the shared reply queue.
+   */
+  public void testCall() throws Exception {
+    System.out.println("call");
+    final String queue = "rpcQ";
+    try (Consumer server = new Consumer(vmUrl); final Producer replier = new Producer(vmUrl);
+            RequestReplyClient client = new RequestReplyClient(vmUrl, 4)) {
+      replier.connect();
+      server.listen("queue", queue, 1, new MessageHandler() {
+        @Override
+        public void onMessage(Message message) throws Exception {
+          replier.sendReply(message, "re:" + ((TextMessage) message).getText());
+        }
+      });
+      client.connect();
+      Assert.assertEquals("re:hello", client.call("queue", queue, "hello", 5000).getText());
+
+      List<RequestReplyClient.ReplyFuture> futures = new ArrayList<>();
+      for (int i = 0; i < 20; i++) {
+        futures.add(client.request("queue", queue, "request" + i, 5000));
+      }
+      for (int i = 0; i < 20; i++) {
+        Assert.assertEquals("re:request" + i, ((TextMessage) futures.get(i).get()).getText());
+      }
+      Assert.assertEquals(21, client.getReplyCount());
+      Assert.assertEquals(0, client.getInFlightCount());
+    }
+  }
+
+  /**
+   * A request nobody answers times out and frees its in-flight slot.
+   */
+  public void testTimeout() throws Exception {
+    System.out.println("timeout");
+    try (RequestReplyClient client = new RequestReplyClient(vmUrl, 1)) {
+      client.connect();
+      RequestReplyClient.ReplyFuture future = client.request("queue", "rpcNobodyQ", "hello", 100);
+      try {
+        future.get();
+        Assert.fail("Expected the request to time out");
+      } catch (ExecutionException e) {
+        Assert.assertTrue(e.getCause() instanceof TimeoutException);
+      }
+      Assert.assertEquals(1, client.getTimeoutCount());
+      Assert.assertEquals(0, client.getInFlightCount());
+      // the only slot is free again
+      client.request("queue", "rpcNobodyQ", "again", 100).cancel(false);
+    }
+  }
+}
@@ -0,0 +1,158 @@
+package com.vreco.util.mq;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+import org.apache.activemq.ActiveMQConnectionFactory;
+
+/**
+ *
+ * @author Ben Aldrich
+ */
+public class RetryStageTest extends TestCase {
+
+  private final String vmUrl = "vm://localhost?broker.persistent=false";
+
+  public RetryStageTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * Test of delayFor method, of class RetryPolicy.
+   */
+  public void testDelays() {
+    System.out.println("delays");
+    RetryPolicy policy = new RetryPolicy(5, 100, 2, 500);
+    Assert.assertEquals(100, policy.delayFor(1));
+    Assert.assertEquals(200, policy.delayFor(2));
+    Assert.assertEquals(400, policy.delayFor(3));
+    Assert.assertEquals(500, policy.delayFor(4));
+    Assert.assertEquals(500, policy.delayFor(100));
+    Assert.assertTrue(policy.shouldRetry(4));
+    Assert.assertFalse(policy.shouldRetry(5));
+    Assert.assertEquals("DLQ.jobs", policy.deadLetterQueueFor("jobs"));
+    policy.setDeadLetterQueue("dead");
+    Assert.assertEquals("dead", policy.deadLetterQueueFor("jobs"));
+  }
+
+  /**
+   * Failed messages come back after a delay, and go to the dead letter queue after maxAttempts.
+   */
+  public void testRetryAndDeadLetter() throws Exception {
+    System.out.println("retryAndDeadLetter");
+    runRetries(vmUrl, "retryQ", new RetryPolicy(3, 50, 2, 1000));
+  }
+
+  /**
+   * Same as above, with the broker holding the delayed messages.
+   */
+  public void testBrokerScheduling() throws Exception {
+    System.out.println("brokerScheduling");
+    RetryPolicy policy = new RetryPolicy(3, 50, 2, 1000);
+    policy.setBrokerScheduling(true);
+    runRetries("vm://scheduler?broker.persistent=false&broker.useJmx=false"
+            + "&broker.schedulerSupport=true&broker.dataDirectory=target/activemq-data",
+            "scheduledRetryQ", policy);
+  }
+
+  /**
+   * A copy that cannot be sent is never silently dropped: a dead letter fails the retry call so
+   * the caller keeps the original, a timed retry stays waiting until the stage closes.
+   */
+  public void testSendFailure() throws Exception {
+    System.out.println("sendFailure");
+    String queue = "failedRetryQ";
+    try (Consumer consumer = new Consumer(vmUrl); Producer producer = new Producer(vmUrl)) {
+      producer.connect("queue", queue);
+      producer.sendMessage("failed");
+      consumer.connect("queue", queue);
+      Message message = consumer.getTextMessage();
+      Assert.assertNotNull(message);
+
+      Connection connection = new ActiveMQConnectionFactory(vmUrl).createConnection();
+      RetryStage deadLetters = new RetryStage(connection, new RetryPolicy(1, 50, 2, 100));
+      connection.close();
+      try {
+        deadLetters.retry(message, new Exception("failed"));
+        Assert.fail("Dead letter send should have failed");
+      } catch (JMSException e) {
+        // the caller recovers the original
+      }
+      Assert.assertEquals(0, deadLetters.getDeadLetteredCount());
+      deadLetters.close();
+
+      connection = new ActiveMQConnectionFactory(vmUrl).createConnection();
+      RetryStage timed = new RetryStage(connection, new RetryPolicy(3, 50, 2, 50));
+      connection.close();
+      timed.retry(message, new Exception("failed"));
+      Thread.sleep(300);
+      Assert.assertEquals(1, timed.getWaitingCount());
+      Assert.assertEquals(0, timed.getRetriedCount());
+      Assert.assertEquals(0, timed.getLostCount());
+      timed.close();
+      Assert.assertEquals(0, timed.getWaitingCount());
+      Assert.assertEquals(1, timed.getLostCount());
+    }
+  }
+
+  private void runRetries(String url, String queue, RetryPolicy policy) throws Exception {
+    final List<String> handled = new CopyOnWriteArrayList<>();
+    final CountDownLatch flakyDone = new CountDownLatch(1);
+    try (Consumer consumer = new Consumer(url); Producer producer = new Producer(url)) {
+      consumer.setRetryPolicy(policy);
+      consumer.listen("queue", queue, 1, new MessageHandler() {
+        @Override
+        public void onMessage(Message message) throws Exception {
+          String text = ((TextMessage) message).getText();
+          int attempts = RetryStage.attemptsOf(message);
+          handled.add(text + attempts);
+          if (text.equals("poison") || attempts == 0) {
+            throw new Exception("failed " + text);
+          }
+          flakyDone.countDown();
+        }
+      });
+      long start = System.currentTimeMillis();
+      producer.connect("queue", queue);
+      producer.sendMessage("flaky");
+      producer.sendMessage("poison");
+      Assert.assertTrue(flakyDone.await(10, TimeUnit.SECONDS));
+
+      try (Consumer dlq = new Consumer(url)) {
+        dlq.connect("queue", RetryPolicy.DLQ_PREFIX + queue);
+        dlq.setTimeout(10000);
+        TextMessage dead = dlq.getTextMessage();
+        Assert.assertEquals("poison", dead.getText());
+        Assert.assertEquals(3, RetryStage.attemptsOf(dead));
+        Assert.assertEquals("java.lang.Exception: failed poison",
+                dead.getStringProperty(RetryStage.FAILURE_PROPERTY));
+        dead.acknowledge();
+      }
+      if (!policy.isBrokerScheduling()) {
+        // poison waited 50ms then 100ms between attempts, the broker's scheduler is less exact
+        Assert.assertTrue(System.currentTimeMillis() - start >= 150);
+      }
+      Assert.assertTrue(handled.contains("flaky0"));
+      Assert.assertTrue(handled.contains("flaky1"));
+      Assert.assertTrue(handled.contains("poison0"));
+      Assert.assertTrue(handled.contains("poison1"));
+      Assert.assertTrue(handled.contains("poison2"));
+      RetryStage stage = consumer.getRetryStage();
+      // counted once the send returns, which can be after the copy was already handled
+      long deadline = System.currentTimeMillis() + 5000;
+      while (stage.getRetriedCount() < 3 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      Assert.assertEquals(3, stage.getRetriedCount());
+      Assert.assertEquals(1, stage.getDeadLetteredCount());
+      Assert.assertEquals(0, stage.getLostCount());
+    }
+  }
+}
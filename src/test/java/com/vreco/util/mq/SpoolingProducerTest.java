@@ -0,0 +1,191 @@
+package com.vreco.util.mq;
+
+import java.io.File;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import javax.jms.TextMessage;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+import org.apache.activemq.broker.BrokerService;
+
+/**
+ *
+ * @author Ben Aldrich
+ */
+public class SpoolingProducerTest extends TestCase {
+
+  private File dir;
+
+  public SpoolingProducerTest(String testName) {
+    super(testName);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    dir = Files.createTempDirectory("spool").toFile();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    dir.delete();
+    super.tearDown();
+  }
+
+  /**
+   * Messages sent while the broker is down are replayed in order once it comes up.
+   */
+  public void testSpoolWhileBrokerDown() throws Exception {
+    System.out.println("spoolWhileBrokerDown");
+    int port;
+    try (ServerSocket socket = new ServerSocket(0)) {
+      port = socket.getLocalPort();
+    }
+    String brokerUrl = "tcp://127.0.0.1:" + port;
+    // give up quickly on a connect that is never answered
+    String url = brokerUrl + "?wireFormat.maxInactivityDurationInitalDelay=200";
+    String queue = "spoolingQ";
+    BrokerService broker = new BrokerService();
+    broker.setPersistent(false);
+    broker.setUseJmx(false);
+    broker.addConnector(brokerUrl);
+    try (SpoolingProducer producer = new SpoolingProducer(url, new MessageSpool(dir, 4096, 4))) {
+      producer.setRetryInterval(100);
+      producer.start();
+      Assert.assertFalse(producer.isConnected());
+      for (int i = 0; i < 10; i++) {
+        producer.sendMessage("queue", queue, "testT" + i);
+      }
+      Assert.assertEquals(10, producer.getSpooledCount());
+
+      broker.start();
+      long deadline = System.currentTimeMillis() + 10000;
+      while (producer.getReplayedCount() < 10 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(50);
+      }
+      Assert.assertEquals(10, producer.getReplayedCount());
+      Assert.assertTrue(producer.getSpool().isEmpty());
+      producer.sendMessage("queue", queue, "testT10");
+      Assert.assertEquals(1, producer.getSentCount());
+
+      try (Consumer consumer = new Consumer(url)) {
+        consumer.setTimeout(2000);
+        consumer.connect("queue", queue);
+        for (int i = 0; i <= 10; i++) {
+          TextMessage msg = consumer.getTextMessage();
+          Assert.assertEquals("testT" + i, msg.getText());
+          msg.acknowledge();
+        }
+      }
+    } finally {
+      broker.stop();
+    }
+  }
+
+  /**
+   * With a send window, a send that fails because the broker went away is spooled exactly once.
+   */
+  public void testSendWindowBrokerDown() throws Exception {
+    System.out.println("sendWindowBrokerDown");
+    int port;
+    try (ServerSocket socket = new ServerSocket(0)) {
+      port = socket.getLocalPort();
+    }
+    String brokerUrl = "tcp://127.0.0.1:" + port;
+    String url = brokerUrl + "?wireFormat.maxInactivityDurationInitalDelay=200";
+    BrokerService broker = new BrokerService();
+    broker.setPersistent(false);
+    broker.setUseJmx(false);
+    broker.addConnector(brokerUrl);
+    broker.start();
+    try (SpoolingProducer producer = new SpoolingProducer(url, new MessageSpool(dir, 4096, 4))) {
+      producer.setRetryInterval(100);
+      producer.setSendWindow(4);
+      producer.start();
+      Assert.assertTrue(producer.isConnected());
+      producer.sendMessage("queue", "spoolingDownQ", "before");
+      Assert.assertEquals(1, producer.getSentCount());
+
+      broker.stop();
+      broker.waitUntilStopped();
+      // let the connection notice the broker is gone, so the next sends fail before the broker
+      Thread.sleep(500);
+      // "before" is spooled too if the broker failed it after it was counted as sent
+      long spooledBefore = producer.getSpooledCount();
+      for (int i = 0; i < 10; i++) {
+        producer.sendMessage("queue", "spoolingDownQ", "testT" + i);
+      }
+      Assert.assertEquals(10, producer.getSpooledCount() - spooledBefore);
+    } finally {
+      broker.stop();
+    }
+
+    int records = 0;
+    try (MessageSpool spool = new MessageSpool(dir, 4096, 4)) {
+      MessageSpool.Record record;
+      while ((record = spool.peek()) != null) {
+        spool.advance();
+        if (records == 0 && "before".equals(record.getMessage())) {
+          continue;
+        }
+        Assert.assertEquals("testT" + records, record.getMessage());
+        records++;
+      }
+    }
+    Assert.assertEquals(10, records);
+  }
+
+  /**
+   * Sending after close is refused rather than written to the closed spool.
+   */
+  public void testSendAfterClose() throws Exception {
+    System.out.println("sendAfterClose");
+    SpoolingProducer producer = new SpoolingProducer("tcp://127.0.0.1:1", new MessageSpool(dir, 4096, 4));
+    producer.close();
+    try {
+      producer.sendMessage("queue", "spoolingClosedQ", "testT");
+      Assert.fail("Send after close should have failed");
+    } catch (javax.jms.IllegalStateException e) {
+      // expected
+    }
+  }
+
+  /**
+   * With a send window, messages that find it full are spooled and still arrive in order.
+   */
+  public void testSendWindow() throws Exception {
+    System.out.println("sendWindow");
+    String url = "vm://localhost?broker.persistent=false";
+    String queue = "spoolingWindowQ";
+    int count = 500;
+    try (Consumer consumer = new Consumer(url)) {
+      consumer.setTimeout(5000);
+      consumer.connect("queue", queue);
+      try (SpoolingProducer producer = new SpoolingProducer(url, new MessageSpool(dir, 65536, 4))) {
+        producer.setRetryInterval(100);
+        producer.setSendWindow(1);
+        producer.start();
+        Assert.assertTrue(producer.isConnected());
+        for (int i = 0; i < count; i++) {
+          producer.sendMessage("queue", queue, "testT" + i);
+        }
+        Assert.assertEquals(count, producer.getSentCount() + producer.getSpooledCount());
+        // only a full window starts spooling while the broker is up
+        Assert.assertEquals(producer.getSpooledCount() > 0, producer.getSaturatedCount() > 0);
+
+        for (int i = 0; i < count; i++) {
+          TextMessage msg = consumer.getTextMessage();
+          Assert.assertEquals("testT" + i, msg.getText());
+          msg.acknowledge();
+        }
+        Assert.assertEquals(producer.getSpooledCount(), producer.getReplayedCount());
+      }
+    }
+  }
+}
@@ -0,0 +1,44 @@
+package com.vreco.util.processor;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Fails a fraction of messages on purpose before handing the rest to another handler, to exercise
+ * redelivery and backoff in tests.
+ *
+ * @author Ben Aldrich
+ */
+public class FailingMessageProcessor implements MessageProcessor {
+
+  private final MessageProcessor delegate;
+  private volatile double failRate;
+
+  /**
+   * @param delegate handles the messages that are not failed
+   * @param failRate fraction of messages to fail, between 0.0 and 1.0
+   */
+  public FailingMessageProcessor(final MessageProcessor delegate, final double failRate) {
+    this.delegate = delegate;
+    setFailRate(failRate);
+  }
+
+  public void setFailRate(final double failRate) {
+    if (failRate < 0.0 || failRate > 1.0) {
+      throw new IllegalArgumentException("failRate must be between 0.0 and 1.0");
+    }
+    this.failRate = failRate;
+  }
+
+  public double getFailRate() {
+    return failRate;
+  }
+
+  @Override
+  public String process(final String message) throws Exception {
+    double rate = failRate;
+    if (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate) {
+      throw new Exception("Injected failure, failRate=" + rate);
+    }
+    return delegate.process(message);
+  }
+}
@@ -0,0 +1,167 @@
+package com.vreco.util.processor;
+
+import com.vreco.util.mq.Producer;
+import com.vreco.util.shutdownhooks.SimpleShutdown;
+import java.util.Properties;
+import javax.jms.Connection;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+import org.apache.activemq.ActiveMQConnectionFactory;
+
+/**
+ *
+ * @author Ben Aldrich
+ */
+public class ProcessorTest extends TestCase {
+
+  private final String vmUrl = "vm://localhost?broker.persistent=false";
+
+  public ProcessorTest(String testName) {
+    super(testName);
+  }
+
+  private Properties getConf(String queue) {
+    Properties conf = new Properties();
+    conf.setProperty("activemq.url", vmUrl);
+    conf.setProperty("activemq.timeout", "100");
+    conf.setProperty("activemq.queue", queue);
+    conf.setProperty("processor.numThreads", "3");
+    return conf;
+  }
+
+  /**
+   * Invalid settings are rejected when the config is read.
+   */
+  public void testConfigValidation() throws Exception {
+    Properties conf = getConf("processorQ");
+    conf.setProperty("processor.minWait", "10");
+    conf.setProperty("processor.maxWait", "5");
+    try {
+      new ProcessorConfig(conf);
+      Assert.fail("Expected minWait > maxWait to be rejected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Workers consume, publish results and drain on shutdown.
+   */
+  public void testProcessAndShutdown() throws Exception {
+    Properties conf = getConf("processorInQ");
+    conf.setProperty("activemq.topic", "processorOutT");
+    SimpleShutdown shutdown = new SimpleShutdown() {
+    };
+    Processor processor = new Processor(new ProcessorConfig(conf), new MessageProcessor() {
+      @Override
+      public String process(String message) {
+        return message.toUpperCase();
+      }
+    }, shutdown);
+
+    Connection connection = new ActiveMQConnectionFactory(vmUrl).createConnection();
+    try (Producer producer = new Producer(vmUrl)) {
+      connection.start();
+      Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      // subscribed before anything is published, a topic keeps nothing for late subscribers
+      MessageConsumer results = session.createConsumer(session.createTopic("processorOutT"));
+      processor.start();
+      Assert.assertTrue(processor.isRunning());
+      producer.connect("queue", "processorInQ");
+      for (int i = 0; i < 10; i++) {
+        producer.sendMessage("testT");
+      }
+      long deadline = System.currentTimeMillis() + 5000;
+      while (processor.getProcessedCount() < 10 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      Assert.assertEquals(10, processor.getProcessedCount());
+      Assert.assertEquals(10, processor.getPublishedCount());
+      for (int i = 0; i < 10; i++) {
+        TextMessage result = (TextMessage) results.receive(2000);
+        Assert.assertNotNull(result);
+        Assert.assertEquals("TESTT", result.getText());
+      }
+
+      shutdown.setShutdown(true);
+      Assert.assertTrue(processor.awaitTermination(5000));
+      Assert.assertFalse(processor.isRunning());
+      Assert.assertTrue(shutdown.isFinished());
+    } finally {
+      connection.close();
+    }
+  }
+
+  /**
+   * A shutdown signal arriving after the workers stopped still marks the hook finished.
+   */
+  public void testShutdownAfterStop() throws Exception {
+    Properties conf = getConf("processorStopQ");
+    SimpleShutdown shutdown = new SimpleShutdown() {
+    };
+    Processor processor = new Processor(new ProcessorConfig(conf), new MessageProcessor() {
+      @Override
+      public String process(String message) {
+        return null;
+      }
+    }, shutdown);
+    processor.start();
+    processor.stop();
+    Assert.assertTrue(processor.awaitTermination(5000));
+    Assert.assertFalse(shutdown.isFinished());
+
+    shutdown.setShutdown(true);
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!shutdown.isFinished() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    Assert.assertTrue(shutdown.isFinished());
+  }
+
+  /**
+   * Settings swapped in while running reach the workers, a raised backoff holds back the retry of
+   * a failing message.
+   */
+  public void testReconfigure() throws Exception {
+    Properties conf = getConf("processorReconfigureQ");
+    SimpleShutdown shutdown = new SimpleShutdown() {
+    };
+    FailingMessageProcessor failing = new FailingMessageProcessor(new MessageProcessor() {
+      @Override
+      public String process(String message) {
+        return null;
+      }
+    }, 1.0);
+    Processor processor = new Processor(new ProcessorConfig(conf), failing, shutdown);
+    try (Producer producer = new Producer(vmUrl)) {
+      processor.start();
+      conf.setProperty("processor.minWait", "2000");
+      conf.setProperty("processor.maxWait", "2000");
+      processor.reconfigure(new ProcessorConfig(conf));
+      Assert.assertEquals(2000, processor.getConfig().getMinWait());
+      producer.connect("queue", "processorReconfigureQ");
+      producer.sendMessage("testT");
+      long deadline = System.currentTimeMillis() + 5000;
+      while (processor.getFailedCount() == 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      // the worker that failed it is backing off, nothing retries it meanwhile
+      Thread.sleep(500);
+      Assert.assertEquals(1, processor.getFailedCount());
+      Assert.assertEquals(0, processor.getProcessedCount());
+
+      failing.setFailRate(0.0);
+      deadline = System.currentTimeMillis() + 5000;
+      while (processor.getProcessedCount() == 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      Assert.assertEquals(1, processor.getProcessedCount());
+    } finally {
+      processor.stop();
+      Assert.assertTrue(processor.awaitTermination(5000));
+    }
+  }
+}
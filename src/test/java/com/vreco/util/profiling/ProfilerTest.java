@@ -0,0 +1,230 @@
+package com.vreco.util.profiling;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ *
+ * @author Ben Aldrich
+ */
+public class ProfilerTest extends TestCase {
+
+  private final Logger profilingLogger = Logger.getLogger("Profiling");
+  private final List<LoggingEvent> events = new ArrayList<>();
+  private final AppenderSkeleton appender = new AppenderSkeleton() {
+    @Override
+    protected synchronized void append(LoggingEvent event) {
+      events.add(event);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public boolean requiresLayout() {
+      return false;
+    }
+  };
+
+  public ProfilerTest(String testName) {
+    super(testName);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    Properties conf = new Properties();
+    conf.setProperty("profiling.enabled", "true");
+    Profiler.initialize(conf);
+    profilingLogger.setLevel(Level.INFO);
+    profilingLogger.addAppender(appender);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+    profilingLogger.removeAppender(appender);
+  }
+
+  private int countEvents(Level level) {
+    int count = 0;
+    synchronized (appender) {
+      for (LoggingEvent event : events) {
+        if (event.getLevel().equals(level)) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * The same tag can be nested on one thread.
+   */
+  public void testNestedProfile() throws Exception {
+    Profiler.startProfile("nested");
+    Profiler.startProfile("nested");
+    Profiler.stopProfile("nested");
+    Profiler.stopProfile("nested");
+    Assert.assertEquals(2, countEvents(Level.INFO));
+    Assert.assertEquals(0, countEvents(Level.ERROR));
+
+    Profiler.stopProfile("nested");
+    Assert.assertEquals(1, countEvents(Level.ERROR));
+  }
+
+  /**
+   * Timings are kept per thread, a stop on another thread does not close them.
+   */
+  public void testProfilePerThread() throws Exception {
+    Profiler.startProfile("perThread");
+    Thread other = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        Profiler.stopProfile("perThread");
+      }
+    });
+    other.start();
+    other.join();
+    Assert.assertEquals(1, countEvents(Level.ERROR));
+    Profiler.stopProfile("perThread");
+    Assert.assertEquals(1, countEvents(Level.INFO));
+  }
+
+  /**
+   * Durations are aggregated per tag.
+   */
+  public void testSnapshot() throws Exception {
+    Properties conf = new Properties();
+    conf.setProperty("profiling.enabled", "true");
+    conf.setProperty("profiling.logEvents", "false");
+    Profiler.initialize(conf);
+    Profiler.reset();
+    for (int i = 0; i < 10; i++) {
+      Profiler.startProfile("snapshot");
+      Thread.sleep(1);
+      Profiler.stopProfile("snapshot");
+    }
+    Assert.assertEquals(0, countEvents(Level.INFO));
+
+    ProfileSnapshot snapshot = Profiler.snapshot().get("snapshot");
+    Assert.assertEquals(10, snapshot.getCount());
+    Assert.assertTrue(snapshot.getMin() >= 1000000);
+    Assert.assertTrue(snapshot.getMin() <= snapshot.getP50());
+    Assert.assertTrue(snapshot.getP50() <= snapshot.getP99());
+    Assert.assertTrue(snapshot.getP999() <= snapshot.getMax());
+
+    Profiler.flush();
+    Assert.assertEquals(1, countEvents(Level.INFO));
+  }
+
+  /**
+   * Recorded values come back within the histogram's precision.
+   */
+  public void testLatencyHistogram() throws Exception {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long i = 1; i <= 1000; i++) {
+      histogram.record(i * 1000);
+    }
+    ProfileSnapshot snapshot = histogram.snapshot("histogram");
+    Assert.assertEquals(1000, snapshot.getCount());
+    Assert.assertEquals(1000, snapshot.getMin());
+    Assert.assertEquals(1000000, snapshot.getMax());
+    Assert.assertEquals(500500.0, snapshot.getMean(), 0.001);
+    Assert.assertEquals(500000, snapshot.getP50(), 500000 * 0.04);
+    Assert.assertEquals(990000, snapshot.getP99(), 990000 * 0.04);
+  }
+
+  /**
+   * Disabled profiling records nothing, and re-initializing picks the flag up again.
+   */
+  public void testDisabled() throws Exception {
+    Properties conf = new Properties();
+    conf.setProperty("profiling.enabled", "false");
+    Profiler.initialize(conf);
+    Profiler.reset();
+    Profiler.startProfile("disabled");
+    Profiler.stopProfile("disabled");
+    Profiler.stopProfile("disabled");
+    Assert.assertEquals(0, events.size());
+    Assert.assertNull(Profiler.snapshot().get("disabled"));
+
+    conf.setProperty("profiling.enabled", "true");
+    Profiler.initialize(conf);
+    Profiler.startProfile("disabled");
+    Profiler.stopProfile("disabled");
+    Assert.assertEquals(1, Profiler.snapshot().get("disabled").getCount());
+  }
+
+  /**
+   * Only 1 in sampleRate calls are timed, nested calls still pair up.
+   */
+  public void testSampling() throws Exception {
+    Properties conf = new Properties();
+    conf.setProperty("profiling.enabled", "true");
+    conf.setProperty("profiling.logEvents", "false");
+    conf.setProperty("profiling.sampleRate", "4");
+    Profiler.initialize(conf);
+    Profiler.reset();
+    for (int i = 0; i < 8; i++) {
+      Profiler.startProfile("sampled");
+      Profiler.startProfile("sampled");
+      Profiler.stopProfile("sampled");
+      Profiler.stopProfile("sampled");
+    }
+    Assert.assertEquals(0, countEvents(Level.ERROR));
+    Assert.assertEquals(4, Profiler.snapshot().get("sampled").getCount());
+  }
+
+  /**
+   * Scopes time a tag with try-with-resources and are reused.
+   */
+  public void testTimeScope() throws Exception {
+    Properties conf = new Properties();
+    conf.setProperty("profiling.enabled", "true");
+    conf.setProperty("profiling.logEvents", "false");
+    Profiler.initialize(conf);
+    ProfileTag outer = Profiler.tag("scopeOuter");
+    Assert.assertSame(outer, Profiler.tag("scopeOuter"));
+
+    Profiler.Scope first;
+    try (Profiler.Scope scope = Profiler.time(outer)) {
+      first = scope;
+      try (Profiler.Scope inner = Profiler.time("scopeInner")) {
+        Assert.assertNotSame(scope, inner);
+      }
+    }
+    try (Profiler.Scope scope = Profiler.time(outer)) {
+      Assert.assertSame(first, scope);
+    }
+    Assert.assertEquals(2, outer.snapshot().getCount());
+    Assert.assertEquals(1, Profiler.snapshot().get("scopeInner").getCount());
+    Assert.assertEquals(0, countEvents(Level.ERROR));
+  }
+
+  /**
+   * Leaked and double closed scopes are reported.
+   */
+  public void testTimeScopeMismatch() throws Exception {
+    Properties conf = new Properties();
+    conf.setProperty("profiling.enabled", "true");
+    conf.setProperty("profiling.logEvents", "false");
+    Profiler.initialize(conf);
+    ProfileTag tag = Profiler.tag("scopeMismatch");
+    Profiler.Scope outer = Profiler.time(tag);
+    Profiler.time(tag); // never closed
+    outer.close();
+    Assert.assertEquals(1, countEvents(Level.ERROR));
+    outer.close();
+    Assert.assertEquals(2, countEvents(Level.ERROR));
+    Assert.assertEquals(1, tag.snapshot().getCount());
+  }
+}
@@ -0,0 +1,165 @@
+package com.vreco.util.shutdownhooks;
+
+import com.vreco.util.mq.Consumer;
+import com.vreco.util.mq.MessageHandler;
+import com.vreco.util.mq.Producer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.jms.Message;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Ben Aldrich
+ */
+public class ShutdownCoordinatorTest extends TestCase {
+
+  private final String vmUrl = "vm://localhost?broker.persistent=false";
+
+  public ShutdownCoordinatorTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * Participants stop intake, drain, then close in reverse order.
+   */
+  public void testPhases() throws Exception {
+    System.out.println("phases");
+    final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+    ShutdownCoordinator coordinator = new ShutdownCoordinator(1000);
+    coordinator.register(new Recorder("first", events, 0));
+    coordinator.register(new Recorder("second", events, 50));
+    coordinator.register(new AutoCloseable() {
+      @Override
+      public void close() {
+        events.add("close third");
+      }
+    });
+
+    Assert.assertTrue(coordinator.shutdown());
+    Assert.assertTrue(coordinator.isShutdown());
+    Assert.assertTrue(coordinator.isFinished());
+    Assert.assertEquals("stop first", events.get(0));
+    Assert.assertEquals("stop second", events.get(1));
+    Assert.assertEquals("close third", events.get(events.size() - 3));
+    Assert.assertEquals("close second", events.get(events.size() - 2));
+    Assert.assertEquals("close first", events.get(events.size() - 1));
+    // a second call waits for the first
+    Assert.assertTrue(coordinator.shutdown());
+  }
+
+  /**
+   * A participant that misses the deadline is reported and still closed.
+   */
+  public void testDrainTimeout() throws Exception {
+    System.out.println("drainTimeout");
+    List<String> events = Collections.synchronizedList(new ArrayList<String>());
+    ShutdownCoordinator coordinator = new ShutdownCoordinator(100);
+    coordinator.register(new Recorder("slow", events, 5000));
+    long start = System.currentTimeMillis();
+    Assert.assertFalse(coordinator.shutdown());
+    Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+    Assert.assertTrue(events.contains("close slow"));
+  }
+
+  /**
+   * Messages being handled when shutdown starts are finished and acknowledged.
+   */
+  public void testConsumerDrain() throws Exception {
+    System.out.println("consumerDrain");
+    String queue = "shutdownQ";
+    final CountDownLatch handling = new CountDownLatch(1);
+    final AtomicInteger handled = new AtomicInteger();
+    Consumer consumer = new Consumer(vmUrl);
+    consumer.listen("queue", queue, 2, new MessageHandler() {
+      @Override
+      public void onMessage(Message message) throws Exception {
+        handling.countDown();
+        Thread.sleep(200);
+        handled.incrementAndGet();
+      }
+    });
+    ShutdownCoordinator coordinator = new ShutdownCoordinator(5000);
+    coordinator.register(consumer);
+    try (Producer producer = new Producer(vmUrl)) {
+      producer.connect("queue", queue);
+      producer.sendMessage("testT");
+      Assert.assertTrue(handling.await(5, TimeUnit.SECONDS));
+      Assert.assertTrue(coordinator.shutdown());
+      Assert.assertEquals(1, handled.get());
+      Assert.assertEquals(0, consumer.getListenerCount());
+    }
+  }
+
+  /**
+   * The hook returns as soon as it is marked finished.
+   */
+  public void testSimpleShutdownRun() throws Exception {
+    System.out.println("simpleShutdownRun");
+    final SimpleShutdown shutdown = new SimpleShutdown() {
+    };
+    shutdown.start();
+    Assert.assertTrue(shutdown.awaitShutdown(5000));
+    shutdown.setFinished(true);
+    shutdown.join(5000);
+    Assert.assertFalse(shutdown.isAlive());
+  }
+
+  /**
+   * Resetting a flag re-arms its latch, the hook waits again instead of spinning.
+   */
+  public void testSimpleShutdownReset() throws Exception {
+    System.out.println("simpleShutdownReset");
+    final SimpleShutdown shutdown = new SimpleShutdown() {
+    };
+    shutdown.setShutdown(true);
+    shutdown.setShutdown(false);
+    Assert.assertFalse(shutdown.awaitShutdown(50));
+
+    shutdown.setFinished(true);
+    shutdown.setFinished(false);
+    shutdown.start();
+    Assert.assertTrue(shutdown.awaitShutdown(5000));
+    shutdown.join(200);
+    Assert.assertTrue(shutdown.isAlive());
+    Assert.assertEquals(Thread.State.WAITING, shutdown.getState());
+    shutdown.setFinished(true);
+    shutdown.join(5000);
+    Assert.assertFalse(shutdown.isAlive());
+  }
+
+  private static class Recorder implements ShutdownParticipant {
+
+    private final String name;
+    private final List<String> events;
+    private final long drainMillis;
+
+    Recorder(String name, List<String> events, long drainMillis) {
+      this.name = name;
+      this.events = events;
+      this.drainMillis = drainMillis;
+    }
+
+    @Override
+    public void stopIntake() {
+      events.add("stop " + name);
+    }
+
+    @Override
+    public boolean drain(long millis) throws InterruptedException {
+      Thread.sleep(Math.min(millis, drainMillis));
+      events.add("drain " + name);
+      return drainMillis <= millis;
+    }
+
+    @Override
+    public void close() {
+      events.add("close " + name);
+    }
+  }
+}